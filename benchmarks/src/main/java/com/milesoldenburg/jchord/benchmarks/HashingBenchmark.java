@@ -0,0 +1,81 @@
+package com.milesoldenburg.jchord.benchmarks;
+
+import com.milesoldenburg.jchord.chord.Finger;
+import com.milesoldenburg.jchord.chord.SHA1Hasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast keys and node addresses are mapped onto the ring
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+
+    @Param({"8", "64"})
+    public int keyLength;
+
+    private String[] keys;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        // A handful of distinct keys so the benchmark does not hash the same constant over and over
+        this.keys = new String[1024];
+        for (int i = 0; i < this.keys.length; i++) {
+            StringBuilder key = new StringBuilder();
+            while (key.length() < this.keyLength) {
+                key.append(Integer.toHexString(i * 31 + key.length()));
+            }
+
+            this.keys[i] = key.substring(0, this.keyLength);
+        }
+    }
+
+    @Benchmark
+    public long hashKey() {
+        String key = this.keys[this.next++ & (this.keys.length - 1)];
+
+        return new SHA1Hasher(key).getLong();
+    }
+
+    @Benchmark
+    public long hashKeyReusingDigest() {
+        String key = this.keys[this.next++ & (this.keys.length - 1)];
+
+        return SHA1Hasher.hash(key);
+    }
+
+    @Benchmark
+    public long hashAddress() {
+        return SHA1Hasher.hash("127.0.0.1", 8000 + (this.next++ & 1023));
+    }
+
+    @Benchmark
+    public Finger internedFinger() {
+        return Finger.of("127.0.0.1", 8000 + (this.next++ & 1023));
+    }
+
+    @Benchmark
+    public String hashKeyToHex() {
+        String key = this.keys[this.next++ & (this.keys.length - 1)];
+
+        return new SHA1Hasher(key).getHex();
+    }
+
+}
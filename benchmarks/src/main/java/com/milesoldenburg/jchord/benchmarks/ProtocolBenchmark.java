@@ -0,0 +1,106 @@
+package com.milesoldenburg.jchord.benchmarks;
+
+import com.milesoldenburg.jchord.chord.BinaryProtocol;
+import com.milesoldenburg.jchord.chord.Chord;
+import com.milesoldenburg.jchord.chord.Finger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building and parsing the messages of a lookup in both the text and the binary protocol
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private Finger finger;
+    private long queryId;
+    private String textRequest;
+    private String textResponse;
+    private ByteBuffer binaryRequest;
+    private ByteBuffer binaryResponse;
+
+    @Setup
+    public void setup() {
+        this.finger = new Finger("127.0.0.1", 8001);
+        this.queryId = 2853417183L;
+
+        this.textRequest = this.serializeTextRequest();
+        this.textResponse = Chord.NODE_FOUND + ":" + this.finger.getAddress() + ":" + this.finger.getPort();
+        this.binaryRequest = BinaryProtocol.findNode(1, this.queryId);
+        this.binaryResponse = BinaryProtocol.finger(BinaryProtocol.NODE_FOUND, 1, this.finger);
+    }
+
+    @Benchmark
+    public String serializeTextRequest() {
+        return Chord.FIND_NODE + ":" + this.queryId;
+    }
+
+    @Benchmark
+    public long parseTextRequest() {
+        // Same steps as ChordThread.process and findNode
+        String[] queryContents = this.textRequest.split(":", 2);
+
+        return queryContents[0].length() + Long.valueOf(queryContents[1]);
+    }
+
+    @Benchmark
+    public String serializeTextResponse() {
+        return Chord.NODE_FOUND + ":" + this.finger.getAddress() + ":" + this.finger.getPort();
+    }
+
+    @Benchmark
+    public int parseTextResponse() {
+        // Same steps as PeerConnection.findNode, without hashing a new finger
+        String[] addressFragments = this.textResponse.substring(Chord.NODE_FOUND.length() + 1).split(":");
+
+        return addressFragments[0].length() + Integer.valueOf(addressFragments[1]);
+    }
+
+    @Benchmark
+    public ByteBuffer serializeBinaryRequest() {
+        return BinaryProtocol.findNode(1, this.queryId);
+    }
+
+    @Benchmark
+    public long parseBinaryRequest() {
+        ByteBuffer frame = this.binaryRequest.duplicate();
+        frame.position(4);
+
+        return frame.get() + frame.getInt() + frame.getLong();
+    }
+
+    @Benchmark
+    public ByteBuffer serializeBinaryResponse() {
+        return BinaryProtocol.finger(BinaryProtocol.NODE_FOUND, 1, this.finger);
+    }
+
+    @Benchmark
+    public int parseBinaryResponse() {
+        ByteBuffer frame = this.binaryResponse.duplicate();
+        frame.position(4);
+
+        byte opcode = frame.get();
+        int requestId = frame.getInt();
+        int length = frame.getShort();
+        frame.position(frame.position() + length);
+
+        return opcode + requestId + frame.getInt();
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.milesoldenburg.jchord.benchmarks;
+
+import com.milesoldenburg.jchord.chord.Chord;
+import com.milesoldenburg.jchord.chord.ChordNode;
+import com.milesoldenburg.jchord.chord.Finger;
+import com.milesoldenburg.jchord.chord.PeerConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end lookups against a ring of nodes running inside the benchmark JVM on loopback. Every benchmark thread keeps a binary connection to one of the nodes and sends it lookups for random ids, so the numbers include framing, the listener, routing and the hops between nodes. Reported as throughput and as sampled latency percentiles.
+ *
+ * The nodes cannot be stopped, so this benchmark relies on JMH running it in a forked JVM.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+@Fork(1)
+public class RingLookupBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Ring {
+
+        @Param({"4", "16"})
+        public int nodes;
+
+        @Param({"9100"})
+        public int basePort;
+
+        @Param({"5"})
+        public int settleSeconds;
+
+        @Setup(Level.Trial)
+        public void start() throws InterruptedException {
+            // Keep the startup messages of the nodes out of the benchmark output
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            new ChordNode("127.0.0.1", String.valueOf(this.basePort));
+            for (int i = 1; i < this.nodes; i++) {
+                new ChordNode("127.0.0.1", String.valueOf(this.basePort + i), "127.0.0.1", String.valueOf(this.basePort));
+            }
+
+            // Let the listeners come up and the nodes learn about each other
+            Thread.sleep(this.settleSeconds * 1000L);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private PeerConnection connection;
+
+        @Setup(Level.Trial)
+        public void connect(Ring ring) throws IOException {
+            int port = ring.basePort + ThreadLocalRandom.current().nextInt(ring.nodes);
+            this.connection = new PeerConnection("127.0.0.1:" + port, "127.0.0.1", port, 5000, 30000, true);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            this.connection.close();
+        }
+
+    }
+
+    @Benchmark
+    public Finger findNode(Client client) throws IOException {
+        return client.connection.findNode(ThreadLocalRandom.current().nextLong() & Chord.RING_MASK);
+    }
+
+    @Benchmark
+    public String get(Client client) throws IOException {
+        return client.connection.send(Chord.GET + ":key" + ThreadLocalRandom.current().nextInt(1024));
+    }
+
+}
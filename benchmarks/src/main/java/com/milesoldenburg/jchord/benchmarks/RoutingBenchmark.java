@@ -0,0 +1,85 @@
+package com.milesoldenburg.jchord.benchmarks;
+
+import com.milesoldenburg.jchord.chord.Chord;
+import com.milesoldenburg.jchord.chord.Finger;
+import com.milesoldenburg.jchord.chord.FingerTable;
+import com.milesoldenburg.jchord.chord.RoutingTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the local routing decisions a node makes for every lookup: the ownership checks and the closest preceding finger search
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+
+    /**
+     * Number of distinct nodes the fingers point at
+     */
+    @Param({"4", "16", "32"})
+    public int distinctFingers;
+
+    private RoutingTable routingTable;
+    private Finger[] fingers;
+    private long[] queryIds;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        Finger self = new Finger("127.0.0.1", 8000);
+        Finger[] nodes = new Finger[this.distinctFingers];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Finger("127.0.0.1", 9000 + i);
+        }
+
+        this.fingers = new Finger[Chord.RING_BITS];
+        for (int i = 0; i < this.fingers.length; i++) {
+            this.fingers[i] = nodes[i % nodes.length];
+        }
+
+        this.routingTable = new RoutingTable(self, this.fingers, Arrays.copyOf(nodes, Math.min(nodes.length, 4)), nodes[nodes.length - 1], nodes[nodes.length - 1]);
+
+        this.queryIds = new long[1024];
+        for (int i = 0; i < this.queryIds.length; i++) {
+            this.queryIds[i] = random.nextLong() & Chord.RING_MASK;
+        }
+    }
+
+    @Benchmark
+    public Finger closestPrecedingFinger() {
+        return this.routingTable.findClosestPrecedingFinger(this.queryIds[this.next++ & (this.queryIds.length - 1)]);
+    }
+
+    @Benchmark
+    public boolean ownershipCheck() {
+        long queryId = this.queryIds[this.next++ & (this.queryIds.length - 1)];
+
+        return this.routingTable.doesQueryIdBelongToCurrentNode(queryId) || this.routingTable.doesQueryIdBelongToNextNode(queryId);
+    }
+
+    @Benchmark
+    public FingerTable buildFingerTable() {
+        return new FingerTable(this.routingTable.getSelf().getId(), this.fingers);
+    }
+
+}
@@ -0,0 +1,439 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framed binary protocol spoken next to the line based text protocol. A client opts in by sending the preamble as the very first bytes of a connection, which can never start a text command, and the node confirms by echoing it. After that every message is a frame:
+ *
+ * <pre>
+ * int length | byte opcode | int requestId | payload
+ * </pre>
+ *
+ * The length covers everything after the length field. Ids are sent as 64-bit longs and strings as a length prefixed UTF-8 byte sequence. Responses to lookups may end with a single byte holding the number of hops the lookup took, readers that do not expect it simply ignore it. Any text command can be sent inside a TEXT frame, so only the hot commands need their own opcode. A LOCAL_TEXT frame carries a storage command that a node already routed to the owner, the owner answers it from its own store and never forwards it. An OWNER_TEXT frame does the same for a node that was only remembered as the owner, a node that no longer owns the key answers NOT_OWNER instead. A REPLICA_TEXT frame carries a command the owner sends to a replica of the key, the replica answers it from its own copy.
+ */
+public class BinaryProtocol {
+
+    public final static byte    MAGIC               = (byte) 0xC4;
+    public final static byte[]  PREAMBLE            = {BinaryProtocol.MAGIC, 'J', 'C', 1};
+    public final static int     HEADER_LENGTH       = 4 + 1 + 4;
+    public final static int     MAX_FRAME_LENGTH    = 16 * 1024 * 1024;
+
+    public final static byte    TEXT                = 0;
+    public final static byte    FIND_NODE           = 1;
+    public final static byte    NODE_FOUND          = 2;
+    public final static byte    NOT_FOUND           = 3;
+    public final static byte    FIND_VALUE          = 4;
+    public final static byte    VALUE_FOUND         = 5;
+    public final static byte    PING_QUERY          = 6;
+    public final static byte    PING_RESPONSE       = 7;
+    public final static byte    FIND_NEXT_HOP       = 8;
+    public final static byte    NEXT_HOP            = 9;
+    public final static byte    FIND_NODES          = 10;
+    public final static byte    NODES_FOUND         = 11;
+    public final static byte    LOCAL_TEXT          = 12;
+    public final static byte    OWNER_TEXT          = 13;
+    public final static byte    FETCH_KEYS          = 14;
+    public final static byte    KEYS                = 15;
+    public final static byte    REPLICA_TEXT        = 16;
+
+    private final static ThreadLocal<ByteBuffer[]> replyBuffers = ThreadLocal.withInitial(() -> new ByteBuffer[1]);
+
+    /**
+     * Checks whether a request can be answered from the local state of a node alone. These requests never wait on another node, so they are cheap enough to answer on the I/O thread and can never be starved by workers that wait on other nodes. Storage commands for the owner and its replicas are not among them, since a write waits for its replicas, they are served by worker pools of their own instead.
+     *
+     * @param opcode    The opcode of the request
+     * @return          True if the request never contacts another node
+     */
+    public static boolean isLocal(byte opcode) {
+        return opcode == BinaryProtocol.PING_QUERY || opcode == BinaryProtocol.FIND_NEXT_HOP;
+    }
+
+    /**
+     * Checks whether the bytes at the start of a connection are the binary preamble
+     *
+     * @param bytes     The first bytes received on the connection
+     * @param offset    Where the preamble starts
+     * @return          True if the client asked for the binary protocol
+     */
+    public static boolean isPreamble(byte[] bytes, int offset) {
+        for (int i = 0; i < BinaryProtocol.PREAMBLE.length; i++) {
+            if (bytes[offset + i] != BinaryProtocol.PREAMBLE[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Lends the current thread a buffer that the next frame it allocates is written into instead of a new buffer, if it fits. A connection sets its reusable reply buffer before it hands a request to the handler, so the response of a frame needs no allocation.
+     *
+     * @param buffer    The buffer to write the next frame into, or null to stop lending one
+     */
+    public static void replyInto(ByteBuffer buffer) {
+        BinaryProtocol.replyBuffers.get()[0] = buffer;
+    }
+
+    /**
+     * Allocates a frame with room for the given payload and writes the header. The caller appends the payload and flips the buffer. The frame goes into the buffer lent by replyInto() if there is one and it is large enough.
+     *
+     * @param opcode        The opcode of the frame
+     * @param requestId     The request id that the response will carry
+     * @param payloadLength The number of payload bytes that will follow
+     * @return              A buffer positioned at the start of the payload
+     */
+    public static ByteBuffer allocate(byte opcode, int requestId, int payloadLength) {
+        ByteBuffer[] replyBuffer = BinaryProtocol.replyBuffers.get();
+        ByteBuffer frame;
+
+        // The lent buffer is only good for one frame
+        if (replyBuffer[0] != null && replyBuffer[0].capacity() >= BinaryProtocol.HEADER_LENGTH + payloadLength) {
+            frame = replyBuffer[0];
+            frame.clear().limit(BinaryProtocol.HEADER_LENGTH + payloadLength);
+        } else {
+            frame = ByteBuffer.allocate(BinaryProtocol.HEADER_LENGTH + payloadLength);
+        }
+
+        replyBuffer[0] = null;
+        frame.putInt(1 + 4 + payloadLength);
+        frame.put(opcode);
+        frame.putInt(requestId);
+
+        return frame;
+    }
+
+    public static ByteBuffer findNode(int requestId, long id) {
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.FIND_NODE, requestId, 8);
+        frame.putLong(id);
+        frame.flip();
+
+        return frame;
+    }
+
+    public static ByteBuffer findNextHop(int requestId, long id) {
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.FIND_NEXT_HOP, requestId, 8);
+        frame.putLong(id);
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Creates a batched lookup frame. The payload is the number of hops the batch may still be forwarded, the number of ids and the ids.
+     *
+     * @param requestId The request id
+     * @param ids       The ids to look up
+     * @param hopsLeft  How many more times the receiving node may forward the ids it cannot answer
+     * @return          The frame ready to be written
+     */
+    public static ByteBuffer findNodes(int requestId, long[] ids, int hopsLeft) {
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.FIND_NODES, requestId, 1 + 4 + 8 * ids.length);
+        frame.put((byte) hopsLeft);
+        frame.putInt(ids.length);
+        for (long id : ids) {
+            frame.putLong(id);
+        }
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Creates the response to a batched lookup. Every owner is written as an address and port in the order of the requested ids, an owner that was not found is written as an empty address without a port.
+     *
+     * @param requestId The request id
+     * @param owners    The owners of the requested ids, null where the owner was not found
+     * @return          The frame ready to be written
+     */
+    public static ByteBuffer nodesFound(int requestId, Finger[] owners) {
+        int payloadLength = 4;
+        for (Finger owner : owners) {
+            payloadLength += (owner == null) ? 2 : 2 + owner.getAddressBytes().length + 4;
+        }
+
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.NODES_FOUND, requestId, payloadLength);
+        frame.putInt(owners.length);
+        for (Finger owner : owners) {
+            if (owner == null) {
+                frame.putShort((short) 0);
+            } else {
+                frame.putShort((short) owner.getAddressBytes().length);
+                frame.put(owner.getAddressBytes());
+                frame.putInt(owner.toBinaryPort());
+            }
+        }
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Creates a frame whose payload is the address and port of a finger, used for NODE_FOUND and NEXT_HOP
+     *
+     * @param opcode    The opcode of the frame
+     * @param requestId The request id
+     * @param finger    The finger to send
+     * @return          The frame ready to be written
+     */
+    public static ByteBuffer finger(byte opcode, int requestId, Finger finger) {
+        byte[] address = finger.getAddressBytes();
+
+        ByteBuffer frame = BinaryProtocol.allocate(opcode, requestId, 2 + address.length + 4);
+        frame.putShort((short) address.length);
+        frame.put(address);
+        frame.putInt(finger.toBinaryPort());
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Same as finger(opcode, requestId, finger) with the hop count of the lookup appended
+     */
+    public static ByteBuffer finger(byte opcode, int requestId, Finger finger, int hops) {
+        byte[] address = finger.getAddressBytes();
+
+        ByteBuffer frame = BinaryProtocol.allocate(opcode, requestId, 2 + address.length + 4 + 1);
+        frame.putShort((short) address.length);
+        frame.put(address);
+        frame.putInt(finger.toBinaryPort());
+        frame.put(BinaryProtocol.toHopByte(hops));
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Creates a request for the next batch of a key range transfer. The payload is the phase, the offset and the address and port of the node that owns the range followed by those of the node that takes it over, and for a RECORDS request the keys whose records are asked for, written like the entries of a KEYS frame.
+     *
+     * @param requestId The request id
+     * @param phase     The phase of the transfer
+     * @param offset    Where the batch starts within the phase
+     * @param owner     The virtual node that owns the range
+     * @param receiver  The virtual node that takes the range over
+     * @param keys      The keys whose records are asked for, or null
+     * @return          The frame ready to be written
+     */
+    public static ByteBuffer fetchKeys(int requestId, byte phase, int offset, Finger owner, Finger receiver, KeyBatch keys) {
+        int keysLength = keys != null ? 4 + keys.getBytes() : 0;
+
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.FETCH_KEYS, requestId, 1 + 4 + 2 + owner.getAddressBytes().length + 4 + 2 + receiver.getAddressBytes().length + 4 + keysLength);
+        frame.put(phase);
+        frame.putInt(offset);
+        BinaryProtocol.putFinger(frame, owner);
+        BinaryProtocol.putFinger(frame, receiver);
+        if (keys != null) {
+            BinaryProtocol.putEntries(frame, keys);
+        }
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Creates a batch of a key range transfer. The payload is the offset of the next batch, the predecessor, the number of entries and for every entry a deleted flag, the id and the length prefixed record, which goes from the store into the frame as it is.
+     *
+     * @param requestId The request id
+     * @param batch     The batch to send
+     * @return          The frame ready to be written
+     */
+    public static ByteBuffer keys(int requestId, KeyBatch batch) {
+        Finger predecessor = batch.getPredecessor();
+
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.KEYS, requestId, 4 + 2 + predecessor.getAddressBytes().length + 4 + 4 + batch.getBytes());
+        frame.putInt(batch.getNextOffset());
+        BinaryProtocol.putFinger(frame, predecessor);
+        BinaryProtocol.putEntries(frame, batch);
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Reads the payload of a KEYS frame. The records are copied out of the frame, which is reused for the next response.
+     *
+     * @param frame The frame positioned at the payload
+     * @return      The batch
+     */
+    public static KeyBatch readKeys(ByteBuffer frame) {
+        int nextOffset = frame.getInt();
+
+        KeyBatch batch = new KeyBatch(BinaryProtocol.readFinger(frame));
+        batch.setNextOffset(nextOffset);
+
+        BinaryProtocol.readEntries(frame, batch);
+
+        return batch;
+    }
+
+    /**
+     * Reads the keys of a RECORDS request that follow the fingers of a FETCH_KEYS frame
+     *
+     * @param frame The frame positioned after the fingers
+     * @return      The keys as a batch of deleted keys, or null if the frame carries none
+     */
+    public static KeyBatch readRequestedKeys(ByteBuffer frame) {
+        if (!frame.hasRemaining()) {
+            return null;
+        }
+
+        KeyBatch keys = new KeyBatch(null);
+        BinaryProtocol.readEntries(frame, keys);
+
+        return keys;
+    }
+
+    private static void putEntries(ByteBuffer frame, KeyBatch batch) {
+        frame.putInt(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] record = batch.getRecord(i);
+
+            frame.put((byte) (batch.isDeleted(i) ? 1 : 0));
+            frame.putLong(batch.getId(i));
+            frame.putInt(record.length);
+            frame.put(record);
+        }
+    }
+
+    private static void readEntries(ByteBuffer frame, KeyBatch batch) {
+        // Every entry takes at least its flag, id and length
+        int count = BinaryProtocol.checkLength(frame, frame.getInt(), 1 + 8 + 4);
+        for (int i = 0; i < count; i++) {
+            boolean deleted = frame.get() != 0;
+            long id = frame.getLong();
+            byte[] record = new byte[BinaryProtocol.checkLength(frame, frame.getInt(), 1)];
+            frame.get(record);
+
+            if (deleted) {
+                batch.addDeleted(id, record);
+            } else {
+                batch.add(id, record);
+            }
+        }
+    }
+
+    public static ByteBuffer ping(int requestId, long id) {
+        ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.PING_QUERY, requestId, 8);
+        frame.putLong(id);
+        frame.flip();
+
+        return frame;
+    }
+
+    public static ByteBuffer empty(byte opcode, int requestId) {
+        ByteBuffer frame = BinaryProtocol.allocate(opcode, requestId, 0);
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Creates a frame whose payload is a single length prefixed byte sequence, used for TEXT, FIND_VALUE and VALUE_FOUND
+     *
+     * @param opcode    The opcode of the frame
+     * @param requestId The request id
+     * @param bytes     The payload bytes
+     * @return          The frame ready to be written
+     */
+    public static ByteBuffer bytes(byte opcode, int requestId, byte[] bytes) {
+        ByteBuffer frame = BinaryProtocol.allocate(opcode, requestId, 4 + bytes.length);
+        frame.putInt(bytes.length);
+        frame.put(bytes);
+        frame.flip();
+
+        return frame;
+    }
+
+    public static ByteBuffer text(byte opcode, int requestId, String text) {
+        return BinaryProtocol.bytes(opcode, requestId, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same as text(opcode, requestId, text) with the hop count of the lookup appended
+     */
+    public static ByteBuffer text(byte opcode, int requestId, String text, int hops) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer frame = BinaryProtocol.allocate(opcode, requestId, 4 + bytes.length + 1);
+        frame.putInt(bytes.length);
+        frame.put(bytes);
+        frame.put(BinaryProtocol.toHopByte(hops));
+        frame.flip();
+
+        return frame;
+    }
+
+    /**
+     * Reads the hop count that may follow the payload of a lookup response
+     *
+     * @param frame The frame positioned after the payload
+     * @return      The number of hops, or -1 if the response does not carry one
+     */
+    public static int readHops(ByteBuffer frame) {
+        return frame.hasRemaining() ? frame.get() & 0xFF : -1;
+    }
+
+    private static void putFinger(ByteBuffer frame, Finger finger) {
+        frame.putShort((short) finger.getAddressBytes().length);
+        frame.put(finger.getAddressBytes());
+        frame.putInt(finger.toBinaryPort());
+    }
+
+    private static byte toHopByte(int hops) {
+        return (byte) Math.min(hops, 255);
+    }
+
+    /**
+     * Reads a length prefixed byte sequence from the payload of a frame as a string
+     *
+     * @param frame The frame positioned at the byte sequence
+     * @return      The decoded string
+     */
+    public static String readText(ByteBuffer frame) {
+        int length = BinaryProtocol.checkLength(frame, frame.getInt(), 1);
+        String text = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+
+        return text;
+    }
+
+    /**
+     * Reads the address and port of a NODE_FOUND or NEXT_HOP payload
+     *
+     * @param frame The frame positioned at the payload
+     * @return      The finger that was found
+     */
+    public static Finger readFinger(ByteBuffer frame) {
+        int length = BinaryProtocol.checkLength(frame, frame.getShort(), 1);
+
+        // An empty address marks an owner that was not found in a NODES_FOUND payload
+        if (length == 0) {
+            return null;
+        }
+
+        String address = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+
+        return Finger.fromBinary(address, frame.getInt());
+    }
+
+    /**
+     * Checks a count or length that the other side sent against the bytes left in the frame, before anything is allocated for it
+     *
+     * @param frame         The frame the count or length was read from
+     * @param length        The count or length
+     * @param minimumBytes  The fewest bytes a single unit takes in the frame
+     * @return              The count or length
+     * @throws BufferUnderflowException If the frame cannot hold that many units, which the handlers answer like any other short frame
+     */
+    private static int checkLength(ByteBuffer frame, int length, int minimumBytes) {
+        if (length < 0 || length > frame.remaining() / minimumBytes) {
+            throw new BufferUnderflowException();
+        }
+
+        return length;
+    }
+
+}
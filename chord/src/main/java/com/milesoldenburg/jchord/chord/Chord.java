@@ -4,12 +4,58 @@ public class Chord {
 
     public final static String  NEW_PREDECESSOR     = "NEW_PREDECESSOR";
     public final static String  FIND_VALUE          = "FIND_VALUE";
+    public final static String  VALUE_FOUND         = "VALUE_FOUND";
+    public final static String  STORE               = "STORE";
+    public final static String  STORED              = "STORED";
+    public final static String  GET                 = "GET";
+    public final static String  DELETE              = "DELETE";
+    public final static String  DELETED             = "DELETED";
     public final static String  FIND_NODE           = "FIND_NODE";
     public final static String  NODE_FOUND          = "NODE_FOUND";
+    public final static String  FIND_NODES          = "FIND_NODES";
+    public final static String  NODES_FOUND         = "NODES_FOUND";
+    public final static String  FIND_NEXT_HOP       = "FIND_NEXT_HOP";
+    public final static String  NEXT_HOP            = "NEXT_HOP";
     public final static String  REQUEST_PREDECESSOR = "REQUEST_PREDECESSOR";
+    public final static String  EXCHANGE_SUCCESSORS = "EXCHANGE_SUCCESSORS";
+    public final static String  SUCCESSORS          = "SUCCESSORS";
+    public final static String  NOT_OWNER           = "NOT_OWNER";
+    public final static String  REPLICATE           = "REPLICATE";
+    public final static String  FIND_REPLICAS       = "FIND_REPLICAS";
+    public final static String  REPLICAS_FOUND      = "REPLICAS_FOUND";
+    public final static String  FETCH_KEYS          = "FETCH_KEYS";
+    public final static String  KEYS                = "KEYS";
+    public final static String  LEAVING             = "LEAVING";
+    public final static String  COPY_RANGE          = "COPY_RANGE";
+    public final static String  STATS               = "STATS";
+    public final static String  TRACE               = "TRACE";
     public final static String  PING_QUERY          = "IS THERE ANYONE OUT THERE?";
     public final static String  PING_RESPONSE       = "REUNITED";
-    public final static long    RING_SIZE           = 4294967296L;
+    public final static int     MAX_HOPS            = 64;
+
+    // Runtime settings, overridable with -Djchord.* system properties
+    public final static String  LISTENER            = System.getProperty("jchord.listener", "nio");
+    public final static int     IO_THREADS          = Integer.getInteger("jchord.io.threads", 2);
+    public final static int     WORKER_THREADS      = Integer.getInteger("jchord.worker.threads", 64);
+    public final static String  THREADS             = System.getProperty("jchord.threads", "platform");
+    public final static boolean ITERATIVE_LOOKUP    = !"recursive".equals(System.getProperty("jchord.lookup", "iterative"));
+    public final static boolean BINARY_PROTOCOL     = !"text".equals(System.getProperty("jchord.protocol", "binary"));
+    public final static int     RING_BITS           = Math.max(8, Math.min(64, Integer.getInteger("jchord.ring.bits", 32)));
+    public final static long    RING_MASK           = -1L >>> (64 - RING_BITS);
+    public final static int     VIRTUAL_NODES       = Math.max(1, Math.min(1024, Integer.getInteger("jchord.virtual.nodes", 1)));
+    public final static int     SUCCESSORS_LENGTH   = Math.max(1, Integer.getInteger("jchord.successors", 4));
+    public final static int     REPLICATION_FACTOR  = Math.max(1, Math.min(SUCCESSORS_LENGTH + 1, Integer.getInteger("jchord.replicas", 3)));
+    public final static int     WRITE_QUORUM        = Math.max(1, Math.min(REPLICATION_FACTOR, Integer.getInteger("jchord.write.quorum", REPLICATION_FACTOR / 2 + 1)));
+    public final static int     READ_HEDGE_MILLIS   = Math.max(0, Integer.getInteger("jchord.read.hedge", 20));
+    public final static int     LOCATION_CACHE_SIZE = Integer.getInteger("jchord.location.cache", 1024);
+    public final static String  LOG_LEVEL           = System.getProperty("jchord.log", "info");
+    public final static double  TRACE_SAMPLE_RATE   = Double.parseDouble(System.getProperty("jchord.trace.sample", "0"));
+    public final static int     HEARTBEAT_INTERVAL  = Math.max(10, Integer.getInteger("jchord.heartbeat.interval", 1000));
+    public final static int     HEARTBEAT_PAUSE     = Math.max(0, Integer.getInteger("jchord.heartbeat.pause", 1000));
+    public final static boolean PROXIMITY_ROUTING   = Boolean.parseBoolean(System.getProperty("jchord.proximity", "true"));
+    public final static double  FAILURE_PHI         = Double.parseDouble(System.getProperty("jchord.failure.phi", "8"));
+    public final static String  DATA_DIR            = System.getProperty("jchord.data.dir");
+    public final static int     SEGMENT_MB          = Math.max(1, Integer.getInteger("jchord.segment.mb", 64));
 
     public static void main(String[] args) {
         // Check arguments
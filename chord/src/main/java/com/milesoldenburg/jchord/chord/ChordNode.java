@@ -1,29 +1,46 @@
 package com.milesoldenburg.jchord.chord;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.math.BigInteger;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
 
+/**
+ * A Chord process. It serves one or more positions on the ring, its virtual nodes, which each keep their own fingers, successors and predecessors while sharing the listener, the connection pool and the store. More positions per process split the ring into more and smaller ranges, so the keys spread more evenly over the processes.
+ */
 public class ChordNode {
 
     private String address;
     private int port;
     private String existingNodeAddress = null;
     private int existingNodePort;
-    private Finger secondPredecessor;
-    private Finger firstPredecessor;
-    private Finger firstSuccessor;
-    private Finger secondSuccessor;
-    private Map<Integer, Finger> fingers = new HashMap<>();
+    private AtomicReferenceArray<RoutingTable> routingTables = new AtomicReferenceArray<>(Chord.VIRTUAL_NODES);
+    private long[][] fingerStarts = new long[Chord.VIRTUAL_NODES][];
+    private volatile int virtualNodeCount = 0;
+    private volatile Finger joiningNode = null;
+    private volatile Finger joiningSuccessor = null;
+    private volatile CountDownLatch joined = new CountDownLatch(0);
     private long id;
     private String hex;
+    private Finger self;
     private Semaphore semaphore = new Semaphore(1);
+    private ConnectionPool connectionPool = new ConnectionPool(this);
+    private KeyValueStore store = new KeyValueStore();
+    private LocationCache locationCache = new LocationCache(Chord.LOCATION_CACHE_SIZE);
+    private Metrics metrics = new Metrics(this.locationCache);
+    private ProximityTable proximityTable = new ProximityTable();
+    private Replicator replicator = new Replicator(this);
+    private KeyHandoff keyHandoff = new KeyHandoff(this);
+    private FailureDetector failureDetector = new FailureDetector(Chord.HEARTBEAT_INTERVAL, Chord.HEARTBEAT_PAUSE, Chord.HEARTBEAT_INTERVAL / 10);
+    private boolean virtualThreads = false;
+    private ExecutorService executor;
 
     /**
      * Constructor for creating a new Chord node that is the first in the ring.
@@ -40,20 +57,25 @@ public class ChordNode {
         SHA1Hasher sha1Hasher = new SHA1Hasher(this.address + ":" + this.port);
         this.id = sha1Hasher.getLong();
         this.hex = sha1Hasher.getHex();
+        this.self = Finger.of(this.address, this.port);
+
+        // Created once the node knows its id, which its errors are logged under
+        this.executor = this.createExecutor();
 
         // Logging
-        System.out.println("Creating a new Chord ring");
-        System.out.println("You are listening on port " + this.port);
-        System.out.println("Your position is " + this.hex + " (" + this.id + ")");
+        Log.info("Creating a new Chord ring");
+        Log.info("You are listening on port " + this.port);
+        this.logPositions();
+
+        this.metrics.register(this.port);
+        this.openStore();
 
-        // Initialize finger table and successors
-        this.initializeFingers();
-        this.initializeSuccessors();
+        // The virtual nodes are the whole ring, so their fingers and successors are known right away
+        this.initializeLocalRing();
 
         // Start listening for connections and heartbeats from neighbors
-        new Thread(new NodeListener(this)).start();
-        new Thread(new NodeStabilizer(this)).start();
-        new Thread(new Heart(this)).start();
+        this.startListener();
+        this.startServices();
     }
 
     /**
@@ -77,106 +99,320 @@ public class ChordNode {
         SHA1Hasher sha1Hasher = new SHA1Hasher(this.address + ":" + this.port);
         this.id = sha1Hasher.getLong();
         this.hex = sha1Hasher.getHex();
+        this.self = Finger.of(this.address, this.port);
+
+        // Created once the node knows its id, which its errors are logged under
+        this.executor = this.createExecutor();
 
         // Logging
-        System.out.println("Joining the Chord ring");
-        System.out.println("You are listening on port " + this.port);
-        System.out.println("Connected to existing node " + this.existingNodeAddress + ":" + this.existingNodePort);
-        System.out.println("Your position is " + this.hex + " (" + this.id + ")");
+        Log.info("Joining the Chord ring");
+        Log.info("You are listening on port " + this.port);
+        Log.info("Connected to existing node " + this.existingNodeAddress + ":" + this.existingNodePort);
+        this.logPositions();
+
+        this.metrics.register(this.port);
+        this.openStore();
 
-        // Initialize finger table and successors
-        this.initializeFingers();
-        this.initializeSuccessors();
+        // Listen before joining, the successor sends lookups our way as soon as it handed over our keys
+        this.startListener();
+
+        // Every virtual node joins through the existing node, one after the other
+        for (int virtualNode = 0; virtualNode < Chord.VIRTUAL_NODES; virtualNode++) {
+            this.initializeSuccessors(virtualNode, this.initializeFingers(virtualNode));
+        }
 
         // Start listening for connections and heartbeats from neighbors
-        new Thread(new NodeListener(this)).start();
-        new Thread(new NodeStabilizer(this)).start();
-        new Thread(new Heart(this)).start();
+        this.startServices();
+    }
+
+    /**
+     * Brings back the keys this process stored before it was restarted, if a data directory is set. Every process keeps its log in a directory of its own named after its port, so several processes can share a data directory.
+     */
+    private void openStore() {
+        if (Chord.DATA_DIR == null) {
+            return;
+        }
+
+        try {
+            long start = System.nanoTime();
+            Path directory = Paths.get(Chord.DATA_DIR, String.valueOf(this.port));
+            int entries = this.store.persistTo(new SegmentLog(directory, Chord.SEGMENT_MB * 1024L * 1024L));
+
+            Log.info("Recovered " + this.store.size() + " keys from " + entries + " log entries in " + directory + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException e) {
+            this.logError("Could not open the data directory, keeping keys in memory only", e);
+        }
+    }
+
+    /**
+     * Starts the connection pool and the listener
+     */
+    private void startListener() {
+        this.executor.execute(this.connectionPool);
+        new Thread(this.createListener()).start();
+    }
+
+    /**
+     * Starts the background loops. Every virtual node runs its own stabilizer, a single heart watches the neighbors of all of them, and a persistent store compacts its log. Once the process is asked to exit it hands its keys over to the nodes that follow it, closes its pooled connections and forces its log to disk.
+     */
+    private void startServices() {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            this.keyHandoff.leave();
+            this.connectionPool.close();
+            this.store.close();
+        }, "jchord-leave"));
+
+        if (this.store.getLog() != null) {
+            this.executor.execute(this.store.getLog());
+        }
+
+        for (int virtualNode = 0; virtualNode < this.virtualNodeCount; virtualNode++) {
+            this.executor.execute(new NodeStabilizer(this, virtualNode));
+        }
+
+        this.executor.execute(new Heart(this));
+    }
+
+    private void logPositions() {
+        Log.info("Your position is " + this.hex + " (" + Long.toUnsignedString(this.id) + ")");
+
+        for (int virtualNode = 1; virtualNode < Chord.VIRTUAL_NODES; virtualNode++) {
+            SHA1Hasher sha1Hasher = new SHA1Hasher(Finger.of(this.address, this.port, virtualNode).toString());
+            Log.info("Virtual node " + virtualNode + " is at " + sha1Hasher.getHex() + " (" + Long.toUnsignedString(sha1Hasher.getLong()) + ")");
+        }
     }
 
     /**
-     * Initializes finger table. If an existing node has been defined it will use that node to perform lookups. Otherwise, this node is the only node in the ring and all fingers will refer to self.
+     * Initializes the routing tables of a new ring that consists of the virtual nodes of this process only. Every finger and successor is the first virtual node at or after the id it points at, and the predecessors are the virtual nodes just before.
      */
-    private void initializeFingers() {
-        // If this ring is the only node in the ring
-        if (this.existingNodeAddress == null) {
-            // Initialize all fingers to refer to self
-            for (int i = 0; i < 32; i++) {
-                this.fingers.put(i, new Finger(this.address, this.port));
+    private void initializeLocalRing() {
+        Finger[] selves = new Finger[Chord.VIRTUAL_NODES];
+        for (int virtualNode = 0; virtualNode < selves.length; virtualNode++) {
+            selves[virtualNode] = Finger.of(this.address, this.port, virtualNode);
+        }
+
+        for (int virtualNode = 0; virtualNode < selves.length; virtualNode++) {
+            Finger self = selves[virtualNode];
+
+            long[] fingerStarts = this.getFingerStarts(virtualNode);
+            Finger[] fingers = new Finger[fingerStarts.length];
+            for (int i = 0; i < fingers.length; i++) {
+                fingers[i] = ChordNode.findFirstAtOrAfter(selves, fingerStarts[i]);
             }
-        } else {
-            // Open connection to contact node
-            try {
-                Socket socket = new Socket(this.existingNodeAddress, this.existingNodePort);
 
-                // Open reader/writer to chord node
-                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // Successors in ring order up to the list length, just ourselves if we are alone
+            Finger[] successors = new Finger[Math.max(1, Math.min(Chord.SUCCESSORS_LENGTH, selves.length - 1))];
+            successors[0] = self;
+            Finger successor = self;
+            for (int i = 0; i < successors.length && selves.length > 1; i++) {
+                successor = ChordNode.findFirstAtOrAfter(selves, successor.getId() + 1);
+                successors[i] = successor;
+            }
 
-                BigInteger bigQuery = BigInteger.valueOf(2L);
-                BigInteger bigSelfId = BigInteger.valueOf(this.id);
+            Finger firstPredecessor = ChordNode.findLastBefore(selves, self.getId());
+            Finger secondPredecessor = ChordNode.findLastBefore(selves, firstPredecessor.getId());
 
-                for (int i = 0; i < 32; i++) {
-                    BigInteger bigResult = bigQuery.pow(i);
-                    bigResult = bigResult.add(bigSelfId);
+            this.routingTables.set(virtualNode, new RoutingTable(self, fingers, successors, firstPredecessor, secondPredecessor));
+        }
 
-                    // Send query to chord
-                    socketWriter.println(Chord.FIND_NODE + ":" + bigResult.longValue());
-                    System.out.println("Sent: " + Chord.FIND_NODE + ":" + bigResult.longValue());
+        this.virtualNodeCount = selves.length;
+    }
 
-                    // Read response from chord
-                    String serverResponse = socketReader.readLine();
+    /**
+     * @return  The node whose id comes first going clockwise from the given id, including the id itself
+     */
+    private static Finger findFirstAtOrAfter(Finger[] nodes, long id) {
+        Finger first = null;
+        long firstDistance = 0;
 
-                    // Parse out address and port
-                    String[] serverResponseFragments = serverResponse.split(":", 2);
-                    String[] addressFragments = serverResponseFragments[1].split(":");
+        for (Finger node : nodes) {
+            long distance = RoutingTable.distance(id, node.getId());
 
-                    // Add response finger to table
-                    this.fingers.put(i, new Finger(addressFragments[0], Integer.valueOf(addressFragments[1])));
+            if (first == null || Long.compareUnsigned(distance, firstDistance) < 0) {
+                first = node;
+                firstDistance = distance;
+            }
+        }
 
-                    System.out.println("Received: " + serverResponse);
-                }
+        return first;
+    }
 
-                // Close connections
-                socketWriter.close();
-                socketReader.close();
-                socket.close();
-            } catch (IOException e) {
-                this.logError("Could not open connection to existing node");
-                e.printStackTrace();
+    /**
+     * @return  The node whose id comes last going clockwise before the given id, the node at the id itself if there is no other
+     */
+    private static Finger findLastBefore(Finger[] nodes, long id) {
+        Finger last = null;
+        long lastDistance = 0;
+
+        for (Finger node : nodes) {
+            // The node at the id itself is the furthest away, so it is only picked if it is the only one
+            long distance = RoutingTable.distance(node.getId() + 1, id);
+
+            if (last == null || Long.compareUnsigned(distance, lastDistance) < 0) {
+                last = node;
+                lastDistance = distance;
             }
         }
+
+        return last;
     }
 
     /**
-     * Initializes successors. Uses the finger table to get the successors and defaults the predecessors to self until it learns about new ones.
+     * Looks up all fingers of a virtual node through the existing node
+     *
+     * @param virtualNode   The virtual node to initialize
+     * @return              The fingers by index
      */
-    private void initializeSuccessors() {
-        this.firstSuccessor = this.fingers.get(0);
-        this.secondSuccessor = this.fingers.get(1);
-        this.firstPredecessor = new Finger(this.address, this.port);
-        this.secondPredecessor = new Finger(this.address, this.port);
+    private Finger[] initializeFingers(int virtualNode) {
+        Finger self = Finger.of(this.address, this.port, virtualNode);
+        Finger[] fingers = new Finger[Chord.RING_BITS];
 
-        // Notify the first successor that we are the new predecessor, provided we do not open a connection to ourselves
-        if (!this.address.equals(this.firstSuccessor.getAddress()) || (this.port != this.firstSuccessor.getPort())) {
+        // If this ring is the only node in the ring all fingers refer to self
+        if (this.existingNodeAddress != null) {
+            // Send lookups to the contact node over a pooled connection
             try {
-                Socket socket = new Socket(this.firstSuccessor.getAddress(), this.firstSuccessor.getPort());
+                Finger existingNode = Finger.of(this.existingNodeAddress, this.existingNodePort);
 
-                // Open writer to successor node
-                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
+                // Look up all fingers in a single batch
+                long[] fingerStarts = this.getFingerStarts(virtualNode);
+                Finger[] found = this.connectionPool.findNodes(existingNode, fingerStarts, Chord.MAX_HOPS);
+                Log.debug(() -> "Sent: " + Chord.FIND_NODES + " with " + fingerStarts.length + " ids");
 
-                // Tell successor that this node is its new predecessor
-                socketWriter.println(Chord.NEW_PREDECESSOR + ":" + this.getAddress() + ":" + this.getPort());
-                System.out.println("Sent: " + Chord.NEW_PREDECESSOR + ":" + this.getAddress() + ":" + this.getPort() + " to " + this.firstSuccessor.getAddress() + ":" + this.firstSuccessor.getPort());
+                for (int i = 0; i < fingers.length; i++) {
+                    if (found[i] == null) {
+                        throw new IOException("Existing node could not find " + Long.toUnsignedString(fingerStarts[i]));
+                    }
 
-                // Close connections
-                socketWriter.close();
-                socket.close();
+                    // Add response finger to table
+                    fingers[i] = found[i];
+
+                    Finger finger = found[i];
+                    Log.debug(() -> "Received: " + Chord.NODE_FOUND + ":" + finger.getAddress() + ":" + finger.getPort());
+                }
             } catch (IOException e) {
-                this.logError("Could not open connection to first successor");
-                e.printStackTrace();
+                this.logError("Could not open connection to existing node", e);
+            }
+        }
+
+        // Fingers that could not be resolved refer to self until the stabilizer fixes them
+        for (int i = 0; i < fingers.length; i++) {
+            if (fingers[i] == null) {
+                fingers[i] = self;
+            }
+        }
+
+        return fingers;
+    }
+
+    /**
+     * Initializes the successors of a virtual node and publishes its routing table. Uses the first finger as the only successor until the stabilizer fetches the rest of the list. Before the successor learns about us we take over our part of its keys, and the node the range starts after becomes our predecessor. The routing table is published once the successor handed the range over, so lookups for the range end here from then on, but commands for the range wait until the transfer is complete, so the virtual node never answers for keys it does not have yet.
+     *
+     * @param virtualNode   The virtual node to initialize
+     * @param fingers       The fingers of the virtual node
+     */
+    private void initializeSuccessors(int virtualNode, Finger[] fingers) {
+        Finger self = Finger.of(this.address, this.port, virtualNode);
+        Finger firstSuccessor = fingers[0];
+
+        // A successor that is one of our own virtual nodes is told without a message, and we never open a connection to ourselves
+        if (this.isLocal(firstSuccessor)) {
+            Finger predecessor = firstSuccessor.equals(self) ? self : this.routingTables.get(firstSuccessor.getVirtualNode()).getFirstPredecessor();
+            this.publishRoutingTable(virtualNode, fingers, predecessor);
+
+            if (!firstSuccessor.equals(self)) {
+                this.notifyPredecessor(firstSuccessor.getVirtualNode(), self);
+            }
+
+            return;
+        }
+
+        this.joined = new CountDownLatch(1);
+        this.joiningNode = self;
+        this.joiningSuccessor = firstSuccessor;
+
+        try {
+            // The successor adopts us as its predecessor when it hands the range over
+            this.keyHandoff.pull(firstSuccessor, self, predecessor -> this.publishRoutingTable(virtualNode, fingers, predecessor));
+        } catch (IOException e) {
+            this.logError("Could not take over keys from first successor, joining without them", e);
+        } finally {
+            if (this.routingTables.get(virtualNode) == null) {
+                this.publishRoutingTable(virtualNode, fingers, this.joinWithoutKeys(self, firstSuccessor));
+            }
+
+            this.joiningSuccessor = null;
+            this.joiningNode = null;
+            this.joined.countDown();
+        }
+    }
+
+    /**
+     * Asks the successor for its predecessor, which our range starts after, and then tells the successor that we are its new predecessor
+     *
+     * @return  The predecessor of the successor, or the successor itself if it did not answer
+     */
+    private Finger joinWithoutKeys(Finger self, Finger firstSuccessor) {
+        Finger predecessor = null;
+
+        try {
+            predecessor = Finger.parse(this.connectionPool.send(firstSuccessor, Chord.REQUEST_PREDECESSOR));
+        } catch (IOException | NumberFormatException e) {
+            this.logError("Could not request the predecessor of first successor", e);
+        }
+
+        try {
+            // Tell successor that this node is its new predecessor
+            this.connectionPool.write(firstSuccessor, Chord.NEW_PREDECESSOR + ":" + self);
+            Log.debug(() -> "Sent: " + Chord.NEW_PREDECESSOR + ":" + self + " to " + firstSuccessor);
+        } catch (IOException e) {
+            this.logError("Could not open connection to first successor", e);
+        }
+
+        return predecessor != null && !predecessor.equals(self) ? predecessor : firstSuccessor;
+    }
+
+    /**
+     * Publishes the routing table of a virtual node that joined, from then on it answers for the range after its predecessor
+     */
+    private void publishRoutingTable(int virtualNode, Finger[] fingers, Finger predecessor) {
+        Finger self = Finger.of(this.address, this.port, virtualNode);
+
+        this.routingTables.set(virtualNode, new RoutingTable(self, fingers, new Finger[] {fingers[0]}, predecessor, self));
+        this.virtualNodeCount = virtualNode + 1;
+    }
+
+    /**
+     * Creates the executor that runs client handlers and background loops. With the jchord.threads setting set to virtual every task gets its own virtual thread, otherwise tasks run on a cached pool of platform threads.
+     *
+     * @return  The executor owned by this node
+     */
+    private ExecutorService createExecutor() {
+        if ("virtual".equals(Chord.THREADS)) {
+            try {
+                // Looked up reflectively so the node still builds and runs on JVMs without virtual threads
+                Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                this.virtualThreads = true;
+
+                return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                this.logError("Virtual threads are not available on this JVM, using platform threads");
             }
         }
+
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates the listener selected by the jchord.listener setting. The NIO listener serves all clients from a few threads, the blocking listener starts a thread per client.
+     *
+     * @return  The listener to run
+     */
+    private Runnable createListener() {
+        if ("blocking".equals(Chord.LISTENER)) {
+            return new NodeListener(this);
+        }
+
+        return new NioNodeListener(this);
     }
 
     /**
@@ -185,14 +421,27 @@ public class ChordNode {
      * @param errorMessage  The message to print to the console
      */
     private void logError(String errorMessage) {
-        System.err.println("Error (" + this.id + "): " + errorMessage);
+        this.logError(errorMessage, null);
+    }
+
+    /**
+     * Logs error messages to the console
+     *
+     * @param errorMessage  The message to print to the console
+     * @param cause         The exception that caused the error
+     */
+    private void logError(String errorMessage, Throwable cause) {
+        Log.error("Error (" + this.id + "): " + errorMessage, cause);
     }
 
     public void acquire() {
+        long start = System.nanoTime();
+
         try {
             this.semaphore.acquire();
+            this.metrics.recordLockWait(start);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Log.error("Interrupted while waiting for the routing table lock", e);
         }
     }
 
@@ -200,56 +449,292 @@ public class ChordNode {
         this.semaphore.release();
     }
 
-    public Map<Integer, Finger> getFingers() {
-        return this.fingers;
+    /**
+     * Applies a change to the routing table of the first virtual node and publishes the result
+     *
+     * @param update    Builds the new table from the current one
+     * @return          The table that was published
+     */
+    public RoutingTable updateRoutingTable(UnaryOperator<RoutingTable> update) {
+        return this.updateRoutingTable(0, update);
     }
 
-    public int getPort() {
-        return this.port;
+    /**
+     * Applies a change to the routing table of a virtual node and publishes the result. Writers are serialized by the node lock, readers never wait and keep using whichever snapshot they already hold.
+     *
+     * @param virtualNode   The virtual node whose table changes
+     * @param update        Builds the new table from the current one
+     * @return              The table that was published
+     */
+    public RoutingTable updateRoutingTable(int virtualNode, UnaryOperator<RoutingTable> update) {
+        this.acquire();
+
+        try {
+            RoutingTable oldRoutingTable = this.routingTables.get(virtualNode);
+            RoutingTable newRoutingTable = update.apply(oldRoutingTable);
+            this.routingTables.set(virtualNode, newRoutingTable);
+
+            // Replicas that are new or lack part of a range that grew are asked to copy it
+            if (newRoutingTable != oldRoutingTable) {
+                this.replicator.copyToNewReplicas(oldRoutingTable, newRoutingTable);
+            }
+
+            return newRoutingTable;
+        } finally {
+            this.release();
+        }
     }
 
-    public String getAddress() {
-        return this.address;
+    /**
+     * Adopts a node that announced itself as the predecessor of a virtual node if it is closer than the predecessor the virtual node knows
+     *
+     * @param virtualNode   The virtual node the announcement is for
+     * @param candidate     The node that announced itself
+     */
+    public void notifyPredecessor(int virtualNode, Finger candidate) {
+        this.updateRoutingTable(virtualNode, routingTable -> routingTable.isCloserPredecessor(candidate) ? routingTable.withNewPredecessor(candidate) : routingTable);
     }
 
-    public Finger getFirstSuccessor() {
-        return this.firstSuccessor;
+    /**
+     * Forgets a node that could not be reached. Pooled connections to it are closed and it is dropped from the routing tables of all virtual nodes together with the other virtual nodes of its process, so the next lookup or stabilization round moves on to the next candidate right away.
+     *
+     * @param failedNode    The node that could not be reached
+     */
+    public void removeNode(Finger failedNode) {
+        // Our own virtual nodes are reached without the network, they cannot fail on their own
+        if (this.isLocal(failedNode)) {
+            return;
+        }
+
+        this.connectionPool.invalidate(failedNode);
+        this.locationCache.invalidate(failedNode);
+        this.failureDetector.forget(failedNode);
+        this.proximityTable.forget(failedNode);
+        this.replicator.forget(failedNode);
+        for (int virtualNode = 0; virtualNode < this.virtualNodeCount; virtualNode++) {
+            this.updateRoutingTable(virtualNode, routingTable -> routingTable.withoutNode(failedNode));
+        }
+
+        Log.warn("Removed unreachable node " + failedNode);
     }
 
-    public void setFirstSuccessor(Finger firstSuccessor) {
-        this.firstSuccessor = firstSuccessor;
+    /**
+     * @return  The routing table of the first virtual node
+     */
+    public RoutingTable getRoutingTable() {
+        return this.routingTables.get(0);
     }
 
-    public Finger getFirstPredecessor() {
-        return this.firstPredecessor;
+    public RoutingTable getRoutingTable(int virtualNode) {
+        return this.routingTables.get(virtualNode);
+    }
+
+    /**
+     * Picks the virtual node that answers for an id: the one that owns it, otherwise the one closest before it, whose successor or fingers get closest to the id
+     *
+     * @param queryId   The id that is looked up
+     * @return          The routing table of that virtual node
+     */
+    public RoutingTable findRoutingTable(long queryId) {
+        int count = this.virtualNodeCount;
+        if (count == 1) {
+            return this.routingTables.get(0);
+        }
+
+        RoutingTable closestPreceding = null;
+        long closestDistance = 0;
+        for (int virtualNode = 0; virtualNode < count; virtualNode++) {
+            RoutingTable routingTable = this.routingTables.get(virtualNode);
+
+            if (routingTable.doesQueryIdBelongToCurrentNode(queryId)) {
+                return routingTable;
+            }
+
+            long distance = RoutingTable.distance(routingTable.getSelf().getId(), queryId);
+            if (closestPreceding == null || Long.compareUnsigned(distance, closestDistance) < 0) {
+                closestPreceding = routingTable;
+                closestDistance = distance;
+            }
+        }
+
+        return closestPreceding;
+    }
+
+    /**
+     * Picks the virtual node that a node at the given id considers its successor: the first of our virtual nodes clockwise after the id
+     *
+     * @param id    The id of the other node
+     * @return      The virtual node
+     */
+    public int findVirtualSuccessor(long id) {
+        int successor = 0;
+        long successorDistance = 0;
+
+        for (int virtualNode = 0; virtualNode < this.virtualNodeCount; virtualNode++) {
+            long distance = RoutingTable.distance(id + 1, this.routingTables.get(virtualNode).getSelf().getId());
+
+            if (virtualNode == 0 || Long.compareUnsigned(distance, successorDistance) < 0) {
+                successor = virtualNode;
+                successorDistance = distance;
+            }
+        }
+
+        return successor;
     }
 
-    public void setFirstPredecessor(Finger firstPredecessor) {
-        this.firstPredecessor = firstPredecessor;
+    /**
+     * @param node  The node to check
+     * @return      True if the node is one of the virtual nodes of this process
+     */
+    public boolean isLocal(Finger node) {
+        return node.isSameProcess(this.self);
     }
 
-    public Finger getSecondSuccessor() {
-        return secondSuccessor;
+    /**
+     * @param node  The node to look for
+     * @return      True if the node appears in the routing table of any virtual node
+     */
+    public boolean isKnown(Finger node) {
+        for (int virtualNode = 0; virtualNode < this.virtualNodeCount; virtualNode++) {
+            if (this.routingTables.get(virtualNode).contains(node)) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
-    public void setSecondSuccessor(Finger secondSuccessor) {
-        this.secondSuccessor = secondSuccessor;
+    public int getVirtualNodeCount() {
+        return this.virtualNodeCount;
+    }
+
+    /**
+     * Finds the successor that still answers for an id because the virtual node of this process that takes the id over has not been handed the range yet
+     *
+     * @param routingTable  The routing table that answers for the id, or null before any virtual node joined
+     * @param queryId       The id
+     * @return              The successor, or null if one of our virtual nodes answers for the id
+     */
+    public Finger findJoiningSuccessor(RoutingTable routingTable, long queryId) {
+        Finger joiningSuccessor = this.joiningSuccessor;
+
+        if (joiningSuccessor == null || (routingTable != null && routingTable.doesQueryIdBelongToCurrentNode(queryId))) {
+            return null;
+        }
+
+        return joiningSuccessor;
+    }
+
+    /**
+     * Waits until a virtual node that was handed its range has taken over the rest of it. Commands reach the virtual node as soon as the successor handed the range over, while the keys written in the meantime only arrive once the transfer is closed.
+     *
+     * @param routingTable  The routing table that answers for a command
+     */
+    public void awaitJoined(RoutingTable routingTable) {
+        CountDownLatch joined = this.joined;
+
+        if (!routingTable.getSelf().equals(this.joiningNode)) {
+            return;
+        }
+
+        try {
+            joined.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    public Finger getFirstSuccessor() {
+        return this.getRoutingTable().getFirstSuccessor();
+    }
+
+    public Finger getFirstPredecessor() {
+        return this.getRoutingTable().getFirstPredecessor();
     }
 
     public Finger getSecondPredecessor() {
-        return secondPredecessor;
+        return this.getRoutingTable().getSecondPredecessor();
     }
 
-    public void setSecondPredecessor(Finger secondPredecessor) {
-        this.secondPredecessor = secondPredecessor;
+    /**
+     * @param virtualNode   The virtual node
+     * @return              The ids that the fingers of the virtual node point at, id + 2^i for every finger i. The ids never change, so they are computed once and the array must not be modified.
+     */
+    public long[] getFingerStarts(int virtualNode) {
+        long[] fingerStarts = this.fingerStarts[virtualNode];
+        if (fingerStarts != null) {
+            return fingerStarts;
+        }
+
+        long virtualId = Finger.of(this.address, this.port, virtualNode).getId();
+        fingerStarts = new long[Chord.RING_BITS];
+
+        for (int i = 0; i < fingerStarts.length; i++) {
+            fingerStarts[i] = RoutingTable.fingerStart(virtualId, i);
+        }
+
+        this.fingerStarts[virtualNode] = fingerStarts;
+        return fingerStarts;
     }
 
     public long getId() {
         return this.id;
     }
 
+    public Finger getSelf() {
+        return this.self;
+    }
+
     public Semaphore getSemaphore() {
         return semaphore;
     }
 
+    public KeyValueStore getStore() {
+        return this.store;
+    }
+
+    public LocationCache getLocationCache() {
+        return this.locationCache;
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    public ProximityTable getProximityTable() {
+        return this.proximityTable;
+    }
+
+    public Replicator getReplicator() {
+        return this.replicator;
+    }
+
+    public KeyHandoff getKeyHandoff() {
+        return this.keyHandoff;
+    }
+
+    public FailureDetector getFailureDetector() {
+        return this.failureDetector;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return this.connectionPool;
+    }
+
+    public ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
 }
@@ -1,10 +1,17 @@
 package com.milesoldenburg.jchord.chord;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 public class ChordThread implements Runnable {
 
@@ -16,282 +23,1211 @@ public class ChordThread implements Runnable {
         this.socket = socket;
     }
 
+    /**
+     * Constructor for a handler that is not bound to a socket. Used by the NIO listener, which reads the messages itself and hands them to process().
+     *
+     * @param chordNode The node that handles the messages
+     */
+    public ChordThread(ChordNode chordNode) {
+        this.chordNode = chordNode;
+    }
+
     /**
      * Method that will read/send messages. It should attempt to read PING/STORE/FIND_NODE/FIND_VALUE messages
      */
     public void run() {
-        System.out.println("Client connection established on port " + this.socket.getLocalPort());
+        this.chordNode.getMetrics().connectionOpened();
+        Log.debug(() -> "Client connection established on port " + this.socket.getLocalPort());
 
-        try {
-            // Create readers and writers from socket
-            PrintWriter socketWriter = new PrintWriter(this.socket.getOutputStream(), true);
-            BufferedReader socketReader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-
-            // Read input from client
-            String query;
-            while ((query = socketReader.readLine()) != null) {
-                // Split the query on the : token in order to get the command and the content portions
-                String[] queryContents = query.split(":", 2);
-                String command = queryContents[0];
-                String content = queryContents[1];
-
-                System.out.println("Received: " + command + " " + content);
-
-                switch (command) {
-                    case Chord.FIND_VALUE: {
-                        String response = this.findValue(content);
-                        System.out.println("Sent: " + response);
-
-                        // Send response back to client
-                        socketWriter.println(response);
+        try (Socket socket = this.socket) {
+            BufferedInputStream inputStream = new BufferedInputStream(socket.getInputStream());
 
-                        break;
-                    }
-                    case Chord.FIND_NODE: {
-                        String response = this.findNode(content);
-                        System.out.println("Sent: " + response);
+            // Peek at the first byte to find out whether the client asked for the binary protocol
+            inputStream.mark(1);
+            int firstByte = inputStream.read();
+            inputStream.reset();
 
-                        // Send response back to client
-                        socketWriter.println(response);
+            if (firstByte == (BinaryProtocol.MAGIC & 0xFF)) {
+                this.runBinary(new DataInputStream(inputStream), new BufferedOutputStream(socket.getOutputStream()));
+            } else {
+                // Create readers and writers from socket
+                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader socketReader = new BufferedReader(new InputStreamReader(inputStream));
 
-                        break;
+                // Read input from client
+                String query;
+                while ((query = socketReader.readLine()) != null) {
+                    String response = this.process(query);
+
+                    // Send response back to client
+                    if (response != null) {
+                        socketWriter.println(response);
                     }
-                    case Chord.NEW_PREDECESSOR: {
-                        // Parse address and port from message
-                        String[] contentFragments = content.split(":");
-                        String address = contentFragments[0];
-                        int port = Integer.valueOf(contentFragments[1]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("error when handling client connection", e);
+        }
 
-                        // Acquire lock
-                        this.chordNode.acquire();
+        this.chordNode.getMetrics().connectionClosed();
+        Log.debug(() -> "Client connection terminated on port " + this.socket.getLocalPort());
+    }
 
-                        // Move fist predecessor to second
-                        this.chordNode.setSecondPredecessor(this.chordNode.getFirstPredecessor());
+    /**
+     * Serves a client that speaks the binary protocol until it closes the connection
+     *
+     * @param inputStream   The stream positioned at the preamble
+     * @param outputStream  The stream to write frames to
+     * @throws IOException  If the connection failed
+     */
+    private void runBinary(DataInputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] preamble = new byte[BinaryProtocol.PREAMBLE.length];
+        inputStream.readFully(preamble);
 
-                        // Set first predecessor to new finger received in message
-                        this.chordNode.setFirstPredecessor(new Finger(address, port));
+        if (!BinaryProtocol.isPreamble(preamble, 0)) {
+            return;
+        }
 
-                        // Release lock
-                        this.chordNode.release();
+        // Confirm the protocol by echoing the preamble
+        outputStream.write(BinaryProtocol.PREAMBLE);
+        outputStream.flush();
 
-                        break;
-                    }
-                    case Chord.REQUEST_PREDECESSOR: {
-                        // Return the first predecessor address:port
-                        String response = this.chordNode.getFirstPredecessor().getAddress() + ":" + this.chordNode.getFirstPredecessor().getPort();
-                        System.out.println("Sent: " + response);
+        byte[] frameBuffer = new byte[256];
+        ByteBuffer frame = ByteBuffer.wrap(frameBuffer);
 
-                        // Send response back to client
-                        socketWriter.println(response);
+        while (true) {
+            int length;
+            try {
+                length = inputStream.readInt();
+            } catch (EOFException e) {
+                return;
+            }
 
-                        break;
-                    }
-                    case Chord.PING_QUERY: {
-                        // Reply to the ping
-                        String response = Chord.PING_RESPONSE;
-                        System.out.println("Sent: " + response);
+            if (length < 5 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
 
-                        // Send response back to client
-                        socketWriter.println(response);
+            // Reuse the frame buffer for every request
+            if (length > frameBuffer.length) {
+                frameBuffer = new byte[Math.max(length, frameBuffer.length * 2)];
+                frame = ByteBuffer.wrap(frameBuffer);
+            }
 
-                        break;
-                    }
+            inputStream.readFully(frameBuffer, 0, length);
+            frame.clear();
+            frame.limit(length);
+
+            ByteBuffer response = this.process(frame);
+
+            // Send response back to client
+            if (response != null) {
+                outputStream.write(response.array(), response.arrayOffset(), response.limit());
+                outputStream.flush();
+            }
+        }
+    }
+
+    /**
+     * Handles a single binary frame
+     *
+     * @param frame The frame without its length field, positioned at the opcode
+     * @return      The response frame to send back to the client or null if the command does not have a response
+     */
+    public ByteBuffer process(ByteBuffer frame) {
+        long start = System.nanoTime();
+        byte opcode = frame.get(frame.position());
+        LookupPath path = LookupPath.sample();
+
+        ByteBuffer response;
+        try {
+            response = this.process(frame, path);
+        } catch (RuntimeException e) {
+            // A malformed frame is answered like any request that fails, so a pipelining client does not wait for its timeout
+            Log.warn("Could not process frame with opcode " + opcode + ": " + e);
+            response = BinaryProtocol.empty(BinaryProtocol.NOT_FOUND, frame.getInt(1));
+        }
+
+        // Text frames are recorded per command when the text is processed
+        if (opcode != BinaryProtocol.TEXT) {
+            Metrics.Command command = Metrics.Command.of(opcode);
+            this.chordNode.getMetrics().recordCommand(command, start, path.getHops());
+            this.logSampledTrace(command.name(), path);
+        }
+
+        return response;
+    }
+
+    private ByteBuffer process(ByteBuffer frame, LookupPath path) {
+        byte opcode = frame.get();
+        int requestId = frame.getInt();
+
+        // Until the first virtual node joined there is no routing table to answer from, text and owner commands check this themselves
+        if (this.chordNode.getVirtualNodeCount() == 0 && opcode != BinaryProtocol.PING_QUERY && opcode != BinaryProtocol.TEXT && opcode != BinaryProtocol.LOCAL_TEXT && opcode != BinaryProtocol.OWNER_TEXT && opcode != BinaryProtocol.REPLICA_TEXT) {
+            return BinaryProtocol.empty(BinaryProtocol.NOT_FOUND, requestId);
+        }
+
+        switch (opcode) {
+            case BinaryProtocol.FIND_NODE: {
+                Finger owner = this.findNode(frame.getLong(), path);
+
+                if (owner == null) {
+                    return BinaryProtocol.empty(BinaryProtocol.NOT_FOUND, requestId);
                 }
+
+                return BinaryProtocol.finger(BinaryProtocol.NODE_FOUND, requestId, owner, path.getHops());
             }
+            case BinaryProtocol.FIND_NODES: {
+                int hopsLeft = frame.get();
+                int count = frame.getInt();
 
-            // Close connections
-            socketWriter.close();
-            socketReader.close();
-            this.socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+                // The count comes from the peer, it must not be trusted with an allocation the frame cannot back
+                if (count < 0 || count > frame.remaining() / 8) {
+                    return BinaryProtocol.empty(BinaryProtocol.NOT_FOUND, requestId);
+                }
+
+                long[] queryIds = new long[count];
+                for (int i = 0; i < queryIds.length; i++) {
+                    queryIds[i] = frame.getLong();
+                }
+
+                return BinaryProtocol.nodesFound(requestId, this.findNodes(queryIds, hopsLeft));
+            }
+            case BinaryProtocol.FIND_NEXT_HOP: {
+                NextHop nextHop = this.findNextHop(ChordThread.wrap(frame.getLong()));
+                return BinaryProtocol.finger(nextHop.isOwner() ? BinaryProtocol.NODE_FOUND : BinaryProtocol.NEXT_HOP, requestId, nextHop.getFinger());
+            }
+            case BinaryProtocol.FIND_VALUE: {
+                String response = this.routeToOwner(Chord.FIND_VALUE, BinaryProtocol.readText(frame), null, path);
+
+                return BinaryProtocol.text(BinaryProtocol.VALUE_FOUND, requestId, response, path.getHops());
+            }
+            case BinaryProtocol.PING_QUERY: {
+                return BinaryProtocol.empty(BinaryProtocol.PING_RESPONSE, requestId);
+            }
+            case BinaryProtocol.TEXT: {
+                String response = this.process(BinaryProtocol.readText(frame), path);
+
+                if (response == null) {
+                    return null;
+                }
+
+                return BinaryProtocol.text(BinaryProtocol.TEXT, requestId, response, path.getHops());
+            }
+            case BinaryProtocol.LOCAL_TEXT: {
+                return BinaryProtocol.text(BinaryProtocol.TEXT, requestId, this.processLocally(BinaryProtocol.readText(frame), false));
+            }
+            case BinaryProtocol.OWNER_TEXT: {
+                return BinaryProtocol.text(BinaryProtocol.TEXT, requestId, this.processLocally(BinaryProtocol.readText(frame), true));
+            }
+            case BinaryProtocol.REPLICA_TEXT: {
+                return BinaryProtocol.text(BinaryProtocol.TEXT, requestId, this.processReplica(BinaryProtocol.readText(frame)));
+            }
+            case BinaryProtocol.FETCH_KEYS: {
+                byte phase = frame.get();
+                int offset = frame.getInt();
+                Finger owner = BinaryProtocol.readFinger(frame);
+                Finger receiver = BinaryProtocol.readFinger(frame);
+                KeyBatch keys = BinaryProtocol.readRequestedKeys(frame);
+
+                KeyBatch batch = this.chordNode.getKeyHandoff().serve(phase, offset, owner, receiver, keys);
+                if (batch == null) {
+                    return BinaryProtocol.empty(BinaryProtocol.NOT_FOUND, requestId);
+                }
+
+                return BinaryProtocol.keys(requestId, batch);
+            }
+            default: {
+                return BinaryProtocol.empty(BinaryProtocol.NOT_FOUND, requestId);
+            }
         }
+    }
+
+    /**
+     * Handles a single message
+     *
+     * @param query The message that was received, in the form COMMAND:content
+     * @return      The response to send back to the client or null if the command does not have a response
+     */
+    public String process(String query) {
+        return this.process(query, LookupPath.sample());
+    }
 
-        System.out.println("Client connection terminated on port " + this.socket.getLocalPort());
+    /**
+     * Handles a single message and records the hops of the lookup it caused
+     *
+     * @param query The message that was received, in the form COMMAND:content
+     * @param path  Records the nodes contacted on behalf of the message
+     * @return      The response to send back to the client or null if the command does not have a response
+     */
+    public String process(String query, LookupPath path) {
+        try {
+            return this.processMessage(query, path);
+        } catch (RuntimeException e) {
+            // A malformed message is answered like any request that fails, so the responses on the connection stay in step
+            Log.warn("Could not process message " + query + ": " + e);
+            return ChordThread.expectsResponse(query.split(":", 2)[0]) ? "Not found." : null;
+        }
     }
 
-    private String findValue(String query) {
-        // Get long of query
-        SHA1Hasher queryHasher = new SHA1Hasher(query);
-        long queryId = queryHasher.getLong();
+    private String processMessage(String query, LookupPath path) {
+        long start = System.nanoTime();
+
+        // Split the query on the : token in order to get the command and the content portions
+        String[] queryContents = query.split(":", 2);
+        String command = queryContents[0];
+        String content = queryContents.length > 1 ? queryContents[1] : "";
 
-        // Wrap the queryid if it is as big as the ring
-        if (queryId >= Chord.RING_SIZE) {
-            queryId -= Chord.RING_SIZE;
+        // Until the first virtual node joined there is no routing table to answer from, only replicas and pings are served from the store and messages that expect no response are dropped
+        if (this.chordNode.getVirtualNodeCount() == 0 && !command.equals(Chord.PING_QUERY) && !command.equals(Chord.REPLICATE)) {
+            return ChordThread.expectsResponse(command) ? "Not found." : null;
         }
 
-        String response = "Not found.";
+        if (command.equals(Chord.TRACE)) {
+            return this.trace(content);
+        }
+
+        Log.trace(() -> "Received: " + command + " " + content);
+
+        String response = null;
 
-        // If the query is greater than our predecessor id and less than equal to our id then we have the value
-        if (this.doesQueryIdBelongToCurrentNode(queryId)) {
-            response = "VALUE_FOUND:Request acknowledged on node " + this.chordNode.getAddress() + ":" + this.chordNode.getPort();
-        } else if (this.doesQueryIdBelongToNextNode(queryId)) {
-            response = "VALUE_FOUND:Request acknowledged on node " + this.chordNode.getFirstSuccessor().getAddress() + ":" + this.chordNode.getFirstSuccessor().getPort();
-        } else { // We don't have the query so we must search our fingers for it
-            long minimumDistance = Chord.RING_SIZE;
-            Finger closestPredecessor = null;
+        switch (command) {
+            case Chord.FIND_VALUE: {
+                response = this.routeToOwner(Chord.FIND_VALUE, content, null, path);
+                break;
+            }
+            case Chord.STORE: {
+                // The key ends at the first : and the value is everything after it
+                String[] contentFragments = content.split(":", 2);
+                if (contentFragments.length == 2) {
+                    response = this.routeToOwner(Chord.STORE, contentFragments[0], contentFragments[1], path);
+                }
+                break;
+            }
+            case Chord.GET:
+            case Chord.DELETE: {
+                response = this.routeToOwner(command, content, null, path);
+                break;
+            }
+            case Chord.FIND_NODE: {
+                response = this.findNode(content, path);
+                break;
+            }
+            case Chord.FIND_NODES: {
+                response = this.findNodes(content);
+                break;
+            }
+            case Chord.FIND_NEXT_HOP: {
+                response = this.findNextHop(content);
+                break;
+            }
+            case Chord.NEW_PREDECESSOR: {
+                // Parse address and port from message
+                Finger candidate = Finger.parse(content);
+
+                // Set first predecessor to new finger received in message and move the current one to second, unless we already know a closer one
+                if (candidate != null) {
+                    this.chordNode.notifyPredecessor(this.chordNode.findVirtualSuccessor(candidate.getId()), candidate);
+                }
 
-            this.chordNode.acquire();
+                break;
+            }
+            case Chord.EXCHANGE_SUCCESSORS: {
+                // The sender thinks it is the predecessor of whichever of our virtual nodes follows it
+                Finger candidate = Finger.parse(content);
+                if (candidate == null) {
+                    break;
+                }
 
-            // Look for a node identifier in the finger table that is less than the key id and closest in the ID space to the key id
-            for (Finger finger : this.chordNode.getFingers().values()) {
-                long distance;
+                int virtualNode = this.chordNode.findVirtualSuccessor(candidate.getId());
+                this.chordNode.notifyPredecessor(virtualNode, candidate);
 
-                // Find clockwise distance from finger to query
-                if (queryId >= finger.getId()) {
-                    distance = queryId - finger.getId();
-                } else {
-                    distance = queryId + Chord.RING_SIZE - finger.getId();
+                // Return the virtual node that answers and its predecessor followed by its successor list
+                RoutingTable routingTable = this.chordNode.getRoutingTable(virtualNode);
+                StringBuilder successors = new StringBuilder(Chord.SUCCESSORS).append(':').append(routingTable.getSelf()).append(',').append(routingTable.getFirstPredecessor());
+                for (int i = 0; i < routingTable.getSuccessorCount(); i++) {
+                    successors.append(',').append(routingTable.getSuccessor(i));
                 }
 
-                // If the distance we have found is smaller than the current minimum, replace the current minimum
-                if (distance < minimumDistance) {
-                    minimumDistance = distance;
-                    closestPredecessor = finger;
+                response = successors.toString();
+                break;
+            }
+            case Chord.REPLICATE: {
+                response = this.processReplica(content);
+                break;
+            }
+            case Chord.FIND_REPLICAS: {
+                response = this.findReplicas(content);
+                break;
+            }
+            case Chord.FETCH_KEYS: {
+                response = this.fetchKeys(content);
+                break;
+            }
+            case Chord.LEAVING: {
+                // The leaving node names the node that takes over its range, which pulls the range in the background while the leaving node waits for the transfer to be closed
+                String[] fingers = content.split(",");
+                Finger leavingNode = fingers.length == 2 ? Finger.parse(fingers[0]) : null;
+                Finger receiver = fingers.length == 2 ? Finger.parse(fingers[1]) : null;
+
+                if (leavingNode != null && receiver != null) {
+                    this.chordNode.getExecutor().execute(() -> this.chordNode.getKeyHandoff().takeOver(leavingNode, receiver));
                 }
+
+                break;
             }
+            case Chord.COPY_RANGE: {
+                // The owner names itself and the virtual node of ours that became its replica, which pulls its range in the background
+                String[] fingers = content.split(",");
+                Finger owner = fingers.length == 2 ? Finger.parse(fingers[0]) : null;
+                Finger replica = fingers.length == 2 ? Finger.parse(fingers[1]) : null;
+
+                if (owner != null && replica != null) {
+                    this.chordNode.getExecutor().execute(() -> this.chordNode.getKeyHandoff().copyRange(owner, replica));
+                }
+
+                break;
+            }
+            case Chord.REQUEST_PREDECESSOR: {
+                // Return the first predecessor address:port
+                response = this.chordNode.getFirstPredecessor().toString();
+                break;
+            }
+            case Chord.PING_QUERY: {
+                // Reply to the ping
+                response = Chord.PING_RESPONSE;
+                break;
+            }
+            case Chord.STATS: {
+                response = Chord.STATS + ":" + this.chordNode.getMetrics().format();
+                break;
+            }
+        }
+
+        this.chordNode.getMetrics().recordCommand(Metrics.Command.of(command), start, path.getHops());
+        this.logSampledTrace(command, path);
 
-            System.out.println("queryid: " + queryId + " minimum distance: " + minimumDistance + " on " + closestPredecessor.getAddress() + ":" + closestPredecessor.getPort());
+        if (response != null) {
+            String sentResponse = response;
+            Log.trace(() -> "Sent: " + sentResponse);
+        }
+
+        return response;
+    }
+
+    /**
+     * Handles a storage command that another node routed to us as the owner of the key, without forwarding it again
+     *
+     * @param query       The command in the form COMMAND:key or STORE:key:value
+     * @param checkOwner  True if the sender only remembered us as the owner, the command is then refused with NOT_OWNER unless we own the key
+     * @return            The response to send back
+     */
+    private String processLocally(String query, boolean checkOwner) {
+        String[] queryContents = query.split(":", 3);
+        String command = queryContents[0];
+        String key = queryContents.length > 1 ? queryContents[1] : "";
+
+        switch (command) {
+            case Chord.STORE:
+            case Chord.GET:
+            case Chord.DELETE:
+            case Chord.FIND_VALUE: {
+                String value = queryContents.length > 2 ? queryContents[2] : null;
+
+                // A value is required to store
+                if (command.equals(Chord.STORE) && value == null) {
+                    return "Not found.";
+                }
+
+                long queryId = ChordThread.wrap(SHA1Hasher.hash(key));
+                RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+                if (checkOwner && (routingTable == null || !routingTable.doesQueryIdBelongToCurrentNode(queryId))) {
+                    return Chord.NOT_OWNER;
+                }
+
+                // Before the first virtual node joined only the successor it joins in front of can answer
+                if (routingTable == null && this.chordNode.findJoiningSuccessor(null, queryId) == null) {
+                    return "Not found.";
+                }
+
+                return this.runAsOwner(command, queryId, key, value);
+            }
+            default: {
+                return "Not found.";
+            }
+        }
+    }
+
+    /**
+     * Passes a storage command that was sent to us as the owner on to the successor that is about to hand its range over to us, which still answers for the range
+     *
+     * @return  The response of the successor
+     */
+    private String sendToJoiningSuccessor(Finger joiningSuccessor, String message) {
+        try {
+            return this.chordNode.getConnectionPool().sendToOwner(joiningSuccessor, message);
+        } catch (IOException e) {
+            return "Not found.";
+        }
+    }
+
+    /**
+     * Runs a storage command on the node that owns the key. The owner is found over the same lookup path as FIND_NODE and the command is then sent to it, unless this node owns the key itself.
+     *
+     * @param command   STORE, GET, DELETE or FIND_VALUE
+     * @param key       The key of the command
+     * @param value     The value for STORE, otherwise null
+     * @param path      Records the nodes contacted on the way
+     * @return          The response of the owner
+     */
+    private String routeToOwner(String command, String key, String value, LookupPath path) {
+        // Get long of query
+        long queryId = ChordThread.wrap(SHA1Hasher.hash(key));
+
+        String message = command + ":" + key + (value != null ? ":" + value : "");
+
+        for (int attempt = 0; attempt <= Chord.SUCCESSORS_LENGTH; attempt++) {
+            long start = System.nanoTime();
+            RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+            Finger self = routingTable.getSelf();
+
+            // If the query is greater than our predecessor id and less than equal to our id then we have the value
+            if (routingTable.doesQueryIdBelongToCurrentNode(queryId)) {
+                String response = this.runAsOwner(command, queryId, key, value);
+                path.trace(self, self, start);
+
+                return response;
+            }
 
             try {
-                // Open socket to chord node
-                Socket socket = new Socket(closestPredecessor.getAddress(), closestPredecessor.getPort());
+                Finger owner;
+
+                if (routingTable.doesQueryIdBelongToNextNode(queryId)) {
+                    owner = routingTable.getFirstSuccessor();
+                    path.trace(self, owner, start);
+                } else { // We don't have the query so we must search our fingers for it
+                    String cachedResponse = this.sendToCachedOwner(queryId, command, message, path);
+                    if (cachedResponse != null) {
+                        return cachedResponse;
+                    }
 
-                // Open reader/writer to chord node
-                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    Finger closestPredecessor = this.chooseNextHop(routingTable, queryId);
 
-                // Send query to chord
-                socketWriter.println(Chord.FIND_VALUE + ":" + query);
-                System.out.println("Sent: " + Chord.FIND_VALUE + ":" + query);
+                    if (!Chord.ITERATIVE_LOOKUP) {
+                        // Forward the command to the closest preceding finger over a pooled connection
+                        path.addHop(closestPredecessor);
+                        String response = this.forward(self, closestPredecessor, message, path);
+                        Log.trace(() -> "Sent: " + message);
+                        Log.trace(() -> "Response from node " + closestPredecessor.getAddress() + ", port " + closestPredecessor.getPort() + ", position " + " (" + closestPredecessor.getId() + "):");
 
-                // Read response from chord
-                String serverResponse = socketReader.readLine();
-                System.out.println("Response from node " + closestPredecessor.getAddress() + ", port " + closestPredecessor.getPort() + ", position " + " (" + closestPredecessor.getId() + "):");
+                        return response;
+                    }
 
-                response = serverResponse;
+                    // Walk the ring from here and send the command straight to the owner
+                    path.trace(self, closestPredecessor, start);
+                    owner = this.findNodeIteratively(closestPredecessor, queryId, path);
+                }
 
-                // Close connections
-                socketWriter.close();
-                socketReader.close();
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (owner == null) {
+                    return "Not found.";
+                }
+
+                // Another virtual node of this process shares our store
+                if (this.chordNode.isLocal(owner)) {
+                    return this.runAsOwner(command, queryId, key, value);
+                }
+
+                if (ChordThread.isReplicatedRead(command)) {
+                    return this.chordNode.getReplicator().read(owner, queryId, message, false, path);
+                }
+
+                // The owner answers from its store, so this never ties up a worker on the owner
+                String response;
+                long ownerStart = System.nanoTime();
+                path.addHop(owner);
+                try {
+                    response = this.chordNode.getConnectionPool().sendToOwner(owner, message);
+                } catch (IOException e) {
+                    throw new UnreachableNodeException(owner, e);
+                }
+                path.trace(owner, owner, ownerStart);
+                Log.trace(() -> "Sent: " + message + " to " + owner.getAddress() + ":" + owner.getPort());
+
+                return response;
+            } catch (UnreachableNodeException e) {
+                if (!this.skipUnreachableNode(e)) {
+                    return "Not found.";
+                }
             }
+        }
+
+        return "Not found.";
+    }
+
+    /**
+     * Runs a storage command as the owner of its key. A write is applied to our own store first and then sent on to the replicas, and it is answered as failed if it does not reach the write quorum, although the copies that have it keep it.
+     */
+    private String runAsOwner(String command, long queryId, String key, String value) {
+        // A virtual node that was not handed its range yet does not answer for it, the successor it takes the range from still does
+        RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+        Finger joiningSuccessor = this.chordNode.findJoiningSuccessor(routingTable, queryId);
+        if (joiningSuccessor != null) {
+            return this.sendToJoiningSuccessor(joiningSuccessor, command + ":" + key + (value != null ? ":" + value : ""));
+        }
+
+        // A virtual node that was handed its range answers once the keys written during the handover arrived
+        this.chordNode.awaitJoined(routingTable);
+
+        String handedOverResponse = this.sendToNewPredecessor(command, queryId, key, value);
+        if (handedOverResponse != null) {
+            return handedOverResponse;
+        }
+
+        String response = this.runLocally(command, queryId, key, value);
+
+        if (!command.equals(Chord.STORE) && !command.equals(Chord.DELETE)) {
+            return response;
+        }
 
-            this.chordNode.release();
+        // A range that is being handed over sends the new state of the key along
+        this.chordNode.getKeyHandoff().touch(queryId, key);
+
+        if (Chord.REPLICATION_FACTOR > 1) {
+            String message = command + ":" + key + (value != null ? ":" + value : "");
+
+            if (!this.chordNode.getReplicator().replicate(queryId, message)) {
+                return "Not found.";
+            }
         }
 
         return response;
     }
 
-    private String findNode(String query) {
-        long queryId = Long.valueOf(query);
+    /**
+     * Sends a storage command on to our first predecessor if it took the key over from us. Until the node before it stabilizes, lookups for the range that a joining node took over still end at us.
+     *
+     * @return  The response of the predecessor, or null if the key is ours or the predecessor does not answer for it
+     */
+    private String sendToNewPredecessor(String command, long queryId, String key, String value) {
+        RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+        Finger predecessor = routingTable.getFirstPredecessor();
+
+        if (routingTable.doesQueryIdBelongToCurrentNode(queryId) || !routingTable.doesQueryIdBelongToPreviousNode(queryId) || this.chordNode.isLocal(predecessor)) {
+            return null;
+        }
+
+        try {
+            String response = this.chordNode.getConnectionPool().sendIfOwner(predecessor, command + ":" + key + (value != null ? ":" + value : ""));
+
+            return response.equals(Chord.NOT_OWNER) ? null : response;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Applies a write that the owner of the key sent to us as one of its replicas, or answers a read of our copy of the key. Either is answered from our own store and never forwarded.
+     *
+     * @param query The write in the form STORE:key:value or DELETE:key, or the read in the form GET:key or FIND_VALUE:key
+     * @return      The response of our store
+     */
+    private String processReplica(String query) {
+        String[] queryContents = query.split(":", 3);
+        String command = queryContents[0];
+
+        if (queryContents.length < 2 || !(command.equals(Chord.DELETE) || command.equals(Chord.GET) || command.equals(Chord.FIND_VALUE) || (command.equals(Chord.STORE) && queryContents.length == 3))) {
+            return "Not found.";
+        }
+
+        String key = queryContents[1];
+        String value = queryContents.length > 2 ? queryContents[2] : null;
+
+        return this.runLocally(command, ChordThread.wrap(SHA1Hasher.hash(key)), key, value);
+    }
+
+    /**
+     * Names the copies of an id if we own it
+     *
+     * @param query The id
+     * @return      REPLICAS_FOUND with the owning virtual node followed by its replicas, or NOT_OWNER
+     */
+    private String findReplicas(String query) {
+        long queryId = ChordThread.wrap(Long.parseUnsignedLong(query));
+        RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+
+        if (!routingTable.doesQueryIdBelongToCurrentNode(queryId)) {
+            return Chord.NOT_OWNER;
+        }
+
+        StringBuilder replicas = new StringBuilder(Chord.REPLICAS_FOUND).append(':').append(routingTable.getSelf());
+        for (Finger replica : routingTable.getReplicas(Chord.REPLICATION_FACTOR - 1)) {
+            replicas.append(',').append(replica);
+        }
+
+        return replicas.toString();
+    }
+
+    /**
+     * Answers a request for the next batch of a key range transfer
+     *
+     * @param query The request in the form phase:offset:owner,receiver, followed by ;keys in the RECORDS phase
+     * @return      KEYS with the batch, or NOT_OWNER if we do not own the range or the transfer is unknown
+     */
+    private String fetchKeys(String query) {
+        KeyBatch keys = null;
+
+        int keysStart = query.indexOf(';');
+        if (keysStart >= 0) {
+            keys = new KeyBatch(null);
+            keys.parseEntries(query.substring(keysStart + 1));
+            query = query.substring(0, keysStart);
+        }
 
-        // Wrap the queryid if it is as big as the ring
-        if (queryId >= Chord.RING_SIZE) {
-            queryId -= Chord.RING_SIZE;
+        String[] queryContents = query.split(":", 3);
+        String[] fingers = queryContents.length == 3 ? queryContents[2].split(",") : new String[0];
+        if (fingers.length != 2) {
+            return Chord.NOT_OWNER;
         }
 
-        String response = "Not found.";
+        Finger owner = Finger.parse(fingers[0]);
+        Finger receiver = Finger.parse(fingers[1]);
+        if (owner == null || receiver == null) {
+            return Chord.NOT_OWNER;
+        }
 
-        // If the query is greater than our predecessor id and less than equal to our id then we have the value
-        if (this.doesQueryIdBelongToCurrentNode(queryId)) {
-            response = Chord.NODE_FOUND + ":" +  this.chordNode.getAddress() + ":" + this.chordNode.getPort();
-        } else if(this.doesQueryIdBelongToNextNode(queryId)) {
-            response = Chord.NODE_FOUND + ":" +  this.chordNode.getFirstSuccessor().getAddress() + ":" + this.chordNode.getFirstSuccessor().getPort();
-        } else { // We don't have the query so we must search our fingers for it
-            long minimumDistance = Chord.RING_SIZE;
-            Finger closestPredecessor = null;
+        KeyBatch batch = this.chordNode.getKeyHandoff().serve(Byte.parseByte(queryContents[0]), Integer.parseInt(queryContents[1]), owner, receiver, keys);
+        if (batch == null) {
+            return Chord.NOT_OWNER;
+        }
 
-            this.chordNode.acquire();
+        return Chord.KEYS + ":" + batch.format();
+    }
 
-            // Look for a node identifier in the finger table that is less than the key id and closest in the ID space to the key id
-            for (Finger finger : this.chordNode.getFingers().values()) {
-                long distance;
+    /**
+     * @return  True if the command reads a key and may be answered by any copy of it
+     */
+    /**
+     * @return  False for the messages that are only written and never answered
+     */
+    private static boolean expectsResponse(String command) {
+        return !command.equals(Chord.NEW_PREDECESSOR) && !command.equals(Chord.LEAVING) && !command.equals(Chord.COPY_RANGE);
+    }
+
+    private static boolean isReplicatedRead(String command) {
+        return Chord.REPLICATION_FACTOR > 1 && (command.equals(Chord.GET) || command.equals(Chord.FIND_VALUE));
+    }
+
+    /**
+     * Runs a storage command against the store of this node
+     */
+    private String runLocally(String command, long queryId, String key, String value) {
+        KeyValueStore store = this.chordNode.getStore();
 
-                // Find clockwise distance from finger to query
-                if (queryId >= finger.getId()) {
-                    distance = queryId - finger.getId();
+        switch (command) {
+            case Chord.STORE: {
+                store.put(queryId, key, value);
+                return Chord.STORED;
+            }
+            case Chord.DELETE: {
+                return store.remove(queryId, key) ? Chord.DELETED : "Not found.";
+            }
+            default: {
+                String storedValue = store.get(queryId, key);
+                return storedValue != null ? Chord.VALUE_FOUND + ":" + storedValue : "Not found.";
+            }
+        }
+    }
+
+    private String findNode(String query, LookupPath path) {
+        Finger owner = this.findNode(Long.parseUnsignedLong(query), path);
+
+        if (owner == null) {
+            return "Not found.";
+        }
+
+        return Chord.NODE_FOUND + ":" + owner;
+    }
+
+    private Finger findNode(long id, LookupPath path) {
+        long queryId = ChordThread.wrap(id);
+
+        for (int attempt = 0; attempt <= Chord.SUCCESSORS_LENGTH; attempt++) {
+            long start = System.nanoTime();
+            RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+
+            // If the query is greater than our predecessor id and less than equal to our id then we have the value
+            Finger response = this.findLocalOwner(routingTable, queryId);
+            if (response != null) {
+                path.trace(routingTable.getSelf(), response, start);
+                return response;
+            }
+
+            // A lookup that resolved this id before lets us confirm the owner in a single hop
+            response = this.findCachedOwner(queryId, path);
+            if (response != null) {
+                return response;
+            }
+
+            // We don't have the query so we must search our fingers for it
+            Finger closestPredecessor = this.chooseNextHop(routingTable, queryId);
+
+            try {
+                if (Chord.ITERATIVE_LOOKUP) {
+                    path.trace(routingTable.getSelf(), closestPredecessor, start);
+                    return this.findNodeIteratively(closestPredecessor, queryId, path);
+                }
+
+                // Send query to chord over a pooled connection and read response
+                path.addHop(closestPredecessor);
+                if (path.isTraced()) {
+                    // Only text messages carry a trace
+                    response = ChordThread.parseNodeFound(this.forward(routingTable.getSelf(), closestPredecessor, Chord.FIND_NODE + ":" + Long.toUnsignedString(queryId), path));
                 } else {
-                    distance = queryId + Chord.RING_SIZE - finger.getId();
+                    try {
+                        response = this.chordNode.getConnectionPool().findNode(closestPredecessor, queryId);
+                    } catch (IOException e) {
+                        throw new UnreachableNodeException(closestPredecessor, e);
+                    }
+                }
+                Log.trace(() -> "Sent: " + Chord.FIND_NODE + ":" + queryId);
+                Log.trace(() -> "Response from node " + closestPredecessor.getAddress() + ", port " + closestPredecessor.getPort() + ", position " + " (" + closestPredecessor.getId() + "):");
+
+                if (response != null) {
+                    this.rememberOwner(null, response, queryId);
                 }
 
-                // If the distance we have found is smaller than the current minimum, replace the current minimum
-                if (distance < minimumDistance) {
-                    minimumDistance = distance;
-                    closestPredecessor = finger;
+                return response;
+            } catch (UnreachableNodeException e) {
+                if (!this.skipUnreachableNode(e)) {
+                    return null;
                 }
             }
+        }
 
-            System.out.println("queryid: " + queryId + " minimum distance: " + minimumDistance + " on " + closestPredecessor.getAddress() + ":" + closestPredecessor.getPort());
+        return null;
+    }
 
-            try {
-                // Open socket to chord node
-                Socket socket = new Socket(closestPredecessor.getAddress(), closestPredecessor.getPort());
+    /**
+     * Asks the node the location cache remembers as the owner of an id whether it still owns it
+     *
+     * @param queryId   The id that is looked up
+     * @param path      Records the node that was asked
+     * @return          The owner of the id, or null if no owner is cached or the cached owner no longer knows the owner
+     */
+    private Finger findCachedOwner(long queryId, LookupPath path) {
+        LocationCache locationCache = this.chordNode.getLocationCache();
+        Finger cachedOwner = locationCache.get(queryId);
 
-                // Open reader/writer to chord node
-                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        if (cachedOwner == null) {
+            return null;
+        }
 
-                // Send query to chord
-                socketWriter.println(Chord.FIND_NODE + ":" + queryId);
-                System.out.println("Sent: " + Chord.FIND_NODE + ":" + queryId);
+        NextHop nextHop;
+        long start = System.nanoTime();
+        path.addHop(cachedOwner);
+        try {
+            nextHop = this.chordNode.getConnectionPool().findNextHop(cachedOwner, queryId);
+        } catch (IOException e) {
+            this.chordNode.removeNode(cachedOwner);
+            return null;
+        }
 
-                // Read response from chord
-                String serverResponse = socketReader.readLine();
-                System.out.println("Response from node " + closestPredecessor.getAddress() + ", port " + closestPredecessor.getPort() + ", position " + " (" + closestPredecessor.getId() + "):");
+        if (nextHop != null) {
+            this.chordNode.getProximityTable().record(cachedOwner, start);
+            path.trace(cachedOwner, nextHop.getFinger(), start);
+        }
 
-                response = serverResponse;
+        if (nextHop == null || !nextHop.isOwner()) {
+            locationCache.invalidate(queryId);
+            return null;
+        }
 
-                // Close connections
-                socketWriter.close();
-                socketReader.close();
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        // The cached owner may hand the id on to a successor that joined since
+        if (!nextHop.getFinger().equals(cachedOwner)) {
+            locationCache.invalidate(queryId);
+            this.rememberOwner(cachedOwner, nextHop.getFinger(), queryId);
+        }
+
+        return nextHop.getFinger();
+    }
+
+    /**
+     * Sends a storage command straight to the node the location cache remembers as the owner of its key
+     *
+     * @param queryId   The id of the key
+     * @param command   The command, reads may be answered by a replica of the cached owner
+     * @param message   The command to send
+     * @param path      Records the node that was asked
+     * @return          The response of the owner, or null if no owner is cached or the cached owner no longer owns the key
+     */
+    private String sendToCachedOwner(long queryId, String command, String message, LookupPath path) {
+        LocationCache locationCache = this.chordNode.getLocationCache();
+        Finger cachedOwner = locationCache.get(queryId);
+
+        if (cachedOwner == null) {
+            return null;
+        }
+
+        if (ChordThread.isReplicatedRead(command)) {
+            try {
+                String response = this.chordNode.getReplicator().read(cachedOwner, queryId, message, true, path);
+
+                if (response.equals(Chord.NOT_OWNER)) {
+                    locationCache.invalidate(queryId);
+                    return null;
+                }
+
+                return response;
+            } catch (UnreachableNodeException e) {
+                this.chordNode.removeNode(cachedOwner);
+                return null;
             }
+        }
+
+        String response;
+        long start = System.nanoTime();
+        path.addHop(cachedOwner);
+        try {
+            response = this.chordNode.getConnectionPool().sendIfOwner(cachedOwner, message);
+        } catch (IOException e) {
+            this.chordNode.removeNode(cachedOwner);
+            return null;
+        }
+        path.trace(cachedOwner, cachedOwner, start);
 
-            this.chordNode.release();
+        if (response.equals(Chord.NOT_OWNER)) {
+            locationCache.invalidate(queryId);
+            return null;
         }
 
         return response;
     }
 
-    private boolean doesQueryIdBelongToCurrentNode(long queryId) {
-        boolean response = false;
+    /**
+     * Adds the owner a lookup resolved to the location cache
+     *
+     * @param predecessor   The node that named the owner as its successor, or null if unknown
+     * @param owner         The owner of the id
+     * @param queryId       The id that was looked up
+     */
+    private void rememberOwner(Finger predecessor, Finger owner, long queryId) {
+        if (this.chordNode.isLocal(owner)) {
+            return;
+        }
+
+        // Without the predecessor of the owner we only know that the ids from the query id up to the owner are its own
+        long from = predecessor != null && !predecessor.equals(owner) ? predecessor.getId() : (queryId - 1) & Chord.RING_MASK;
+        this.chordNode.getLocationCache().put(from, owner);
+    }
+
+    /**
+     * Drops a node that a lookup could not reach from the routing table so the next attempt picks the next candidate
+     *
+     * @param e The failure of the lookup
+     * @return  True if the node was part of our routing table, otherwise another attempt would take the same path and fail again
+     */
+    private boolean skipUnreachableNode(UnreachableNodeException e) {
+        Finger node = e.getNode();
+        boolean known = this.chordNode.isKnown(node);
+        this.chordNode.removeNode(node);
+
+        return known;
+    }
+
+    /**
+     * Runs a command with a traced lookup path and returns the recorded steps along with the response
+     *
+     * @param content   The trace id and the command, in the form traceId:COMMAND:content
+     * @return          The response in the form TRACE:traceId:steps:response
+     */
+    private String trace(String content) {
+        String[] contentFragments = content.split(":", 2);
+        if (contentFragments.length != 2) {
+            return "Not found.";
+        }
+
+        LookupPath path = new LookupPath(contentFragments[0]);
+        String response = this.process(contentFragments[1], path);
+
+        return Chord.TRACE + ":" + path.getTraceId() + ":" + path.getTrace() + ":" + (response != null ? response : "");
+    }
+
+    /**
+     * Forwards a command to the next node of a recursive lookup. A traced lookup is forwarded as a TRACE command, so the steps of the nodes after us are added to the path.
+     *
+     * @param self      The virtual node that forwards the command
+     * @param finger    The next node
+     * @param message   The command to forward
+     * @param path      Records the nodes contacted on the way
+     * @return          The response of the next node without its trace
+     * @throws UnreachableNodeException  If the next node could not be reached
+     */
+    private String forward(Finger self, Finger finger, String message, LookupPath path) throws UnreachableNodeException {
+        if (!path.isTraced()) {
+            return this.send(finger, message);
+        }
+
+        long start = System.nanoTime();
+        String response = this.send(finger, Chord.TRACE + ":" + path.getTraceId() + ":" + message);
+        path.trace(self, finger, start);
+
+        // Split off the trace id and the steps, the response itself may contain ':'
+        String[] responseFragments = response.split(":", 4);
+        if (responseFragments.length != 4 || !responseFragments[0].equals(Chord.TRACE)) {
+            return response;
+        }
+
+        path.traceRemote(responseFragments[2]);
+        return responseFragments[3];
+    }
+
+    /**
+     * Logs the steps of a request that was sampled for tracing
+     */
+    private void logSampledTrace(String command, LookupPath path) {
+        if (path.isSampled() && path.getHops() > 0) {
+            Log.info("Trace " + path.getTraceId() + " " + command + " took " + path.getHops() + " hops: " + path.getTrace());
+        }
+    }
+
+    private static Finger parseNodeFound(String response) {
+        if (!response.startsWith(Chord.NODE_FOUND + ":")) {
+            return null;
+        }
+
+        return Finger.parse(response.substring(Chord.NODE_FOUND.length() + 1));
+    }
+
+    /**
+     * Sends a message and reports a failure as the node being unreachable
+     */
+    private String send(Finger finger, String message) throws UnreachableNodeException {
+        try {
+            return this.chordNode.getConnectionPool().send(finger, message);
+        } catch (IOException e) {
+            throw new UnreachableNodeException(finger, e);
+        }
+    }
+
+    private String findNodes(String query) {
+        // Parse out the hop budget and the comma separated ids, a malformed request is answered without owners
+        String[] queryFragments = query.split(":", 2);
+        if (queryFragments.length < 2) {
+            return Chord.NODES_FOUND + ":";
+        }
 
-        // If we are working in a nice clockwise direction without wrapping
-        if (this.chordNode.getId() > this.chordNode.getFirstPredecessor().getId()) {
-            // If the query id is between our predecessor and us, the query belongs to us
-            if ((queryId > this.chordNode.getFirstPredecessor().getId()) && (queryId <= this.chordNode.getId())) {
-                response = true;
+        int hopsLeft;
+        long[] queryIds;
+        try {
+            hopsLeft = Integer.parseInt(queryFragments[0]);
+
+            String[] idFragments = queryFragments[1].split(",");
+            queryIds = new long[idFragments.length];
+            for (int i = 0; i < idFragments.length; i++) {
+                queryIds[i] = Long.parseUnsignedLong(idFragments[i]);
+            }
+        } catch (NumberFormatException e) {
+            return Chord.NODES_FOUND + ":";
+        }
+
+        Finger[] owners = this.findNodes(queryIds, hopsLeft);
+
+        StringBuilder response = new StringBuilder(Chord.NODES_FOUND).append(':');
+        for (int i = 0; i < owners.length; i++) {
+            if (i > 0) {
+                response.append(',');
             }
-        } else { // If we are wrapping
-            if ((queryId > this.chordNode.getFirstPredecessor().getId()) || (queryId <= this.chordNode.getId())) {
-                response = true;
+
+            if (owners[i] != null) {
+                response.append(owners[i]);
             }
         }
 
-        return response;
+        return response.toString();
     }
 
-    private boolean doesQueryIdBelongToNextNode(long queryId) {
-        boolean response = false;
+    /**
+     * Finds the owners of several ids at once. Ids that this node can answer from its own routing tables are answered right away, the others are grouped by the finger they would be sent to and every group is forwarded as a single batch, so a node is contacted at most once per batch no matter how many ids land on it.
+     *
+     * @param queryIds  The ids to look up
+     * @param hopsLeft  How many more times the ids that cannot be answered here may be forwarded
+     * @return          The owners in the order of the ids, null where the owner was not found
+     */
+    private Finger[] findNodes(long[] queryIds, int hopsLeft) {
+        Finger[] owners = new Finger[queryIds.length];
+
+        // Answer from the routing tables where possible and remember which finger every other id goes to
+        Finger[] nextHops = new Finger[queryIds.length];
+        for (int i = 0; i < queryIds.length; i++) {
+            long queryId = ChordThread.wrap(queryIds[i]);
+            RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+            owners[i] = this.findLocalOwner(routingTable, queryId);
+
+            if (owners[i] == null && hopsLeft > 0) {
+                Finger finger = routingTable.findClosestPrecedingFinger(queryId);
+
+                // A finger pointing at ourselves cannot make progress
+                if (finger.getId() != routingTable.getSelf().getId()) {
+                    nextHops[i] = finger;
+                }
+            }
+        }
+
+        // Forward one batch per finger, taking the ids of a batch out of the list as it is built
+        for (int first = 0; first < queryIds.length; first++) {
+            Finger finger = nextHops[first];
+            if (finger == null) {
+                continue;
+            }
+
+            int size = 0;
+            for (int i = first; i < queryIds.length; i++) {
+                if (finger.equals(nextHops[i])) {
+                    size++;
+                }
+            }
 
-        // If we are working in a nice clockwise direction without wrapping
-        if (this.chordNode.getId() < this.chordNode.getFirstSuccessor().getId()) {
-            // If the query id is between our successor and us, the query belongs to our successor
-            if ((queryId > this.chordNode.getId()) && (queryId <= this.chordNode.getFirstSuccessor().getId())) {
-                response = true;
+            long[] batch = new long[size];
+            int[] positions = new int[size];
+            size = 0;
+            for (int i = first; i < queryIds.length; i++) {
+                if (finger.equals(nextHops[i])) {
+                    batch[size] = queryIds[i];
+                    positions[size++] = i;
+                    nextHops[i] = null;
+                }
             }
-        } else { // If we are wrapping
-            if ((queryId > this.chordNode.getId()) || (queryId <= this.chordNode.getFirstSuccessor().getId())) {
-                response = true;
+
+            try {
+                Finger[] found = this.chordNode.getConnectionPool().findNodes(finger, batch, hopsLeft - 1);
+                Log.trace(() -> "Sent: " + Chord.FIND_NODES + " with " + batch.length + " ids to " + finger);
+
+                for (int i = 0; i < size; i++) {
+                    owners[positions[i]] = found[i];
+                }
+            } catch (IOException e) {
+                // Leave these owners unresolved, the next stabilization round asks again without the node
+                this.chordNode.removeNode(finger);
             }
         }
 
-        return response;
+        return owners;
+    }
+
+    private String findNextHop(String query) {
+        NextHop nextHop = this.findNextHop(ChordThread.wrap(Long.parseUnsignedLong(query)));
+        Finger finger = nextHop.getFinger();
+
+        return (nextHop.isOwner() ? Chord.NODE_FOUND : Chord.NEXT_HOP) + ":" + finger;
+    }
+
+    /**
+     * Answers a single step of an iterative lookup without contacting any other node
+     *
+     * @param queryId   The id that is looked up
+     * @return          The owner of the id if this node knows it, otherwise the finger that should be asked next
+     */
+    private NextHop findNextHop(long queryId) {
+        RoutingTable routingTable = this.chordNode.findRoutingTable(queryId);
+        Finger owner = this.findLocalOwner(routingTable, queryId);
+
+        if (owner != null) {
+            return new NextHop(owner, true);
+        }
+
+        return new NextHop(this.findClosestPrecedingFinger(routingTable, queryId), false);
+    }
+
+    /**
+     * Drives a lookup from this node by asking each hop for the next one, so no node on the path waits on another node while serving the request
+     *
+     * @param firstHop  The first node to ask
+     * @param queryId   The id that is looked up
+     * @param path      Records every node that was asked
+     * @return          The owner of the id, or null if the lookup did not converge
+     * @throws UnreachableNodeException  If a hop could not be reached
+     */
+    private Finger findNodeIteratively(Finger firstHop, long queryId, LookupPath path) throws UnreachableNodeException {
+        Finger next = firstHop;
+
+        for (int i = 0; i < Chord.MAX_HOPS; i++) {
+            Finger hop = next;
+            NextHop nextHop;
+            long start = System.nanoTime();
+            path.addHop(hop);
+            try {
+                nextHop = this.chordNode.getConnectionPool().findNextHop(hop, queryId);
+            } catch (IOException e) {
+                throw new UnreachableNodeException(hop, e);
+            }
+            Log.trace(() -> "Sent: " + Chord.FIND_NEXT_HOP + ":" + queryId + " to " + hop.getAddress() + ":" + hop.getPort());
+
+            if (nextHop == null) {
+                return null;
+            }
+
+            // Steps are answered without contacting other nodes, so they measure the round trip to the hop
+            this.chordNode.getProximityTable().record(hop, start);
+            path.trace(hop, nextHop.getFinger(), start);
+
+            if (nextHop.isOwner()) {
+                this.rememberOwner(hop, nextHop.getFinger(), queryId);
+                return nextHop.getFinger();
+            }
+
+            // A hop that points back at itself cannot make progress
+            if (nextHop.getFinger().getId() == hop.getId()) {
+                return null;
+            }
+
+            next = nextHop.getFinger();
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether the query id belongs to this node or to its first successor
+     *
+     * @param routingTable  The routing table snapshot to answer from
+     * @param queryId       The id that is looked up
+     * @return              The owner of the id, or null if it is further away on the ring
+     */
+    private Finger findLocalOwner(RoutingTable routingTable, long queryId) {
+        if (routingTable.doesQueryIdBelongToCurrentNode(queryId)) {
+            return routingTable.getSelf();
+        } else if (routingTable.doesQueryIdBelongToNextNode(queryId)) {
+            return routingTable.getFirstSuccessor();
+        }
+
+        return null;
+    }
+
+    /**
+     * Picks the first hop of a lookup that this node sends, weighing the round trip to the candidates against their distance to the key unless proximity routing is disabled
+     */
+    private Finger chooseNextHop(RoutingTable routingTable, long queryId) {
+        if (!Chord.PROXIMITY_ROUTING) {
+            return this.findClosestPrecedingFinger(routingTable, queryId);
+        }
+
+        Finger nextHop = routingTable.findNextHop(queryId, this.chordNode.getProximityTable());
+        Log.trace(() -> "queryid: " + queryId + " next hop " + nextHop.getAddress() + ":" + nextHop.getPort());
+
+        return nextHop;
+    }
+
+    private Finger findClosestPrecedingFinger(RoutingTable routingTable, long queryId) {
+        Finger closestPredecessor = routingTable.findClosestPrecedingFinger(queryId);
+        Log.trace(() -> "queryid: " + queryId + " closest preceding finger " + closestPredecessor.getAddress() + ":" + closestPredecessor.getPort());
+
+        return closestPredecessor;
+    }
+
+    /**
+     * Wraps the query id if it is as big as the ring
+     */
+    private static long wrap(long queryId) {
+        return queryId & Chord.RING_MASK;
     }
 
 }
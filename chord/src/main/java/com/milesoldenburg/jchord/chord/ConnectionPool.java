@@ -0,0 +1,376 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps persistent connections to other Chord nodes so that lookups, heartbeats and stabilization do not pay for a new TCP handshake on every message. Connections are keyed by the address:port of the remote finger, validated with a ping when they have been idle for a while and closed by the evictor once they have been idle for too long.
+ */
+public class ConnectionPool implements Runnable {
+
+    private final static int maxIdlePerPeer = 8;
+    private final static int connectTimeoutMillis = 5000;
+    private final static int readTimeoutMillis = 30000;
+    private final static int validateAfterMillis = 10000;
+    private final static int idleTimeoutMillis = 60000;
+    private final static int evictionDelaySeconds = 15;
+    private final static long textOnlyMillis = 300000;
+
+    private ChordNode chordNode;
+    private ConcurrentMap<String, Deque<PeerConnection>> idleConnections = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, Long> textOnlyPeers = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public ConnectionPool(ChordNode chordNode) {
+        this.chordNode = chordNode;
+    }
+
+    /**
+     * Periodically closes connections that have been idle for longer than the idle timeout
+     */
+    public void run() {
+        try {
+            while (this.running) {
+                Thread.sleep(ConnectionPool.evictionDelaySeconds * 1000);
+                this.evictIdle();
+            }
+        } catch (InterruptedException e) {
+            Log.error("evictIdle() thread interrupted", e);
+        }
+    }
+
+    /**
+     * Sends a text message to a finger and waits for the single line response
+     *
+     * @param finger    The node to send the message to
+     * @param message   The message to send
+     * @return          The response line
+     * @throws IOException  If the node could not be reached
+     */
+    public String send(Finger finger, String message) throws IOException {
+        return this.call(finger, connection -> connection.send(message), ConnectionPool.isIdempotent(message));
+    }
+
+    /**
+     * Sends a storage command to the finger that owns its key, which answers it without forwarding
+     *
+     * @param finger    The owner of the key
+     * @param message   The command to send
+     * @return          The response line
+     * @throws IOException  If the node could not be reached
+     */
+    public String sendToOwner(Finger finger, String message) throws IOException {
+        return this.call(finger, connection -> connection.sendToOwner(message), ConnectionPool.isIdempotent(message));
+    }
+
+    /**
+     * Sends a storage command to a finger that was remembered as the owner of its key, which answers NOT_OWNER if it no longer owns it
+     *
+     * @param finger    The remembered owner of the key
+     * @param message   The command to send
+     * @return          The response line
+     * @throws IOException  If the node could not be reached
+     */
+    public String sendIfOwner(Finger finger, String message) throws IOException {
+        return this.call(finger, connection -> connection.sendIfOwner(message), ConnectionPool.isIdempotent(message));
+    }
+
+    /**
+     * Sends a text message to a finger that does not expect a response
+     *
+     * @param finger    The node to send the message to
+     * @param message   The message to send
+     * @throws IOException  If the node could not be reached
+     */
+    public void write(Finger finger, String message) throws IOException {
+        this.call(finger, connection -> {
+            connection.write(message);
+            return null;
+        });
+    }
+
+    /**
+     * Asks a finger for the node that owns an id
+     *
+     * @param finger    The node to ask
+     * @param id        The id to look up
+     * @return          The owner, or null if the finger could not find it
+     * @throws IOException  If the node could not be reached
+     */
+    public Finger findNode(Finger finger, long id) throws IOException {
+        return this.callIdempotent(finger, connection -> connection.findNode(id));
+    }
+
+    /**
+     * Asks a finger for the owners of several ids in one message
+     *
+     * @param finger    The node to ask
+     * @param ids       The ids to look up
+     * @param hopsLeft  How many more times the finger may forward the ids it cannot answer
+     * @return          The owners in the order of the ids, null where the owner was not found
+     * @throws IOException  If the node could not be reached
+     */
+    public Finger[] findNodes(Finger finger, long[] ids, int hopsLeft) throws IOException {
+        return this.callIdempotent(finger, connection -> connection.findNodes(ids, hopsLeft));
+    }
+
+    /**
+     * Asks a finger for a single step of an iterative lookup
+     *
+     * @param finger    The node to ask
+     * @param id        The id to look up
+     * @return          The owner of the id or the next node to ask, or null if the finger could not answer
+     * @throws IOException  If the node could not be reached
+     */
+    public NextHop findNextHop(Finger finger, long id) throws IOException {
+        return this.callIdempotent(finger, connection -> connection.findNextHop(id));
+    }
+
+    /**
+     * Asks a finger for the next batch of a key range transfer
+     *
+     * @param finger    The node that owns the range
+     * @param phase     The phase of the transfer
+     * @param offset    Where the batch starts within the phase
+     * @param receiver  The virtual node that takes the range over
+     * @param keys      The keys whose records are asked for in the RECORDS phase, or null
+     * @return          The batch, or null if the node does not own the range or forgot the transfer
+     * @throws IOException  If the node could not be reached
+     */
+    public KeyBatch fetchKeys(Finger finger, byte phase, int offset, Finger receiver, KeyBatch keys) throws IOException {
+        return this.call(finger, connection -> connection.fetchKeys(phase, offset, finger, receiver, keys));
+    }
+
+    /**
+     * Runs a request on a pooled connection to a finger. If a pooled connection turns out to be stale before the request was written, the request is retried once on a fresh connection. Once the request was written the remote node may already have applied it, so it is not sent again. Every answered request tells the failure detector that the finger is alive.
+     *
+     * @param finger    The node to send the request to
+     * @param request   The request to run on the connection
+     * @return          The result of the request
+     * @throws IOException  If the node could not be reached
+     */
+    public <T> T call(Finger finger, Request<T> request) throws IOException {
+        return this.call(finger, request, false);
+    }
+
+    /**
+     * Runs a request that does not change the state of the remote node, like a lookup or a read, on a pooled connection to a finger. A pooled connection that turns out to be stale is discarded and the request is retried once on a fresh connection, even if it was already written.
+     *
+     * @param finger    The node to send the request to
+     * @param request   The request to run on the connection
+     * @return          The result of the request
+     * @throws IOException  If the node could not be reached
+     */
+    public <T> T callIdempotent(Finger finger, Request<T> request) throws IOException {
+        return this.call(finger, request, true);
+    }
+
+    private <T> T call(Finger finger, Request<T> request, boolean idempotent) throws IOException {
+        PeerConnection connection = this.borrow(finger);
+        boolean reused = connection.isReused();
+        int written = connection.getRequests();
+
+        try {
+            T response = request.run(connection);
+            this.release(connection);
+            this.chordNode.getFailureDetector().seen(finger);
+
+            return response;
+        } catch (IOException e) {
+            connection.close();
+
+            if (!reused || (!idempotent && connection.getRequests() != written)) {
+                throw e;
+            }
+        }
+
+        // Retry once on a connection that is known to be new
+        connection = this.connect(finger);
+
+        try {
+            T response = request.run(connection);
+            this.release(connection);
+            this.chordNode.getFailureDetector().seen(finger);
+
+            return response;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes an idle connection to the finger out of the pool, or opens a new one if there is no healthy idle connection
+     *
+     * @param finger    The node to connect to
+     * @return          A connection that is exclusively owned by the caller until it is released
+     * @throws IOException  If a new connection could not be opened
+     */
+    public PeerConnection borrow(Finger finger) throws IOException {
+        Deque<PeerConnection> connections = this.idleConnections.get(ConnectionPool.getKey(finger));
+
+        if (connections != null) {
+            PeerConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                long idleMillis = System.currentTimeMillis() - connection.getLastUsed();
+
+                // Only hand out connections that are still open, and ping the ones that have been quiet for a while
+                if (connection.isOpen() && idleMillis < ConnectionPool.idleTimeoutMillis && (idleMillis < ConnectionPool.validateAfterMillis || connection.ping(this.chordNode.getId()))) {
+                    return connection;
+                }
+
+                connection.close();
+            }
+        }
+
+        return this.connect(finger);
+    }
+
+    /**
+     * Returns a connection to the pool so that it can be reused. Broken connections and connections beyond the per peer limit are closed.
+     *
+     * @param connection    The connection to return
+     */
+    public void release(PeerConnection connection) {
+        if (!this.running || !connection.isOpen()) {
+            connection.close();
+            return;
+        }
+
+        Deque<PeerConnection> connections = this.idleConnections.get(connection.getKey());
+        if (connections == null) {
+            Deque<PeerConnection> newConnections = new ConcurrentLinkedDeque<>();
+            connections = this.idleConnections.putIfAbsent(connection.getKey(), newConnections);
+            if (connections == null) {
+                connections = newConnections;
+            }
+        }
+
+        if (connections.size() < ConnectionPool.maxIdlePerPeer) {
+            // Most recently used connections go to the front so that the oldest ones age out
+            connections.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes every idle connection to the finger, for example after it has been detected as failed
+     *
+     * @param finger    The node whose connections should be dropped
+     */
+    public void invalidate(Finger finger) {
+        Deque<PeerConnection> connections = this.idleConnections.remove(ConnectionPool.getKey(finger));
+
+        if (connections != null) {
+            PeerConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops pooling new ones
+     */
+    public void close() {
+        this.running = false;
+
+        for (String key : this.idleConnections.keySet()) {
+            Deque<PeerConnection> connections = this.idleConnections.remove(key);
+
+            PeerConnection connection;
+            while (connections != null && (connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, Deque<PeerConnection>> entry : this.idleConnections.entrySet()) {
+            Iterator<PeerConnection> iterator = entry.getValue().iterator();
+            while (iterator.hasNext()) {
+                PeerConnection connection = iterator.next();
+
+                if (!connection.isOpen() || now - connection.getLastUsed() >= ConnectionPool.idleTimeoutMillis) {
+                    // Only close the connection if nobody borrowed it in the meantime
+                    if (entry.getValue().remove(connection)) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection to the finger. The binary protocol is tried first unless the peer turned it down recently. A peer that accepted the connection but did not answer the binary handshake is remembered as text only for a while, a peer that could not be reached at all is not.
+     *
+     * @param finger    The node to connect to
+     * @return          A new connection
+     * @throws IOException  If the node could not be reached
+     */
+    private PeerConnection connect(Finger finger) throws IOException {
+        String key = ConnectionPool.getKey(finger);
+        Long textOnlySince = this.textOnlyPeers.get(key);
+
+        if (textOnlySince != null && System.currentTimeMillis() - textOnlySince > ConnectionPool.textOnlyMillis) {
+            // Try the binary protocol again, the peer may have been upgraded or was only slow to answer
+            this.textOnlyPeers.remove(key, textOnlySince);
+            textOnlySince = null;
+        }
+
+        if (Chord.BINARY_PROTOCOL && textOnlySince == null) {
+            try {
+                return new PeerConnection(key, finger.getAddress(), finger.getPort(), ConnectionPool.connectTimeoutMillis, ConnectionPool.readTimeoutMillis, true);
+            } catch (ProtocolException e) {
+                this.textOnlyPeers.put(key, System.currentTimeMillis());
+            }
+        }
+
+        return new PeerConnection(key, finger.getAddress(), finger.getPort(), ConnectionPool.connectTimeoutMillis, ConnectionPool.readTimeoutMillis, false);
+    }
+
+    /**
+     * @return  True if the text message only reads the state of the node it is sent to, so sending it twice does no harm
+     */
+    private static boolean isIdempotent(String message) {
+        int commandEnd = message.indexOf(':');
+
+        switch (commandEnd < 0 ? message : message.substring(0, commandEnd)) {
+            case Chord.GET:
+            case Chord.FIND_VALUE:
+            case Chord.FIND_NODE:
+            case Chord.FIND_NODES:
+            case Chord.FIND_NEXT_HOP:
+            case Chord.FIND_REPLICAS:
+            case Chord.REQUEST_PREDECESSOR:
+            case Chord.PING_QUERY:
+            case Chord.STATS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static String getKey(Finger finger) {
+        return finger.getAddress() + ":" + finger.getPort();
+    }
+
+    /**
+     * A request that is run on a borrowed connection
+     */
+    public interface Request<T> {
+
+        T run(PeerConnection connection) throws IOException;
+
+    }
+
+}
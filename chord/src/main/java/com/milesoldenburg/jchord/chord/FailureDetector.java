@@ -0,0 +1,174 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Phi accrual failure detector for the neighbors of a node. Instead of deciding that a node failed after a single missed ping, it keeps the intervals between the heartbeats of every monitored node and expresses how unlikely the current silence is as phi, the negative base 10 logarithm of the probability that a heartbeat still arrives this late. A phi of 1 means a 10% chance of a wrong suspicion, 2 means 1%, 3 means 0.1% and so on, so a single threshold gives fast detection on a steady network and tolerates jitter and GC pauses where the intervals have been uneven.
+ *
+ * Only heartbeats extend the interval history. Any other response from a monitored node is counted as proof of life and restarts the silence without skewing the expected interval.
+ */
+public class FailureDetector {
+
+    private final static int windowSize = 100;
+
+    private double expectedIntervalMillis;
+    private double acceptablePauseMillis;
+    private double minStdDeviationMillis;
+    private ConcurrentMap<Finger, History> histories = new ConcurrentHashMap<>();
+
+    /**
+     * @param expectedIntervalMillis    The time between two heartbeats, used until a node has sent heartbeats of its own
+     * @param acceptablePauseMillis     The silence that is added to the expected interval before a node becomes suspect, which absorbs GC pauses and short network hiccups
+     * @param minStdDeviationMillis     The lowest standard deviation assumed for the intervals, so that a very regular node is not suspected on its first late heartbeat
+     */
+    public FailureDetector(long expectedIntervalMillis, long acceptablePauseMillis, long minStdDeviationMillis) {
+        this.expectedIntervalMillis = expectedIntervalMillis;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        this.minStdDeviationMillis = minStdDeviationMillis;
+    }
+
+    /**
+     * Starts watching a node, counting from now as if it had just sent a heartbeat. Does nothing if the node is watched already.
+     *
+     * @param node  The node to watch
+     */
+    public void monitor(Finger node) {
+        this.histories.computeIfAbsent(node, n -> new History(System.nanoTime()));
+    }
+
+    /**
+     * Records a heartbeat of a watched node
+     *
+     * @param node  The node that answered a heartbeat
+     */
+    public void heartbeat(Finger node) {
+        History history = this.histories.get(node);
+
+        if (history != null) {
+            history.heartbeat(System.nanoTime());
+        }
+    }
+
+    /**
+     * Records that a node answered any other message. Cheap enough to call for every response, nodes that are not watched are ignored.
+     *
+     * @param node  The node that answered
+     */
+    public void seen(Finger node) {
+        History history = this.histories.get(node);
+
+        if (history != null) {
+            history.lastSeenNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param node  The node to judge
+     * @return      How strongly the node is suspected to have failed, 0 if it is not watched
+     */
+    public double phi(Finger node) {
+        History history = this.histories.get(node);
+        if (history == null) {
+            return 0;
+        }
+
+        return history.phi(System.nanoTime());
+    }
+
+    /**
+     * Stops watching a node, for example because it failed or is no longer a neighbor
+     *
+     * @param node  The node to forget
+     */
+    public void forget(Finger node) {
+        this.histories.remove(node);
+    }
+
+    /**
+     * Stops watching every node except the given ones
+     *
+     * @param nodes The nodes that are still watched
+     */
+    public void retain(Finger... nodes) {
+        this.histories.keySet().retainAll(List.of(nodes));
+    }
+
+    /**
+     * The heartbeat intervals of one node. The mean and variance are kept as running sums over a sliding window, so judging a node does not walk the window.
+     */
+    private class History {
+
+        private double[] intervals = new double[FailureDetector.windowSize];
+        private int count = 0;
+        private int next = 0;
+        private double sum = 0;
+        private double sumOfSquares = 0;
+        private long lastHeartbeatNanos;
+        private volatile long lastSeenNanos;
+
+        private History(long nowNanos) {
+            this.lastHeartbeatNanos = nowNanos;
+            this.lastSeenNanos = nowNanos;
+        }
+
+        private synchronized void heartbeat(long nowNanos) {
+            double interval = (nowNanos - this.lastHeartbeatNanos) / 1e6;
+
+            if (this.count == this.intervals.length) {
+                double oldest = this.intervals[this.next];
+                this.sum -= oldest;
+                this.sumOfSquares -= oldest * oldest;
+            } else {
+                this.count++;
+            }
+
+            this.intervals[this.next] = interval;
+            this.next = (this.next + 1) % this.intervals.length;
+            this.sum += interval;
+            this.sumOfSquares += interval * interval;
+
+            this.lastHeartbeatNanos = nowNanos;
+            this.lastSeenNanos = nowNanos;
+        }
+
+        private synchronized double phi(long nowNanos) {
+            double silenceMillis = (nowNanos - Math.max(this.lastHeartbeatNanos, this.lastSeenNanos)) / 1e6;
+
+            // Until the node has sent heartbeats of its own, assume the configured interval with a quarter of it as deviation
+            double mean = FailureDetector.this.expectedIntervalMillis;
+            double stdDeviation = mean / 4;
+            if (this.count > 0) {
+                mean = this.sum / this.count;
+                stdDeviation = Math.sqrt(Math.max(0, this.sumOfSquares / this.count - mean * mean));
+            }
+
+            mean += FailureDetector.this.acceptablePauseMillis;
+            stdDeviation = Math.max(stdDeviation, FailureDetector.this.minStdDeviationMillis);
+
+            return FailureDetector.phi(silenceMillis, mean, stdDeviation);
+        }
+
+    }
+
+    /**
+     * Computes phi with the logistic approximation of the normal distribution, which stays finite far into the tail where 1 - cdf rounds to 0
+     *
+     * @param silenceMillis     The time since the node was last heard of
+     * @param meanMillis        The mean interval between heartbeats
+     * @param stdDeviation      The standard deviation of the intervals
+     * @return                  -log10 of the probability that the node is still alive
+     */
+    public static double phi(double silenceMillis, double meanMillis, double stdDeviation) {
+        double y = (silenceMillis - meanMillis) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        if (silenceMillis > meanMillis) {
+            return -Math.log10(e / (1.0 + e));
+        }
+
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+}
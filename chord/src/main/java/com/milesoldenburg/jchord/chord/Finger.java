@@ -1,21 +1,120 @@
 package com.milesoldenburg.jchord.chord;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * A simple bean type class for storing finger address and port.
+ *
+ * A process may serve several positions on the ring, its virtual nodes. Virtual node 0 sits at the hash of address:port as always, virtual node n at the hash of address:port#n. Fingers of virtual nodes other than 0 are written as address:port#n in text messages and carry n in the upper 16 bits of the port in binary messages.
+ *
+ * Fingers are immutable, so the same peer can share one instance. Finger.of() hands out that shared instance, which spares hashing the address again every time a peer shows up in a response. The shared fingers sit in a fixed table indexed by the hash of address, port and virtual node, a finger that lands on a taken slot replaces the one there.
  */
 public class Finger {
 
-    private String address;
-    private int port;
-    private long id;
+    private final static int maxInterned = 65536;
+    private final static AtomicReferenceArray<Finger> interned = new AtomicReferenceArray<>(Finger.maxInterned);
+
+    private final String address;
+    private final int port;
+    private final int virtualNode;
+    private final long id;
+    private final byte[] addressBytes;
 
     public Finger(String address, int port) {
+        this(address, port, 0);
+    }
+
+    public Finger(String address, int port, int virtualNode) {
         this.address = address;
         this.port = port;
+        this.virtualNode = virtualNode;
+
+        // Keep the encoded address around so binary responses do not have to encode it again
+        this.addressBytes = address.getBytes(StandardCharsets.UTF_8);
+
+        // Hash address:port, or address:port#n for further virtual nodes
+        this.id = virtualNode == 0 ? SHA1Hasher.hash(this.address, this.port) : SHA1Hasher.hash(this.toString());
+    }
+
+    /**
+     * Returns the shared finger for a peer, creating it the first time the peer is seen
+     *
+     * @param address   The address of the peer
+     * @param port      The port of the peer
+     * @return          The finger of the peer
+     */
+    public static Finger of(String address, int port) {
+        return Finger.of(address, port, 0);
+    }
+
+    /**
+     * Returns the shared finger for a virtual node of a peer, creating it the first time the virtual node is seen
+     *
+     * @param address       The address of the peer
+     * @param port          The port of the peer
+     * @param virtualNode   The virtual node of the peer
+     * @return              The finger of the virtual node
+     */
+    public static Finger of(String address, int port, int virtualNode) {
+        int slot = Finger.hash(address, port, virtualNode) & (Finger.maxInterned - 1);
+        Finger finger = Finger.interned.get(slot);
+
+        if (finger != null && finger.port == port && finger.virtualNode == virtualNode && finger.address.equals(address)) {
+            return finger;
+        }
+
+        // Peers that collide on a slot take turns, which bounds the table no matter how many addresses churn through
+        finger = new Finger(address, port, virtualNode);
+        Finger.interned.set(slot, finger);
+        return finger;
+    }
+
+    /**
+     * Parses a finger written as address:port or address:port#n
+     *
+     * @param text  The written finger
+     * @return      The finger, or null if the text has no port
+     * @throws NumberFormatException    If the port or virtual node is not a number
+     */
+    public static Finger parse(String text) {
+        int portStart = text.indexOf(':');
+        if (portStart < 0) {
+            return null;
+        }
+
+        int virtualNodeStart = text.indexOf('#', portStart);
+        if (virtualNodeStart < 0) {
+            return Finger.of(text.substring(0, portStart), Integer.parseInt(text, portStart + 1, text.length(), 10));
+        }
+
+        return Finger.of(text.substring(0, portStart), Integer.parseInt(text, portStart + 1, virtualNodeStart, 10), Integer.parseInt(text, virtualNodeStart + 1, text.length(), 10));
+    }
+
+    /**
+     * Reads a finger from its binary form, where the virtual node is kept in the upper 16 bits of the port
+     *
+     * @param address       The address of the peer
+     * @param portAndIndex  The port and virtual node
+     * @return              The finger
+     */
+    public static Finger fromBinary(String address, int portAndIndex) {
+        return Finger.of(address, portAndIndex & 0xFFFF, portAndIndex >>> 16);
+    }
+
+    /**
+     * @return  The port with the virtual node in the upper 16 bits, as written in binary messages
+     */
+    public int toBinaryPort() {
+        return this.port | (this.virtualNode << 16);
+    }
 
-        // Hash address:port
-        SHA1Hasher sha1Hasher = new SHA1Hasher(this.address + ":" + this.port);
-        this.id = sha1Hasher.getLong();
+    /**
+     * @param other The finger to compare with
+     * @return      True if both fingers are served by the same process, possibly as different virtual nodes
+     */
+    public boolean isSameProcess(Finger other) {
+        return this.port == other.port && this.address.equals(other.address);
     }
 
     public String getAddress() {
@@ -26,8 +125,53 @@ public class Finger {
         return this.port;
     }
 
+    public int getVirtualNode() {
+        return this.virtualNode;
+    }
+
+    public byte[] getAddressBytes() {
+        return this.addressBytes;
+    }
+
     public long getId() {
         return this.id;
     }
 
+    /**
+     * Two fingers are equal if they refer to the same virtual node of the same address and port
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof Finger)) {
+            return false;
+        }
+
+        Finger finger = (Finger) other;
+        return this.port == finger.port && this.virtualNode == finger.virtualNode && this.address.equals(finger.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return Finger.hash(this.address, this.port, this.virtualNode);
+    }
+
+    /**
+     * @return  The finger as written in text messages, address:port or address:port#n
+     */
+    @Override
+    public String toString() {
+        return this.virtualNode == 0 ? this.address + ":" + this.port : this.address + ":" + this.port + "#" + this.virtualNode;
+    }
+
+    private static int hash(String address, int port, int virtualNode) {
+        int hash = 31 * (31 * address.hashCode() + port) + virtualNode;
+
+        // Spread the upper bits into the lower ones, which pick the slot
+        return hash ^ (hash >>> 16);
+    }
+
 }
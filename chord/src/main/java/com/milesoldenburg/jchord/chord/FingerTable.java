@@ -0,0 +1,105 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.Arrays;
+
+/**
+ * Compact, read only view of the fingers of a node used for routing. Most of the fingers point at the same few nodes, so every node is kept once, ordered by its clockwise distance from this node. The distances live in a primitive array next to the nodes so the closest preceding finger is found with a binary search that neither boxes nor allocates.
+ */
+public class FingerTable {
+
+    private final long[] offsets;
+    private final Finger[] nodes;
+    private final long selfId;
+
+    public FingerTable(long selfId, Finger[] fingers) {
+        this.selfId = selfId;
+
+        long[] offsets = new long[fingers.length];
+        Finger[] nodes = new Finger[fingers.length];
+        int size = 0;
+
+        // Insertion sort by clockwise distance from this node, skipping nodes we already have
+        for (Finger finger : fingers) {
+            long offset = RoutingTable.distance(selfId, finger.getId());
+
+            int index = size;
+            while (index > 0 && Long.compareUnsigned(offsets[index - 1], offset) > 0) {
+                index--;
+            }
+
+            if (index > 0 && offsets[index - 1] == offset) {
+                continue;
+            }
+
+            System.arraycopy(offsets, index, offsets, index + 1, size - index);
+            System.arraycopy(nodes, index, nodes, index + 1, size - index);
+            offsets[index] = offset;
+            nodes[index] = finger;
+            size++;
+        }
+
+        this.offsets = Arrays.copyOf(offsets, size);
+        this.nodes = Arrays.copyOf(nodes, size);
+    }
+
+    /**
+     * Finds the finger that is closest to the key id while not being past it, going clockwise. This is the finger with the largest distance from this node that does not exceed the distance of the key. If every finger lies past the key the search wraps around to the furthest finger.
+     *
+     * @param queryId   The id that is looked up
+     * @return          The closest preceding finger
+     */
+    public Finger findClosestPrecedingFinger(long queryId) {
+        return this.nodes[this.indexOfClosestPrecedingFinger(queryId)];
+    }
+
+    /**
+     * Same search as findClosestPrecedingFinger but returns the position of the finger, which lets callers group ids by the node they are sent to
+     *
+     * @param queryId   The id that is looked up
+     * @return          The position of the closest preceding finger in clockwise order
+     */
+    public int indexOfClosestPrecedingFinger(long queryId) {
+        long queryOffset = RoutingTable.distance(this.selfId, queryId);
+
+        // Find the number of fingers whose distance is less than or equal to the distance of the query
+        int low = 0;
+        int high = this.offsets.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (Long.compareUnsigned(this.offsets[middle], queryOffset) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        // No finger precedes the query so the furthest finger is closest going around the ring
+        int index = low - 1;
+        if (index < 0) {
+            index = this.offsets.length - 1;
+        }
+
+        return index;
+    }
+
+    /**
+     * @return  The number of distinct nodes in the finger table
+     */
+    public int size() {
+        return this.nodes.length;
+    }
+
+    public Finger getNode(int index) {
+        return this.nodes[index];
+    }
+
+    /**
+     * @param index The position in clockwise order
+     * @return      The clockwise distance of the node from this node
+     */
+    public long getOffset(int index) {
+        return this.offsets[index];
+    }
+
+}
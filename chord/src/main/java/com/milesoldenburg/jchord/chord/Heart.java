@@ -1,16 +1,17 @@
 package com.milesoldenburg.jchord.chord;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Watches the first successor and predecessor of every virtual node of a process. Pings are sent every heartbeat interval over pooled connections and answered pings feed the failure detector, while a neighbor is only dropped once its phi crosses the configured threshold. A single lost ping or a short pause of the neighbor therefore does not cause a failover, while a neighbor that stopped answering is dropped a few intervals after its last response.
+ */
 public class Heart implements Runnable {
 
     private ChordNode chordNode = null;
-    private final static int initialDelaySeconds = 30;
-    private final static int delaySeconds = 5;
+    private Set<Finger> pingsInFlight = ConcurrentHashMap.newKeySet();
 
     public Heart(ChordNode chordNode) {
         this.chordNode = chordNode;
@@ -21,95 +22,76 @@ public class Heart implements Runnable {
      */
     public void run() {
         try {
-            Thread.sleep(Heart.initialDelaySeconds * 1000);
+            Thread.sleep(Chord.HEARTBEAT_INTERVAL);
 
             while (true) {
-                this.testSuccessor();
-                this.testPredecessor();
+                Set<Finger> neighbors = new LinkedHashSet<>();
+                for (int virtualNode = 0; virtualNode < this.chordNode.getVirtualNodeCount(); virtualNode++) {
+                    RoutingTable routingTable = this.chordNode.getRoutingTable(virtualNode);
+                    neighbors.add(routingTable.getFirstSuccessor());
+                    neighbors.add(routingTable.getFirstPredecessor());
+                }
+
+                // Neighbors that were replaced by stabilization are no longer watched
+                this.chordNode.getFailureDetector().retain(neighbors.toArray(new Finger[0]));
 
-                Thread.sleep(Heart.delaySeconds * 1000);
+                for (Finger neighbor : neighbors) {
+                    this.testNeighbor(neighbor);
+                }
+
+                Thread.sleep(Chord.HEARTBEAT_INTERVAL);
             }
         } catch (InterruptedException e) {
-            System.err.println("checkNeighbors() thread interrupted");
-            e.printStackTrace();
+            Log.error("checkNeighbors() thread interrupted", e);
         }
     }
 
-    private void testSuccessor() {
+    /**
+     * Fails over from a neighbor that is suspected too strongly, otherwise pings it again
+     */
+    private void testNeighbor(Finger neighbor) {
         // Only send heartbeats if we are not the destination
-        if (!this.chordNode.getAddress().equals(this.chordNode.getFirstSuccessor().getAddress()) || (this.chordNode.getPort() != this.chordNode.getFirstSuccessor().getPort())) {
-            try {
-                // Open socket to successor
-                Socket socket = new Socket(this.chordNode.getFirstSuccessor().getAddress(), this.chordNode.getFirstSuccessor().getPort());
-
-                // Open reader/writer to chord node
-                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                // Send a ping
-                socketWriter.println(Chord.PING_QUERY + ":" + this.chordNode.getId());
-                System.out.println("Sent: " + Chord.PING_QUERY + ":" + this.chordNode.getId());
-
-                // Read response
-                String serverResponse = socketReader.readLine();
-                System.out.println("Received: " + serverResponse);
-
-                // If we do not receive the proper response then something has gone wrong and we need to set our new immediate successor to the backup
-                if (!serverResponse.equals(Chord.PING_RESPONSE)) {
-                    this.chordNode.acquire();
-                    this.chordNode.setFirstSuccessor(this.chordNode.getSecondSuccessor());
-                    this.chordNode.getFingers().put(0, this.chordNode.getSecondSuccessor());
-                    this.chordNode.release();
-                }
+        if (this.chordNode.isLocal(neighbor)) {
+            return;
+        }
 
-                // Close connections
-                socketWriter.close();
-                socketReader.close();
-                socket.close();
-            } catch (IOException e) {
-                this.chordNode.acquire();
-                this.chordNode.setFirstSuccessor(this.chordNode.getSecondSuccessor());
-                this.chordNode.getFingers().put(0, this.chordNode.getSecondSuccessor());
-                this.chordNode.release();
-            }
+        FailureDetector failureDetector = this.chordNode.getFailureDetector();
+        failureDetector.monitor(neighbor);
+
+        double phi = failureDetector.phi(neighbor);
+        if (phi > Chord.FAILURE_PHI) {
+            Log.warn("Suspecting " + neighbor + " with phi " + String.format("%.1f", phi));
+            this.chordNode.getMetrics().recordDetectedFailure();
+
+            // The next entry of the successor list or the backup predecessor takes over
+            this.chordNode.removeNode(neighbor);
+            return;
         }
-    }
 
-    private void testPredecessor() {
-        // Only send heartbeats if we are not the destination
-        if (!this.chordNode.getAddress().equals(this.chordNode.getFirstPredecessor().getAddress()) || (this.chordNode.getPort() != this.chordNode.getFirstPredecessor().getPort())) {
-            try {
-                // Open socket to predecessor
-                Socket socket = new Socket(this.chordNode.getFirstPredecessor().getAddress(), this.chordNode.getFirstPredecessor().getPort());
-
-                // Open reader/writer to chord node
-                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                // Send a ping
-                socketWriter.println(Chord.PING_QUERY + ":" + this.chordNode.getId());
-                System.out.println("Sent: " + Chord.PING_QUERY + ":" + this.chordNode.getId());
-
-                // Read response
-                String serverResponse = socketReader.readLine();
-                System.out.println("Received: " + serverResponse);
-
-                // If we do not receive the proper response then something has gone wrong and we need to set our new immediate predecessor to the backup
-                if (!serverResponse.equals(Chord.PING_RESPONSE)) {
-                    this.chordNode.acquire();
-                    this.chordNode.setFirstPredecessor(this.chordNode.getSecondPredecessor());
-                    this.chordNode.release();
-                }
+        // Ping without waiting, so a neighbor that hangs keeps raising its phi instead of stalling the heart, and never pile up pings to the same neighbor
+        if (this.pingsInFlight.add(neighbor)) {
+            this.chordNode.getExecutor().execute(() -> this.ping(neighbor));
+        }
+    }
 
-                // Close connections
-                socketWriter.close();
-                socketReader.close();
-                socket.close();
-            } catch (IOException e) {
-                this.chordNode.acquire();
-                this.chordNode.setFirstPredecessor(this.chordNode.getSecondPredecessor());
-                this.chordNode.release();
+    private void ping(Finger neighbor) {
+        try {
+            // Send a ping to the neighbor over a pooled connection and read response
+            long start = System.nanoTime();
+            String serverResponse = this.chordNode.getConnectionPool().send(neighbor, Chord.PING_QUERY + ":" + this.chordNode.getId());
+            Log.debug(() -> "Sent: " + Chord.PING_QUERY + ":" + this.chordNode.getId());
+            Log.debug(() -> "Received: " + serverResponse);
+
+            // Only the proper response counts as a heartbeat
+            if (serverResponse.equals(Chord.PING_RESPONSE)) {
+                this.chordNode.getMetrics().recordHeartbeatRoundTrip(start);
+                this.chordNode.getProximityTable().record(neighbor, start);
+                this.chordNode.getFailureDetector().heartbeat(neighbor);
             }
+        } catch (IOException e) {
+            Log.debug(() -> "Ping to " + neighbor + " failed: " + e.getMessage());
+        } finally {
+            this.pingsInFlight.remove(neighbor);
         }
     }
 
@@ -0,0 +1,181 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * One batch of a key range transfer: stored records with the ids they are stored under, keys that were deleted since the transfer started, the offset the next batch of the same phase starts at, and the node that the transferred range starts after. A receiver that asks for the records of certain keys sends them as a batch of deleted keys without a predecessor.
+ *
+ * In the text protocol a batch is written as [nextoffset]:[entries]:[predecessor], where the entries are separated by commas and written as [id]=[record] for a stored record or [id]~[key] for a deleted key, with the bytes in URL safe Base64.
+ */
+public class KeyBatch {
+
+    private Finger predecessor;
+    private int nextOffset = -1;
+    private long[] ids = new long[16];
+    private byte[][] records = new byte[16][];
+    private boolean[] deleted = new boolean[16];
+    private int size = 0;
+    private int bytes = 0;
+
+    public KeyBatch(Finger predecessor) {
+        this.predecessor = predecessor;
+    }
+
+    /**
+     * Adds a stored record, which is shared rather than copied
+     *
+     * @param id        The ring id of the key
+     * @param record    The record as it is stored
+     */
+    public void add(long id, byte[] record) {
+        this.add(id, record, false);
+    }
+
+    /**
+     * Adds a key that was deleted
+     *
+     * @param id        The ring id of the key
+     * @param keyBytes  The key in UTF-8
+     */
+    public void addDeleted(long id, byte[] keyBytes) {
+        this.add(id, keyBytes, true);
+    }
+
+    private void add(long id, byte[] bytes, boolean deleted) {
+        if (this.size == this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            this.records = Arrays.copyOf(this.records, this.size * 2);
+            this.deleted = Arrays.copyOf(this.deleted, this.size * 2);
+        }
+
+        this.ids[this.size] = id;
+        this.records[this.size] = bytes;
+        this.deleted[this.size] = deleted;
+        this.size++;
+        this.bytes += 8 + 1 + 4 + bytes.length;
+    }
+
+    /**
+     * Applies the batch to a store, stored records replace the current value of their key and deleted keys are removed
+     *
+     * @param store The store to update
+     * @return      The number of entries in the batch
+     */
+    public int applyTo(KeyValueStore store) {
+        for (int i = 0; i < this.size; i++) {
+            if (this.deleted[i]) {
+                store.remove(this.ids[i], this.records[i]);
+            } else {
+                store.putRecord(this.ids[i], this.records[i]);
+            }
+        }
+
+        return this.size;
+    }
+
+    public Finger getPredecessor() {
+        return this.predecessor;
+    }
+
+    /**
+     * @return  The offset to ask for next, or -1 if the phase is complete
+     */
+    public int getNextOffset() {
+        return this.nextOffset;
+    }
+
+    public void setNextOffset(int nextOffset) {
+        this.nextOffset = nextOffset;
+    }
+
+    public long getId(int index) {
+        return this.ids[index];
+    }
+
+    /**
+     * @return  The stored record, or the key in UTF-8 if the key was deleted
+     */
+    public byte[] getRecord(int index) {
+        return this.records[index];
+    }
+
+    public boolean isDeleted(int index) {
+        return this.deleted[index];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return  The number of bytes the entries take in a binary frame
+     */
+    public int getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Parses a batch written by format()
+     *
+     * @param text  The written batch
+     * @return      The batch, or null if the text is not a batch
+     */
+    public static KeyBatch parse(String text) {
+        String[] fragments = text.split(":", 3);
+        if (fragments.length < 3) {
+            return null;
+        }
+
+        KeyBatch batch = new KeyBatch(Finger.parse(fragments[2]));
+        batch.setNextOffset(Integer.parseInt(fragments[0]));
+        batch.parseEntries(fragments[1]);
+
+        return batch;
+    }
+
+    /**
+     * Adds the entries written by formatEntries()
+     *
+     * @param text  The written entries
+     */
+    public void parseEntries(String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+
+        for (String entry : text.split(",")) {
+            int separator = entry.indexOf('=');
+            boolean deleted = separator < 0;
+            if (deleted) {
+                separator = entry.indexOf('~');
+            }
+
+            this.add(Long.parseUnsignedLong(entry, 0, separator, 10), decoder.decode(entry.substring(separator + 1)), deleted);
+        }
+    }
+
+    /**
+     * @return  The batch in its text form
+     */
+    public String format() {
+        return this.nextOffset + ":" + this.formatEntries() + ":" + this.predecessor;
+    }
+
+    /**
+     * @return  The entries of the batch in their text form, without the offset and the predecessor
+     */
+    public String formatEntries() {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < this.size; i++) {
+            text.append(i > 0 ? "," : "").append(Long.toUnsignedString(this.ids[i])).append(this.deleted[i] ? '~' : '=').append(encoder.encodeToString(this.records[i]));
+        }
+
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,532 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Moves a range of keys from the node that owns it to the node that takes it over, when a node joins in front of its successor or leaves the ring. The receiving node pulls the range a batch at a time and only asks for the next batch once it stored the last one, so the owner never works ahead of the receiver and never holds more than one batch in flight. The owner keeps serving the range until the receiver has all of it, lookups are not interrupted by the move.
+ *
+ * A transfer runs in four phases. SNAPSHOT collects the entries of the range once, sharing the stored records instead of copying them, and hands them out in batches. CHANGES sends the keys written since the snapshot with their current record, or as deleted. HANDOVER makes the owner of a joining node's range adopt the joining node as its predecessor, from then on lookups reach the new node, and sends the changes up to that moment. CLOSE sends the changes of writes that were still running during the handover. DONE confirms that the receiver stored every batch, the owner sends any changes that came in since first and only then ends the transfer, so an owner never drops a range that did not arrive.
+ *
+ * A receiver that already has keys, because it recovered them from its log after a restart or kept them as a replica of a leaving owner, starts with DIGESTS instead of SNAPSHOT. The owner sends every key of the snapshot with a digest of its record and the receiver asks for the records that it lacks or that differ with RECORDS, so only what changed while the receiver was away crosses the network. Keys the owner does not have are kept, without replicas the owner lost them along with the receiver, but a key that was deleted while the receiver was away comes back with it.
+ */
+public class KeyHandoff {
+
+    public final static byte SNAPSHOT = 0;
+    public final static byte CHANGES = 1;
+    public final static byte HANDOVER = 2;
+    public final static byte CLOSE = 3;
+    public final static byte DIGESTS = 4;
+    public final static byte RECORDS = 5;
+    public final static byte DONE = 6;
+
+    private final static int batchBytes = 1024 * 1024;
+    private final static int requestBytes = 64 * 1024;
+    private final static long transferMaxIdleNanos = TimeUnit.SECONDS.toNanos(60);
+    private final static long leaveTimeoutMillis = 60000;
+
+    private ChordNode chordNode;
+    private ConcurrentMap<List<Finger>, Transfer> transfers = new ConcurrentHashMap<>();
+    private Set<Finger> leaving = ConcurrentHashMap.newKeySet();
+    private Set<Finger> copying = ConcurrentHashMap.newKeySet();
+
+    public KeyHandoff(ChordNode chordNode) {
+        this.chordNode = chordNode;
+    }
+
+    /**
+     * Takes a range over from the node that owns it by pulling it batch by batch until the transfer is closed
+     *
+     * @param owner     The virtual node that owns the range
+     * @param receiver  Our virtual node that takes the range over
+     * @return          The node the range starts after, which becomes the predecessor of the receiver
+     * @throws IOException  If the owner could not be reached or refused the transfer
+     */
+    public Finger pull(Finger owner, Finger receiver) throws IOException {
+        return this.pull(owner, receiver, predecessor -> {});
+    }
+
+    /**
+     * Takes a range over like pull(owner, receiver) and is told once the owner handed the range over, from then on lookups for the range end at the receiver while the transfer is still being closed
+     *
+     * @param owner         The virtual node that owns the range
+     * @param receiver      Our virtual node that takes the range over
+     * @param handedOver    Called with the node the range starts after once the owner handed the range over
+     * @return              The node the range starts after, which becomes the predecessor of the receiver
+     * @throws IOException  If the owner could not be reached or refused the transfer
+     */
+    public Finger pull(Finger owner, Finger receiver, Consumer<Finger> handedOver) throws IOException {
+        long start = System.nanoTime();
+        KeyValueStore store = this.chordNode.getStore();
+        byte firstPhase = KeyHandoff.SNAPSHOT;
+        int keys = 0;
+        int checked = 0;
+        Finger predecessor = null;
+
+        if (store.size() > 0) {
+            KeyBatch wanted = new KeyBatch(null);
+            int offset = 0;
+
+            do {
+                KeyBatch batch = this.fetch(owner, KeyHandoff.DIGESTS, offset, receiver, null);
+
+                for (int i = 0; i < batch.size(); i++) {
+                    byte[] digest = batch.getRecord(i);
+                    byte[] keyBytes = KeyValueStore.keyOf(digest);
+                    byte[] record = store.getRecord(batch.getId(i), keyBytes);
+
+                    if (record == null || KeyValueStore.digestOf(record) != ByteBuffer.wrap(digest).getLong(digest.length - 8)) {
+                        wanted.addDeleted(batch.getId(i), keyBytes);
+                    }
+                }
+
+                checked += batch.size();
+                predecessor = batch.getPredecessor();
+                offset = batch.getNextOffset();
+
+                if (wanted.getBytes() >= KeyHandoff.requestBytes || (offset < 0 && wanted.size() > 0)) {
+                    keys += this.fetchRecords(owner, receiver, wanted);
+                    wanted = new KeyBatch(null);
+                }
+            } while (offset >= 0);
+
+            firstPhase = KeyHandoff.CHANGES;
+        }
+
+        for (byte phase = firstPhase; phase <= KeyHandoff.CLOSE; phase++) {
+            int offset = 0;
+
+            do {
+                KeyBatch batch = this.fetch(owner, phase, offset, receiver, null);
+
+                keys += batch.applyTo(store);
+                predecessor = batch.getPredecessor();
+
+                if (phase == KeyHandoff.HANDOVER && offset == 0) {
+                    handedOver.accept(predecessor);
+                }
+
+                offset = batch.getNextOffset();
+            } while (offset >= 0);
+        }
+
+        // The owner ends the transfer once it is told that every batch is stored, changes that came in late are applied first
+        KeyBatch batch;
+        do {
+            batch = this.fetch(owner, KeyHandoff.DONE, 0, receiver, null);
+            keys += batch.applyTo(store);
+        } while (batch.size() > 0);
+
+        this.chordNode.getMetrics().recordKeysReceived(keys);
+
+        if (firstPhase == KeyHandoff.SNAPSHOT) {
+            Log.info("Took over " + keys + " keys from " + owner + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } else {
+            Log.info("Checked " + checked + " keys against " + owner + " and took over " + keys + " changed keys in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+
+        return predecessor;
+    }
+
+    /**
+     * Fetches the current records of keys from the owner, the owner answers with as many of them as fit into a batch and the rest is asked for again
+     *
+     * @return  The number of records and deleted keys received
+     */
+    private int fetchRecords(Finger owner, Finger receiver, KeyBatch wanted) throws IOException {
+        int keys = 0;
+        int offset = 0;
+
+        do {
+            KeyBatch batch = this.fetch(owner, KeyHandoff.RECORDS, offset, receiver, wanted);
+
+            keys += batch.applyTo(this.chordNode.getStore());
+            offset = batch.getNextOffset();
+        } while (offset >= 0);
+
+        return keys;
+    }
+
+    private KeyBatch fetch(Finger owner, byte phase, int offset, Finger receiver, KeyBatch keys) throws IOException {
+        KeyBatch batch = this.chordNode.getConnectionPool().fetchKeys(owner, phase, offset, receiver, keys);
+        if (batch == null) {
+            throw new IOException(owner + " refused the transfer");
+        }
+
+        return batch;
+    }
+
+    /**
+     * Handles the announcement of a node that leaves the ring. If one of our virtual nodes was named to take over its range it pulls the range and adopts the predecessor of the leaving node. Either way the leaving node is dropped from our routing tables, so lookups move on to the node that took over right away.
+     *
+     * @param leavingNode   The virtual node that is leaving
+     * @param receiver      The virtual node that takes over its range
+     */
+    public void takeOver(Finger leavingNode, Finger receiver) {
+        if (!this.chordNode.isLocal(receiver) || receiver.getVirtualNode() >= this.chordNode.getVirtualNodeCount()) {
+            this.chordNode.removeNode(leavingNode);
+            return;
+        }
+
+        int virtualNode = receiver.getVirtualNode();
+
+        try {
+            Finger predecessor = this.pull(leavingNode, receiver);
+
+            this.chordNode.removeNode(leavingNode);
+            this.chordNode.updateRoutingTable(virtualNode, routingTable -> routingTable.isCloserPredecessor(predecessor) ? routingTable.withNewPredecessor(predecessor) : routingTable);
+        } catch (IOException e) {
+            Log.warn("Could not take over the keys of leaving node " + leavingNode + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the range of an owner to one of our virtual nodes that became its replica. The owner asks for this when its replicas change or its range grew, so the copies that went away with a failed or departed node are made again. A replica that already holds keys of the range only fetches the records that it lacks or that differ.
+     *
+     * @param owner     The virtual node that owns the range
+     * @param replica   Our virtual node that keeps a copy of the range
+     */
+    public void copyRange(Finger owner, Finger replica) {
+        if (!this.chordNode.isLocal(replica) || !this.copying.add(owner)) {
+            return;
+        }
+
+        try {
+            this.pull(owner, replica);
+        } catch (IOException e) {
+            Log.warn("Could not copy the keys of " + owner + ": " + e.getMessage());
+        } finally {
+            this.copying.remove(owner);
+        }
+    }
+
+    /**
+     * Hands the keys of every virtual node over to the node that follows it before the process exits. A virtual node whose successor is another virtual node of this process is handed over along with that one, so only the virtual nodes followed by another process announce that they leave. Waits until every announced transfer is closed or the leave timeout passed, then tells the predecessors so they skip to the next successor without waiting for the failure detector.
+     */
+    public void leave() {
+        List<RoutingTable> announced = new ArrayList<>();
+
+        for (int virtualNode = 0; virtualNode < this.chordNode.getVirtualNodeCount(); virtualNode++) {
+            RoutingTable routingTable = this.chordNode.getRoutingTable(virtualNode);
+            Finger successor = routingTable.getFirstSuccessor();
+
+            if (this.chordNode.isLocal(successor)) {
+                continue;
+            }
+
+            try {
+                this.leaving.add(successor);
+                this.chordNode.getConnectionPool().write(successor, Chord.LEAVING + ":" + routingTable.getSelf() + "," + successor);
+                announced.add(routingTable);
+            } catch (IOException e) {
+                this.leaving.remove(successor);
+                Log.warn("Could not hand over keys to " + successor + ": " + e.getMessage());
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + KeyHandoff.leaveTimeoutMillis;
+
+        synchronized (this.leaving) {
+            while (!this.leaving.isEmpty() && System.currentTimeMillis() < deadline) {
+                try {
+                    this.leaving.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        if (!this.leaving.isEmpty()) {
+            Log.warn("Left without handing over keys to " + this.leaving);
+        }
+
+        for (RoutingTable routingTable : announced) {
+            Finger predecessor = routingTable.getFirstPredecessor();
+            Finger successor = routingTable.getFirstSuccessor();
+
+            if (this.chordNode.isLocal(predecessor) || predecessor.isSameProcess(successor)) {
+                continue;
+            }
+
+            try {
+                this.chordNode.getConnectionPool().write(predecessor, Chord.LEAVING + ":" + routingTable.getSelf() + "," + successor);
+            } catch (IOException e) {
+                Log.debug(() -> "Could not tell " + predecessor + " that we leave: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answers a request for the next batch of a transfer. The first SNAPSHOT or DIGESTS request starts the transfer: a receiver whose id lies in the range of the owner is joining and takes over the part up to its id, any other receiver follows a leaving owner or keeps a copy as its replica and takes the whole range of the owner, together with the ranges of virtual nodes of this process right before it.
+     *
+     * @param phase     The phase of the transfer
+     * @param offset    Where the batch starts within the phase
+     * @param owner     Our virtual node that owns the range
+     * @param receiver  The virtual node that takes the range over
+     * @param keys      The keys whose records are asked for in the RECORDS phase
+     * @return          The batch, or null if we do not own the range or the transfer is unknown
+     */
+    public KeyBatch serve(byte phase, int offset, Finger owner, Finger receiver, KeyBatch keys) {
+        this.evictIdle();
+
+        boolean starting = (phase == KeyHandoff.SNAPSHOT || phase == KeyHandoff.DIGESTS) && offset == 0;
+        Transfer transfer = starting ? this.start(owner, receiver) : this.transfers.get(List.of(owner, receiver));
+        if (transfer == null || !transfer.owner.equals(owner)) {
+            return null;
+        }
+
+        transfer.lastUsedNanos = System.nanoTime();
+        KeyBatch batch = new KeyBatch(transfer.predecessor);
+
+        switch (phase) {
+            case KeyHandoff.SNAPSHOT: {
+                int next = offset;
+                while (next < transfer.snapshot.size() && batch.getBytes() < KeyHandoff.batchBytes) {
+                    batch.add(transfer.snapshot.getId(next), transfer.snapshot.getRecord(next));
+                    next++;
+                }
+
+                batch.setNextOffset(next < transfer.snapshot.size() ? next : -1);
+                break;
+            }
+            case KeyHandoff.DIGESTS: {
+                int next = offset;
+                while (next < transfer.snapshot.size() && batch.getBytes() < KeyHandoff.batchBytes) {
+                    batch.add(transfer.snapshot.getId(next), KeyHandoff.digestRecordOf(transfer.snapshot.getRecord(next)));
+                    next++;
+                }
+
+                batch.setNextOffset(next < transfer.snapshot.size() ? next : -1);
+                break;
+            }
+            case KeyHandoff.RECORDS: {
+                if (keys == null) {
+                    return null;
+                }
+
+                KeyValueStore store = this.chordNode.getStore();
+                int next = offset;
+                while (next < keys.size() && batch.getBytes() < KeyHandoff.batchBytes) {
+                    byte[] record = store.getRecord(keys.getId(next), keys.getRecord(next));
+
+                    if (record != null) {
+                        batch.add(keys.getId(next), record);
+                    } else {
+                        batch.addDeleted(keys.getId(next), keys.getRecord(next));
+                    }
+
+                    next++;
+                }
+
+                batch.setNextOffset(next < keys.size() ? next : -1);
+                break;
+            }
+            case KeyHandoff.HANDOVER: {
+                // From here on lookups for the range go to the joining node, writes that are still running here show up as changes
+                if (offset == 0 && transfer.joining) {
+                    this.chordNode.notifyPredecessor(owner.getVirtualNode(), receiver);
+                }
+
+                this.addChanges(transfer, batch, offset);
+                break;
+            }
+            case KeyHandoff.CHANGES:
+            case KeyHandoff.CLOSE: {
+                this.addChanges(transfer, batch, offset);
+                break;
+            }
+            case KeyHandoff.DONE: {
+                // The receiver stored every batch it was sent, the transfer ends as soon as there is nothing left to send
+                this.addChanges(transfer, batch, offset);
+                if (batch.size() == 0) {
+                    this.close(transfer);
+                }
+                break;
+            }
+            default: {
+                return null;
+            }
+        }
+
+        this.chordNode.getMetrics().recordKeysSent(batch.size());
+
+        return batch;
+    }
+
+    /**
+     * Notes a key that was written as owner, so transfers that cover it send its new state
+     *
+     * @param id    The ring id of the key
+     * @param key   The key
+     */
+    public void touch(long id, String key) {
+        if (this.transfers.isEmpty()) {
+            return;
+        }
+
+        for (Transfer transfer : this.transfers.values()) {
+            if (transfer.covers(id)) {
+                transfer.changes.add(new Change(id, key));
+            }
+        }
+    }
+
+    /**
+     * Starts a transfer. It is registered before the snapshot is collected, so a write either happens before the snapshot or is noted as a change.
+     */
+    private Transfer start(Finger owner, Finger receiver) {
+        if (!this.chordNode.isLocal(owner) || owner.getVirtualNode() >= this.chordNode.getVirtualNodeCount()) {
+            return null;
+        }
+
+        Finger predecessor = this.chordNode.getRoutingTable(owner.getVirtualNode()).getFirstPredecessor();
+        boolean joining = RoutingTable.isBetween(receiver.getId(), predecessor.getId(), owner.getId());
+
+        // A leaving owner also hands over the virtual nodes of this process that come right before it
+        for (int i = 0; !joining && i < this.chordNode.getVirtualNodeCount() && this.chordNode.isLocal(predecessor) && !predecessor.equals(owner); i++) {
+            predecessor = this.chordNode.getRoutingTable(predecessor.getVirtualNode()).getFirstPredecessor();
+        }
+
+        Transfer transfer = new Transfer(owner, receiver, predecessor, joining, predecessor.getId(), joining ? receiver.getId() : owner.getId());
+        this.transfers.put(List.of(owner, receiver), transfer);
+        transfer.snapshot = this.chordNode.getStore().collect(transfer.from, transfer.to);
+
+        Log.info("Handing over " + transfer.snapshot.size() + " keys to " + receiver);
+
+        return transfer;
+    }
+
+    /**
+     * Fills a batch with the current state of keys that were written since the last batch
+     */
+    private void addChanges(Transfer transfer, KeyBatch batch, int offset) {
+        KeyValueStore store = this.chordNode.getStore();
+        Iterator<Change> changes = transfer.changes.iterator();
+
+        while (changes.hasNext() && batch.getBytes() < KeyHandoff.batchBytes) {
+            // Removed before the store is read, so a write that lands after the read is noted again
+            Change change = changes.next();
+            changes.remove();
+
+            byte[] keyBytes = change.key.getBytes(StandardCharsets.UTF_8);
+            byte[] record = store.getRecord(change.id, keyBytes);
+
+            if (record != null) {
+                batch.add(change.id, record);
+            } else {
+                batch.addDeleted(change.id, keyBytes);
+            }
+        }
+
+        batch.setNextOffset(transfer.changes.isEmpty() ? -1 : offset + 1);
+    }
+
+    /**
+     * Ends a transfer. Without replicas the owner of a joining node's range drops the keys it handed over, with replicas it keeps them since it is the first replica of the joining node.
+     */
+    private void close(Transfer transfer) {
+        this.transfers.remove(List.of(transfer.owner, transfer.receiver), transfer);
+
+        if (transfer.joining && Chord.REPLICATION_FACTOR == 1) {
+            this.chordNode.getExecutor().execute(() -> this.chordNode.getStore().removeRange(transfer.from, transfer.to));
+        }
+
+        synchronized (this.leaving) {
+            if (this.leaving.remove(transfer.receiver)) {
+                this.leaving.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return  The key of a record followed by the digest of the whole record, laid out like a record so the key can be read the same way
+     */
+    private static byte[] digestRecordOf(byte[] record) {
+        int keyLength = KeyValueStore.keyOf(record).length;
+
+        byte[] digest = Arrays.copyOf(record, 4 + keyLength + 8);
+        ByteBuffer.wrap(digest).putLong(4 + keyLength, KeyValueStore.digestOf(record));
+
+        return digest;
+    }
+
+    /**
+     * Forgets transfers whose receiver stopped asking for batches
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        this.transfers.values().removeIf(transfer -> now - transfer.lastUsedNanos > KeyHandoff.transferMaxIdleNanos);
+    }
+
+    /**
+     * A range being handed over by one of our virtual nodes
+     */
+    private static class Transfer {
+
+        private final Finger owner;
+        private final Finger receiver;
+        private final Finger predecessor;
+        private final boolean joining;
+        private final long from;
+        private final long to;
+        private final Set<Change> changes = ConcurrentHashMap.newKeySet();
+        private KeyValueStore.Entries snapshot;
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        private Transfer(Finger owner, Finger receiver, Finger predecessor, boolean joining, long from, long to) {
+            this.owner = owner;
+            this.receiver = receiver;
+            this.predecessor = predecessor;
+            this.joining = joining;
+            this.from = from;
+            this.to = to;
+        }
+
+        private boolean covers(long id) {
+            return id == this.to || RoutingTable.isBetween(id, this.from, this.to);
+        }
+
+    }
+
+    /**
+     * A key written while a transfer that covers it was running
+     */
+    private static class Change {
+
+        private final long id;
+        private final String key;
+
+        private Change(long id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Change)) {
+                return false;
+            }
+
+            Change change = (Change) other;
+            return this.id == change.id && this.key.equals(change.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.id) * 31 + this.key.hashCode();
+        }
+
+    }
+
+}
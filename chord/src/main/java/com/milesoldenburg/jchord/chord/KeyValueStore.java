@@ -0,0 +1,462 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The values stored on a node, keyed by the ring id of their key. This is an open addressing hash table over a primitive long[] of ids, so an entry costs a slot in two arrays and a single byte[] record instead of a boxed key, a map entry and two strings. Different keys can hash to the same ring id, so every record keeps its key next to its value:
+ *
+ * <pre>
+ * int keyLength | key bytes | value bytes
+ * </pre>
+ *
+ * Readers share a lock and writers take it exclusively. A record is never modified once it is stored, a put replaces it with a new one, so records can be handed out to other nodes without copying them.
+ *
+ * A store that is persisted to a SegmentLog appends every write to the log while it holds the write lock, so the log has the writes in the order they were applied. The table stays the only index, the log is only read when it is replayed after a restart and when it is compacted.
+ */
+public class KeyValueStore {
+
+    private final static int initialCapacity = 1024;
+    private final static float loadFactor = 0.75f;
+
+    private long[] ids;
+    private byte[][] records;
+    private int size = 0;
+    private int threshold;
+    private long recordBytes = 0;
+    private SegmentLog log = null;
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public KeyValueStore() {
+        this.ids = new long[KeyValueStore.initialCapacity];
+        this.records = new byte[KeyValueStore.initialCapacity][];
+        this.threshold = (int) (KeyValueStore.initialCapacity * KeyValueStore.loadFactor);
+    }
+
+    /**
+     * Replays the segments of a log into the store and from then on appends every write to it
+     *
+     * @param log   The log of this store
+     * @return      The number of entries that were replayed
+     * @throws IOException  If a segment could not be read
+     */
+    public int persistTo(SegmentLog log) throws IOException {
+        int entries = log.recover(this);
+        this.log = log;
+
+        return entries;
+    }
+
+    /**
+     * Stores a value, replacing the current value of the key if there is one
+     *
+     * @param id    The ring id of the key
+     * @param key   The key
+     * @param value The value
+     * @return      True if an existing value was replaced
+     */
+    public boolean put(long id, String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+
+        byte[] record = new byte[4 + keyBytes.length + valueBytes.length];
+        record[0] = (byte) (keyBytes.length >>> 24);
+        record[1] = (byte) (keyBytes.length >>> 16);
+        record[2] = (byte) (keyBytes.length >>> 8);
+        record[3] = (byte) keyBytes.length;
+        System.arraycopy(keyBytes, 0, record, 4, keyBytes.length);
+        System.arraycopy(valueBytes, 0, record, 4 + keyBytes.length, valueBytes.length);
+
+        this.lock.writeLock().lock();
+        try {
+            return this.store(id, keyBytes, record);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param id    The ring id of the key
+     * @param key   The key
+     * @return      The value of the key or null if it is not stored here
+     */
+    public String get(long id, String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        this.lock.readLock().lock();
+        try {
+            int slot = this.find(id, keyBytes);
+
+            if (slot < 0) {
+                return null;
+            }
+
+            byte[] record = this.records[slot];
+            int valueOffset = 4 + keyBytes.length;
+
+            return new String(record, valueOffset, record.length - valueOffset, StandardCharsets.UTF_8);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param id    The ring id of the key
+     * @param key   The key
+     * @return      True if the key was stored here and has been removed
+     */
+    public boolean remove(long id, String key) {
+        return this.remove(id, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param id        The ring id of the key
+     * @param keyBytes  The key in UTF-8
+     * @return          True if the key was stored here and has been removed
+     */
+    public boolean remove(long id, byte[] keyBytes) {
+        this.lock.writeLock().lock();
+        try {
+            int slot = this.find(id, keyBytes);
+
+            if (slot < 0) {
+                return false;
+            }
+
+            if (this.log != null) {
+                this.log.appendDelete(id, keyBytes);
+            }
+
+            this.recordBytes -= this.records[slot].length;
+            this.delete(slot);
+            this.size--;
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a record that was read from the store of another node, keyed by the id it had there, without decoding and encoding its key and value again
+     *
+     * @param id        The ring id of the key
+     * @param record    The record, which must not be modified afterwards
+     */
+    public void putRecord(long id, byte[] record) {
+        byte[] keyBytes = KeyValueStore.keyOf(record);
+
+        this.lock.writeLock().lock();
+        try {
+            this.store(id, keyBytes, record);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the log again if it is still the current record of its key, which lets the compactor drop the segment it was read from
+     *
+     * @param id        The ring id of the key
+     * @param record    A record read from the log
+     * @return          True if the record is live and was appended
+     */
+    public boolean rewriteIfLive(long id, byte[] record) {
+        byte[] keyBytes = KeyValueStore.keyOf(record);
+
+        this.lock.writeLock().lock();
+        try {
+            int slot = this.find(id, keyBytes);
+
+            if (slot < 0 || this.log == null || !Arrays.equals(this.records[slot], record)) {
+                return false;
+            }
+
+            this.log.appendPut(id, this.records[slot]);
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param id        The ring id of the key
+     * @param keyBytes  The key in UTF-8
+     * @return          The stored record of the key or null if it is not stored here. The record is shared with the store and must not be modified.
+     */
+    public byte[] getRecord(long id, byte[] keyBytes) {
+        this.lock.readLock().lock();
+        try {
+            int slot = this.find(id, keyBytes);
+
+            return slot < 0 ? null : this.records[slot];
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collects the entries whose id lies in a range of the ring in a single pass over the table. The records are shared with the store rather than copied.
+     *
+     * @param from  The start of the range (exclusive)
+     * @param to    The end of the range (inclusive)
+     * @return      The entries in the range, in no particular order
+     */
+    public Entries collect(long from, long to) {
+        this.lock.readLock().lock();
+        try {
+            Entries entries = new Entries(Math.max(16, this.size / 4));
+
+            for (int slot = 0; slot < this.records.length; slot++) {
+                if (this.records[slot] != null && (this.ids[slot] == to || RoutingTable.isBetween(this.ids[slot], from, to))) {
+                    entries.add(this.ids[slot], this.records[slot]);
+                }
+            }
+
+            return entries;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every entry whose id lies in a range of the ring
+     *
+     * @param from  The start of the range (exclusive)
+     * @param to    The end of the range (inclusive)
+     * @return      The number of entries removed
+     */
+    public int removeRange(long from, long to) {
+        Entries entries = this.collect(from, to);
+        int removed = 0;
+
+        for (int i = 0; i < entries.size(); i++) {
+            // An entry that was replaced since it was collected is still in the range, the key is what matters
+            if (this.remove(entries.getId(i), KeyValueStore.keyOf(entries.getRecord(i)))) {
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return  The number of bytes taken by the stored records
+     */
+    public long getRecordBytes() {
+        this.lock.readLock().lock();
+        try {
+            return this.recordBytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return  The log the store is persisted to, or null if it is kept in memory only
+     */
+    public SegmentLog getLog() {
+        return this.log;
+    }
+
+    /**
+     * Forces the writes that were appended to the log to disk. Writes that come in afterwards are still appended, but only reach the disk if the operating system writes them back.
+     */
+    public void close() {
+        this.lock.writeLock().lock();
+        try {
+            if (this.log != null) {
+                this.log.close();
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a record under the write lock, replacing the current record of the key if there is one
+     *
+     * @return  True if an existing record was replaced
+     */
+    private boolean store(long id, byte[] keyBytes, byte[] record) {
+        if (this.log != null) {
+            this.log.appendPut(id, record);
+        }
+
+        this.recordBytes += record.length;
+        int slot = this.find(id, keyBytes);
+
+        if (slot >= 0) {
+            this.recordBytes -= this.records[slot].length;
+            this.records[slot] = record;
+            return true;
+        }
+
+        if (this.size >= this.threshold) {
+            this.resize(this.ids.length * 2);
+        }
+
+        this.insert(id, record);
+        this.size++;
+
+        return false;
+    }
+
+    /**
+     * Looks for the slot of a key by probing from the home slot of its id until an empty slot is reached
+     *
+     * @return  The slot or -1 if the key is not stored
+     */
+    private int find(long id, byte[] keyBytes) {
+        int mask = this.ids.length - 1;
+
+        for (int slot = KeyValueStore.home(id, mask); this.records[slot] != null; slot = (slot + 1) & mask) {
+            if (this.ids[slot] == id && KeyValueStore.hasKey(this.records[slot], keyBytes)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private void insert(long id, byte[] record) {
+        int mask = this.ids.length - 1;
+
+        int slot = KeyValueStore.home(id, mask);
+        while (this.records[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+
+        this.ids[slot] = id;
+        this.records[slot] = record;
+    }
+
+    /**
+     * Empties a slot and shifts the entries that follow it back so that no probe sequence is broken, which avoids tombstones
+     */
+    private void delete(int slot) {
+        int mask = this.ids.length - 1;
+        int hole = slot;
+
+        for (int next = (hole + 1) & mask; this.records[next] != null; next = (next + 1) & mask) {
+            int home = KeyValueStore.home(this.ids[next], mask);
+
+            // The entry can fill the hole if its home slot does not lie between the hole and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.ids[hole] = this.ids[next];
+                this.records[hole] = this.records[next];
+                hole = next;
+            }
+        }
+
+        this.ids[hole] = 0;
+        this.records[hole] = null;
+    }
+
+    private void resize(int capacity) {
+        long[] oldIds = this.ids;
+        byte[][] oldRecords = this.records;
+
+        this.ids = new long[capacity];
+        this.records = new byte[capacity][];
+        this.threshold = (int) (capacity * KeyValueStore.loadFactor);
+
+        for (int i = 0; i < oldRecords.length; i++) {
+            if (oldRecords[i] != null) {
+                this.insert(oldIds[i], oldRecords[i]);
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of the id so that nearby ids do not cluster in the table
+     */
+    private static int home(long id, int mask) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @param record    A stored record
+     * @return          The key of the record in UTF-8
+     */
+    public static byte[] keyOf(byte[] record) {
+        int keyLength = ((record[0] & 0xFF) << 24) | ((record[1] & 0xFF) << 16) | ((record[2] & 0xFF) << 8) | (record[3] & 0xFF);
+
+        return Arrays.copyOfRange(record, 4, 4 + keyLength);
+    }
+
+    /**
+     * @param record    A stored record
+     * @return          The 64-bit FNV-1a hash of the record, which lets two nodes compare their records of a key without sending them
+     */
+    public static long digestOf(byte[] record) {
+        long hash = 0xCBF29CE484222325L;
+
+        for (byte b : record) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        return hash;
+    }
+
+    private static boolean hasKey(byte[] record, byte[] keyBytes) {
+        int keyLength = ((record[0] & 0xFF) << 24) | ((record[1] & 0xFF) << 16) | ((record[2] & 0xFF) << 8) | (record[3] & 0xFF);
+
+        return keyLength == keyBytes.length && Arrays.equals(record, 4, 4 + keyLength, keyBytes, 0, keyLength);
+    }
+
+    /**
+     * Entries collected from the store, each an id with the record stored under it
+     */
+    public static class Entries {
+
+        private long[] ids;
+        private byte[][] records;
+        private int size = 0;
+
+        private Entries(int capacity) {
+            this.ids = new long[capacity];
+            this.records = new byte[capacity][];
+        }
+
+        private void add(long id, byte[] record) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+                this.records = Arrays.copyOf(this.records, this.size * 2);
+            }
+
+            this.ids[this.size] = id;
+            this.records[this.size] = record;
+            this.size++;
+        }
+
+        public long getId(int index) {
+            return this.ids[index];
+        }
+
+        public byte[] getRecord(int index) {
+            return this.records[index];
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in microseconds. Values below 64 get a bucket each, larger values are split into 32 buckets per power of two, so every recorded value is off by at most about 3% while the whole range of a long fits into a fixed array.
+ */
+public class LatencyHistogram {
+
+    private final static int linearBuckets = 64;
+    private final static int subBucketBits = 5;
+    private final static int subBuckets = 1 << LatencyHistogram.subBucketBits;
+
+    private AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.linearBuckets + (64 - 6) * LatencyHistogram.subBuckets);
+    private AtomicLong totalCount = new AtomicLong();
+    private AtomicLong totalMicros = new AtomicLong();
+    private AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * @param micros    The latency to record, negative values are recorded as 0
+     */
+    public void record(long micros) {
+        micros = Math.max(0, micros);
+
+        this.counts.incrementAndGet(LatencyHistogram.indexOf(micros));
+        this.totalCount.incrementAndGet();
+        this.totalMicros.addAndGet(micros);
+        this.maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return this.totalCount.get();
+    }
+
+    public long getMax() {
+        return this.maxMicros.get();
+    }
+
+    public double getMean() {
+        long count = this.totalCount.get();
+
+        return count == 0 ? 0 : (double) this.totalMicros.get() / count;
+    }
+
+    /**
+     * @param percentile    The percentile between 0 and 100
+     * @return              The highest latency of the bucket that holds the percentile, in microseconds
+     */
+    public long getPercentile(double percentile) {
+        long count = this.totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+
+        for (int i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValueOf(i), this.maxMicros.get());
+            }
+        }
+
+        return this.maxMicros.get();
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < LatencyHistogram.linearBuckets) {
+            return (int) micros;
+        }
+
+        // The top bits below the leading one pick the sub bucket within the power of two
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - LatencyHistogram.subBucketBits)) & (LatencyHistogram.subBuckets - 1);
+
+        return LatencyHistogram.linearBuckets + (exponent - 6) * LatencyHistogram.subBuckets + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < LatencyHistogram.linearBuckets) {
+            return index;
+        }
+
+        int exponent = (index - LatencyHistogram.linearBuckets) / LatencyHistogram.subBuckets + 6;
+        long subBucket = (index - LatencyHistogram.linearBuckets) % LatencyHistogram.subBuckets;
+        long width = 1L << (exponent - LatencyHistogram.subBucketBits);
+
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which node owned a range of ids the last time a lookup resolved it, so a repeated lookup can go straight to the owner. Every entry covers the ids from just after the predecessor of an owner up to and including the owner, and is keyed by the id of the owner. The entry for an id is therefore the one with the smallest owner id at or after it, wrapping around the ring.
+ *
+ * Reads do not take a lock, a hit only marks the entry as recently used. Once the cache is full, adding an entry evicts with the CLOCK algorithm: a hand sweeps the entries in ring order, clears the mark of recently used entries and evicts the first entry that was not used since the hand last passed it.
+ *
+ * Entries may be stale, so callers have to confirm a cached owner with the owner itself and invalidate the entry if it disagrees.
+ */
+public class LocationCache {
+
+    private int capacity;
+    private ConcurrentNavigableMap<Long, Entry> entries = new ConcurrentSkipListMap<>(Long::compareUnsigned);
+    private int size = 0;
+    private long hand = -1;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity  The highest number of owners remembered, 0 disables the cache
+     */
+    public LocationCache(int capacity) {
+        this.capacity = Math.max(0, capacity);
+    }
+
+    /**
+     * @param queryId   The id that is looked up
+     * @return          The node that owned the id when it was last resolved, or null if no entry covers it
+     */
+    public Finger get(long queryId) {
+        Map.Entry<Long, Entry> candidate = this.entries.ceilingEntry(queryId);
+        if (candidate == null) {
+            candidate = this.entries.firstEntry();
+        }
+
+        if (candidate != null && candidate.getValue().covers(queryId)) {
+            Entry entry = candidate.getValue();
+            entry.referenced = true;
+            this.hits.incrementAndGet();
+
+            return entry.owner;
+        }
+
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remembers that a node owns the ids after from up to and including its own id. A wider range replaces a narrower one for the same owner.
+     *
+     * @param from      The id just before the range, usually the predecessor of the owner
+     * @param owner     The node that owns the range
+     */
+    public synchronized void put(long from, Finger owner) {
+        if (this.capacity == 0) {
+            return;
+        }
+
+        Entry entry = new Entry(from, owner);
+        Entry current = this.entries.get(owner.getId());
+
+        if (current != null) {
+            if (current.owner.equals(owner) && Long.compareUnsigned(current.width(), entry.width()) > 0) {
+                current.referenced = true;
+                return;
+            }
+
+            this.entries.put(owner.getId(), entry);
+            return;
+        }
+
+        if (this.size >= this.capacity) {
+            this.evict();
+        }
+
+        this.entries.put(owner.getId(), entry);
+        this.size++;
+    }
+
+    /**
+     * Forgets the owner of an id after the owner denied owning it
+     *
+     * @param queryId   The id that was looked up
+     */
+    public synchronized void invalidate(long queryId) {
+        Map.Entry<Long, Entry> candidate = this.entries.ceilingEntry(queryId);
+        if (candidate == null) {
+            candidate = this.entries.firstEntry();
+        }
+
+        if (candidate != null && candidate.getValue().covers(queryId) && this.entries.remove(candidate.getKey(), candidate.getValue())) {
+            this.size--;
+        }
+    }
+
+    /**
+     * Forgets every range owned by a node, for example because it could not be reached
+     *
+     * @param node  The node to forget
+     */
+    public synchronized void invalidate(Finger node) {
+        Entry entry = this.entries.get(node.getId());
+
+        if (entry != null && entry.owner.equals(node) && this.entries.remove(node.getId(), entry)) {
+            this.size--;
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Advances the clock hand until it finds an entry that was not used since the last sweep and removes it
+     */
+    private void evict() {
+        while (!this.entries.isEmpty()) {
+            Long key = this.entries.higherKey(this.hand);
+            if (key == null) {
+                key = this.entries.firstKey();
+            }
+
+            this.hand = key;
+            Entry entry = this.entries.get(key);
+
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                this.entries.remove(key);
+                this.size--;
+                return;
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final long from;
+        private final Finger owner;
+        private volatile boolean referenced = false;
+
+        private Entry(long from, Finger owner) {
+            this.from = from;
+            this.owner = owner;
+        }
+
+        private boolean covers(long queryId) {
+            return queryId == this.owner.getId() || RoutingTable.isBetween(queryId, this.from, this.owner.getId());
+        }
+
+        /**
+         * @return  The number of ids in the range minus one, so a range over the whole ring fits into an unsigned long
+         */
+        private long width() {
+            return RoutingTable.distance(this.from + 1, this.owner.getId());
+        }
+
+    }
+
+}
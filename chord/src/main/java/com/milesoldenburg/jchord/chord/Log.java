@@ -0,0 +1,182 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Leveled logging that never blocks the caller on the console. Messages go into a fixed size ring buffer that any thread can append to without taking a lock, a single daemon thread drains it to stdout, or to stderr for warnings and errors. If the writer falls so far behind that the buffer is full, new messages are dropped and counted instead of stalling lookups, and the writer reports how many were lost.
+ *
+ * Debug and trace messages are passed as suppliers and are only built if their level is enabled. The level is read once at startup from -Djchord.log, so a disabled level costs a single comparison against a constant.
+ */
+public class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private final static int capacity = 8192;
+    private final static long idleParkNanos = 1000000;
+
+    private final static Level level = Log.parseLevel(Chord.LOG_LEVEL);
+    private final static AtomicReferenceArray<Entry> buffer = new AtomicReferenceArray<>(Log.capacity);
+    private final static AtomicLong tail = new AtomicLong();
+    private final static AtomicLong dropped = new AtomicLong();
+    private static volatile long head = 0;
+    private static long reportedDrops = 0;
+    private static volatile Thread writer;
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= Log.level.ordinal();
+    }
+
+    public static void error(String message) {
+        Log.append(Level.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable throwable) {
+        Log.append(Level.ERROR, message, throwable);
+    }
+
+    public static void warn(String message) {
+        Log.append(Level.WARN, message, null);
+    }
+
+    public static void info(String message) {
+        Log.append(Level.INFO, message, null);
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (Log.isEnabled(Level.DEBUG)) {
+            Log.append(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    public static void trace(Supplier<String> message) {
+        if (Log.isEnabled(Level.TRACE)) {
+            Log.append(Level.TRACE, message.get(), null);
+        }
+    }
+
+    /**
+     * @return  The number of messages dropped so far because the buffer was full
+     */
+    public static long getDroppedCount() {
+        return Log.dropped.get();
+    }
+
+    private static void append(Level level, String message, Throwable throwable) {
+        if (!Log.isEnabled(level)) {
+            return;
+        }
+
+        if (Log.writer == null) {
+            Log.startWriter();
+        }
+
+        // Claim a slot, or give up if the writer has not yet freed the slot a full lap behind us
+        long sequence;
+        do {
+            sequence = Log.tail.get();
+
+            if (sequence - Log.head >= Log.capacity) {
+                Log.dropped.incrementAndGet();
+                return;
+            }
+        } while (!Log.tail.compareAndSet(sequence, sequence + 1));
+
+        Log.buffer.set((int) (sequence & (Log.capacity - 1)), new Entry(level, message, throwable));
+    }
+
+    private static synchronized void startWriter() {
+        if (Log.writer != null) {
+            return;
+        }
+
+        Thread thread = new Thread(Log::drain, "jchord-log");
+        thread.setDaemon(true);
+        thread.start();
+
+        // Write out whatever is still buffered when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "jchord-log-flush"));
+
+        Log.writer = thread;
+    }
+
+    private static void drain() {
+        while (true) {
+            if (!Log.flush()) {
+                LockSupport.parkNanos(Log.idleParkNanos);
+            }
+        }
+    }
+
+    /**
+     * Writes out the buffered messages in the order their slots were claimed
+     *
+     * @return  True if anything was written
+     */
+    private static synchronized boolean flush() {
+        boolean written = false;
+
+        while (true) {
+            int slot = (int) (Log.head & (Log.capacity - 1));
+            Entry entry = Log.buffer.get(slot);
+
+            // A claimed slot stays empty until its producer has stored the entry
+            if (entry == null) {
+                break;
+            }
+
+            Log.buffer.set(slot, null);
+            Log.head = Log.head + 1;
+            entry.write();
+            written = true;
+        }
+
+        if (written) {
+            System.out.flush();
+        }
+
+        long droppedCount = Log.dropped.get();
+        if (droppedCount > Log.reportedDrops) {
+            System.err.println("Dropped " + (droppedCount - Log.reportedDrops) + " log messages, the log could not keep up");
+            Log.reportedDrops = droppedCount;
+        }
+
+        return written;
+    }
+
+    private static Level parseLevel(String level) {
+        try {
+            return Level.valueOf(level.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: Unknown log level " + level + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static class Entry {
+
+        private final Level level;
+        private final String message;
+        private final Throwable throwable;
+
+        private Entry(Level level, String message, Throwable throwable) {
+            this.level = level;
+            this.message = message;
+            this.throwable = throwable;
+        }
+
+        private void write() {
+            PrintStream stream = this.level.ordinal() <= Level.WARN.ordinal() ? System.err : System.out;
+            stream.println(this.message);
+
+            if (this.throwable != null) {
+                this.throwable.printStackTrace(stream);
+            }
+        }
+
+    }
+
+}
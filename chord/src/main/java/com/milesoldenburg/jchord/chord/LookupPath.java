@@ -0,0 +1,123 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the nodes a lookup contacted on its way to the owner of an id. A lookup that the receiving node answers from its own routing table and store has an empty path.
+ *
+ * A traced path also keeps one entry per step, in the form nodeId>fingerId/micros: the node that made a routing decision, the finger it chose and how long the step took as seen by the node that drove it. A node that forwards a traced request includes the time the rest of the path took in its own entry, followed by the entries of the nodes after it. Entries are separated by commas.
+ */
+public class LookupPath {
+
+    private int hops = 0;
+    private String traceId;
+    private StringBuilder trace;
+    private boolean sampled = false;
+
+    /**
+     * Creates a path that only counts hops
+     */
+    public LookupPath() {}
+
+    /**
+     * Creates a path that records every step
+     *
+     * @param traceId   The id that identifies the trace on every node, cannot contain ':'
+     */
+    public LookupPath(String traceId) {
+        this.traceId = traceId;
+        this.trace = new StringBuilder();
+    }
+
+    /**
+     * Creates the path for a request that arrived from a client. A fraction of the requests, set with -Djchord.trace.sample, is traced so the path can be logged.
+     *
+     * @return  A traced path for a sampled request, otherwise a path that only counts hops
+     */
+    public static LookupPath sample() {
+        if (Chord.TRACE_SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < Chord.TRACE_SAMPLE_RATE) {
+            LookupPath path = new LookupPath(Long.toHexString(ThreadLocalRandom.current().nextLong()));
+            path.sampled = true;
+
+            return path;
+        }
+
+        return new LookupPath();
+    }
+
+    /**
+     * Records a message sent to another node on behalf of the lookup
+     *
+     * @param node  The node the message was sent to
+     */
+    public void addHop(Finger node) {
+        this.hops++;
+    }
+
+    /**
+     * Records a routing decision if the path is traced
+     *
+     * @param node          The node that made the decision
+     * @param chosen        The finger the node chose, the node itself if it ran the command
+     * @param startNanos    The System.nanoTime() when the step started
+     */
+    public void trace(Finger node, Finger chosen, long startNanos) {
+        if (this.trace == null) {
+            return;
+        }
+
+        if (this.trace.length() > 0) {
+            this.trace.append(',');
+        }
+
+        this.trace.append(Long.toUnsignedString(node.getId())).append('>').append(Long.toUnsignedString(chosen.getId())).append('/').append(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Appends the entries recorded by the nodes a traced request was forwarded to
+     *
+     * @param remoteTrace   The entries returned by the next node
+     */
+    public void traceRemote(String remoteTrace) {
+        if (this.trace == null || remoteTrace.isEmpty()) {
+            return;
+        }
+
+        if (this.trace.length() > 0) {
+            this.trace.append(',');
+        }
+
+        this.trace.append(remoteTrace);
+    }
+
+    /**
+     * @return  The number of messages sent to other nodes
+     */
+    public int getHops() {
+        return this.hops;
+    }
+
+    public boolean isTraced() {
+        return this.trace != null;
+    }
+
+    /**
+     * @return  True if the path is traced because the request was sampled, rather than because the client asked for it
+     */
+    public boolean isSampled() {
+        return this.sampled;
+    }
+
+    public String getTraceId() {
+        return this.traceId;
+    }
+
+    /**
+     * @return  The recorded entries separated by commas, empty if the path is not traced
+     */
+    public String getTrace() {
+        return this.trace != null ? this.trace.toString() : "";
+    }
+
+}
@@ -0,0 +1,293 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a single node: how often each command was handled and how long it took, how many hops lookups needed, how long writers waited for the routing table lock, how many clients are connected, the round trip times of stabilization and heartbeats, how often writes missed their quorum and reads were hedged, and how many keys were handed over to or taken over from other nodes. The hit and miss counters of the location cache are reported alongside.
+ *
+ * Recording only increments atomic counters in arrays that are allocated up front, so it never allocates and never takes a lock. Reading builds a snapshot of the counters, which may be slightly inconsistent while requests are being recorded.
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * The commands that are counted separately, whether they arrived as text or as a binary frame
+     */
+    public enum Command {
+
+        FIND_NODE(true), FIND_NODES(false), FIND_NEXT_HOP(false), FIND_VALUE(true), STORE(true), GET(true), DELETE(true), LOCAL(false),
+        NEW_PREDECESSOR(false), EXCHANGE_SUCCESSORS(false), REQUEST_PREDECESSOR(false), REPLICATE(false), FIND_REPLICAS(false), FETCH_KEYS(false), LEAVING(false), COPY_RANGE(false), PING(false), STATS(false), UNKNOWN(false);
+
+        private boolean lookup;
+
+        Command(boolean lookup) {
+            this.lookup = lookup;
+        }
+
+        /**
+         * @return  True if the command looks up the owner of an id, which makes its hop count interesting
+         */
+        public boolean isLookup() {
+            return this.lookup;
+        }
+
+        public static Command of(String command) {
+            switch (command) {
+                case Chord.FIND_NODE: return Command.FIND_NODE;
+                case Chord.FIND_NODES: return Command.FIND_NODES;
+                case Chord.FIND_NEXT_HOP: return Command.FIND_NEXT_HOP;
+                case Chord.FIND_VALUE: return Command.FIND_VALUE;
+                case Chord.STORE: return Command.STORE;
+                case Chord.GET: return Command.GET;
+                case Chord.DELETE: return Command.DELETE;
+                case Chord.NEW_PREDECESSOR: return Command.NEW_PREDECESSOR;
+                case Chord.EXCHANGE_SUCCESSORS: return Command.EXCHANGE_SUCCESSORS;
+                case Chord.REQUEST_PREDECESSOR: return Command.REQUEST_PREDECESSOR;
+                case Chord.REPLICATE: return Command.REPLICATE;
+                case Chord.FIND_REPLICAS: return Command.FIND_REPLICAS;
+                case Chord.FETCH_KEYS: return Command.FETCH_KEYS;
+                case Chord.LEAVING: return Command.LEAVING;
+                case Chord.COPY_RANGE: return Command.COPY_RANGE;
+                case Chord.PING_QUERY: return Command.PING;
+                case Chord.STATS: return Command.STATS;
+                default: return Command.UNKNOWN;
+            }
+        }
+
+        public static Command of(byte opcode) {
+            switch (opcode) {
+                case BinaryProtocol.FIND_NODE: return Command.FIND_NODE;
+                case BinaryProtocol.FIND_NODES: return Command.FIND_NODES;
+                case BinaryProtocol.FIND_NEXT_HOP: return Command.FIND_NEXT_HOP;
+                case BinaryProtocol.FIND_VALUE: return Command.FIND_VALUE;
+                case BinaryProtocol.PING_QUERY: return Command.PING;
+                case BinaryProtocol.FETCH_KEYS: return Command.FETCH_KEYS;
+                case BinaryProtocol.LOCAL_TEXT:
+                case BinaryProtocol.OWNER_TEXT: return Command.LOCAL;
+                case BinaryProtocol.REPLICA_TEXT: return Command.REPLICATE;
+                default: return Command.UNKNOWN;
+            }
+        }
+
+    }
+
+    private final static int maxHops = 64;
+
+    private LatencyHistogram[] commandLatencies = new LatencyHistogram[Command.values().length];
+    private AtomicLongArray hopCounts = new AtomicLongArray(Metrics.maxHops + 1);
+    private LatencyHistogram lockWait = new LatencyHistogram();
+    private LatencyHistogram stabilizeRoundTrip = new LatencyHistogram();
+    private LatencyHistogram heartbeatRoundTrip = new LatencyHistogram();
+    private AtomicInteger openConnections = new AtomicInteger();
+    private AtomicLong acceptedConnections = new AtomicLong();
+    private AtomicLong detectedFailures = new AtomicLong();
+    private AtomicLong replicationFailures = new AtomicLong();
+    private AtomicLong hedgedReads = new AtomicLong();
+    private AtomicLong keysSent = new AtomicLong();
+    private AtomicLong keysReceived = new AtomicLong();
+    private long startMillis = System.currentTimeMillis();
+    private LocationCache locationCache;
+
+    /**
+     * @param locationCache The location cache of the node, whose counters are reported with the metrics
+     */
+    public Metrics(LocationCache locationCache) {
+        this.locationCache = locationCache;
+
+        for (int i = 0; i < this.commandLatencies.length; i++) {
+            this.commandLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Publishes the metrics over JMX. A node that cannot register, for example because another node in the same JVM uses the port, still records its metrics.
+     *
+     * @param port  The port of the node, which tells nodes in the same JVM apart
+     */
+    public void register(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.milesoldenburg.jchord:type=ChordNode,port=" + port));
+        } catch (JMException e) {
+            Log.warn("Could not register metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a handled command
+     *
+     * @param command       The command
+     * @param startNanos    The System.nanoTime() when handling started
+     * @param hops          The number of nodes the command contacted
+     */
+    public void recordCommand(Command command, long startNanos, int hops) {
+        this.commandLatencies[command.ordinal()].record(Metrics.microsSince(startNanos));
+
+        if (command.isLookup()) {
+            this.hopCounts.incrementAndGet(Math.min(hops, Metrics.maxHops));
+        }
+    }
+
+    /**
+     * @param startNanos    The System.nanoTime() before waiting for the routing table lock
+     */
+    public void recordLockWait(long startNanos) {
+        this.lockWait.record(Metrics.microsSince(startNanos));
+    }
+
+    /**
+     * @param startNanos    The System.nanoTime() before the successor exchange was sent
+     */
+    public void recordStabilizeRoundTrip(long startNanos) {
+        this.stabilizeRoundTrip.record(Metrics.microsSince(startNanos));
+    }
+
+    /**
+     * @param startNanos    The System.nanoTime() before the ping was sent
+     */
+    public void recordHeartbeatRoundTrip(long startNanos) {
+        this.heartbeatRoundTrip.record(Metrics.microsSince(startNanos));
+    }
+
+    /**
+     * Records a neighbor that the failure detector suspected strongly enough to fail over
+     */
+    public void recordDetectedFailure() {
+        this.detectedFailures.incrementAndGet();
+    }
+
+    /**
+     * Records a write that did not reach the write quorum
+     */
+    public void recordReplicationFailure() {
+        this.replicationFailures.incrementAndGet();
+    }
+
+    /**
+     * Records a read that asked another copy because the copies asked before were too slow
+     */
+    public void recordHedgedRead() {
+        this.hedgedReads.incrementAndGet();
+    }
+
+    /**
+     * @param keys  The number of keys sent to a node that takes over a range
+     */
+    public void recordKeysSent(int keys) {
+        this.keysSent.addAndGet(keys);
+    }
+
+    /**
+     * @param keys  The number of keys received from the node that owned a range
+     */
+    public void recordKeysReceived(int keys) {
+        this.keysReceived.addAndGet(keys);
+    }
+
+    public void connectionOpened() {
+        this.openConnections.incrementAndGet();
+        this.acceptedConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        this.openConnections.decrementAndGet();
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("uptime.seconds", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - this.startMillis));
+        stats.put("requests", this.getRequestCount());
+        stats.put("connections.open", (long) this.getOpenConnections());
+        stats.put("connections.accepted", this.getAcceptedConnections());
+
+        for (Command command : Command.values()) {
+            LatencyHistogram latencies = this.commandLatencies[command.ordinal()];
+
+            if (latencies.getCount() > 0) {
+                Metrics.putHistogram(stats, command.name().toLowerCase(), latencies);
+            }
+        }
+
+        long lookups = 0;
+        long totalHops = 0;
+        for (int hops = 0; hops <= Metrics.maxHops; hops++) {
+            long count = this.hopCounts.get(hops);
+            lookups += count;
+            totalHops += hops * count;
+
+            if (count > 0) {
+                stats.put("hops." + hops, count);
+            }
+        }
+        stats.put("hops.mean.milli", lookups > 0 ? totalHops * 1000 / lookups : 0);
+
+        Metrics.putHistogram(stats, "lock.wait", this.lockWait);
+        Metrics.putHistogram(stats, "stabilize.rtt", this.stabilizeRoundTrip);
+        Metrics.putHistogram(stats, "heartbeat.rtt", this.heartbeatRoundTrip);
+        stats.put("failures.detected", this.detectedFailures.get());
+        stats.put("replication.failures", this.replicationFailures.get());
+        stats.put("reads.hedged", this.hedgedReads.get());
+        stats.put("handoff.keys.sent", this.keysSent.get());
+        stats.put("handoff.keys.received", this.keysReceived.get());
+        stats.put("location.cache.hits", this.locationCache.getHits());
+        stats.put("location.cache.misses", this.locationCache.getMisses());
+        stats.put("location.cache.size", (long) this.locationCache.size());
+        stats.put("log.dropped", Log.getDroppedCount());
+
+        return stats;
+    }
+
+    public long getRequestCount() {
+        long requests = 0;
+
+        for (LatencyHistogram latencies : this.commandLatencies) {
+            requests += latencies.getCount();
+        }
+
+        return requests;
+    }
+
+    public int getOpenConnections() {
+        return this.openConnections.get();
+    }
+
+    public long getAcceptedConnections() {
+        return this.acceptedConnections.get();
+    }
+
+    /**
+     * @return  Every metric as name=value pairs separated by commas, latencies are in microseconds
+     */
+    public String format() {
+        StringBuilder stats = new StringBuilder();
+
+        for (Map.Entry<String, Long> stat : this.getStats().entrySet()) {
+            if (stats.length() > 0) {
+                stats.append(',');
+            }
+
+            stats.append(stat.getKey()).append('=').append(stat.getValue());
+        }
+
+        return stats.toString();
+    }
+
+    private static void putHistogram(Map<String, Long> stats, String name, LatencyHistogram latencies) {
+        stats.put(name + ".count", latencies.getCount());
+        stats.put(name + ".p50.us", latencies.getPercentile(50));
+        stats.put(name + ".p99.us", latencies.getPercentile(99));
+        stats.put(name + ".p999.us", latencies.getPercentile(99.9));
+        stats.put(name + ".max.us", latencies.getMax());
+    }
+
+    private static long microsSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.Map;
+
+/**
+ * The metrics of a node as published over JMX, under com.milesoldenburg.jchord:type=ChordNode,port=[port]
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return  Every metric of the node by name, the same values the STATS command returns
+     */
+    Map<String, Long> getStats();
+
+    long getRequestCount();
+
+    int getOpenConnections();
+
+    long getAcceptedConnections();
+
+}
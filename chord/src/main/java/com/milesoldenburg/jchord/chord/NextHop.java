@@ -0,0 +1,24 @@
+package com.milesoldenburg.jchord.chord;
+
+/**
+ * A single step of an iterative lookup. Either the owner of the id that was looked up, or the closer finger that should be asked next.
+ */
+public class NextHop {
+
+    private Finger finger;
+    private boolean owner;
+
+    public NextHop(Finger finger, boolean owner) {
+        this.finger = finger;
+        this.owner = owner;
+    }
+
+    public Finger getFinger() {
+        return this.finger;
+    }
+
+    public boolean isOwner() {
+        return this.owner;
+    }
+
+}
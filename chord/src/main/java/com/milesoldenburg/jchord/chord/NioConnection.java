@@ -0,0 +1,406 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of a single client connection served by the NIO listener. The event loop feeds it bytes, complete messages are queued and handed to the worker pool, and responses are queued until the event loop can write them. Text messages of one connection are processed one at a time so responses go out in the order the requests came in. Binary frames carry a request id, so they are processed concurrently and answered in whatever order they complete.
+ *
+ * Every binary frame is read into a pooled FrameTask, which is decoded in place and carries the frame to the worker pool. The response is written into the reply buffer of the same task, and the task goes back to the pool once the response was written, so a connection in steady use serves frames without allocating buffers.
+ */
+public class NioConnection implements Runnable {
+
+    private final static int maxPendingMessages = 256;
+    private final static int maxLineLength = BinaryProtocol.MAX_FRAME_LENGTH;
+    private final static int maxPooledTasks = 64;
+    private final static int maxPooledFrameLength = 64 * 1024;
+
+    private SocketChannel channel;
+    private NioEventLoop eventLoop;
+    private ChordThread handler;
+    private ExecutorService workers;
+    private ExecutorService ownerWorkers;
+    private ExecutorService replicaWorkers;
+    private SelectionKey key;
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private boolean negotiated = false;
+    private boolean binary = false;
+    private boolean binaryPreamblePending = false;
+    private Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pendingMessageCount = new AtomicInteger();
+    private Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Queue<FrameTask> pendingReplies = new ConcurrentLinkedQueue<>();
+    private BlockingQueue<FrameTask> freeTasks = new ArrayBlockingQueue<>(NioConnection.maxPooledTasks);
+    private FrameTask currentFrame = null;
+    private AtomicBoolean processing = new AtomicBoolean(false);
+    private volatile boolean inputClosed = false;
+
+    public NioConnection(SocketChannel channel, NioEventLoop eventLoop, ChordThread handler, ExecutorService workers, ExecutorService ownerWorkers, ExecutorService replicaWorkers) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.handler = handler;
+        this.workers = workers;
+        this.ownerWorkers = ownerWorkers;
+        this.replicaWorkers = replicaWorkers;
+    }
+
+    /**
+     * Reads whatever is available on the channel and queues every complete message. Called on the event loop thread only.
+     *
+     * @param buffer    Scratch buffer owned by the event loop
+     * @throws IOException  If the channel could not be read
+     */
+    public void read(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int read = this.channel.read(buffer);
+
+        if (read < 0) {
+            this.inputClosed = true;
+            return;
+        }
+
+        buffer.flip();
+
+        // The first byte of a connection tells whether the client asked for the binary protocol
+        if (!this.negotiated && buffer.hasRemaining()) {
+            this.negotiated = true;
+            this.binary = buffer.get(buffer.position()) == BinaryProtocol.MAGIC;
+            this.binaryPreamblePending = this.binary;
+        }
+
+        if (this.binary) {
+            this.readFrames(buffer);
+        } else {
+            this.readLines(buffer);
+        }
+
+        this.schedule();
+    }
+
+    /**
+     * Writes as much of the queued responses as the channel accepts. Called on the event loop thread only.
+     *
+     * @throws IOException  If the channel could not be written
+     */
+    public void flush() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = this.pendingWrites.peek()) != null) {
+            this.channel.write(buffer);
+
+            // The socket buffer is full, wait until the channel is writable again
+            if (buffer.hasRemaining()) {
+                return;
+            }
+
+            this.pendingWrites.poll();
+        }
+
+        FrameTask task;
+        while ((task = this.pendingReplies.peek()) != null) {
+            this.channel.write(task.response);
+
+            if (task.response.hasRemaining()) {
+                return;
+            }
+
+            this.pendingReplies.poll();
+            this.release(task);
+        }
+    }
+
+    /**
+     * Processes queued messages on a worker thread until the queue is empty
+     */
+    public void run() {
+        try {
+            String message;
+            while ((message = this.pendingMessages.poll()) != null) {
+                this.pendingMessageCount.decrementAndGet();
+
+                String response;
+                try {
+                    response = this.handler.process(message);
+                } catch (RuntimeException e) {
+                    Log.error("error when processing message " + message, e);
+                    response = null;
+                }
+
+                if (response != null) {
+                    this.pendingWrites.add(ByteBuffer.wrap((response + "\n").getBytes()));
+                    this.eventLoop.update(this);
+                }
+            }
+        } finally {
+            this.processing.set(false);
+        }
+
+        // A message may have arrived after the queue was found empty but before the flag was cleared
+        if (!this.pendingMessages.isEmpty()) {
+            this.schedule();
+        }
+
+        this.eventLoop.update(this);
+    }
+
+    /**
+     * Computes the operations this connection is interested in. Reading pauses while too many messages are waiting to be processed so a fast client cannot exhaust memory.
+     *
+     * @return  The interest set for the selection key
+     */
+    public int getInterestOps() {
+        int ops = 0;
+
+        if (!this.inputClosed && this.pendingMessageCount.get() < NioConnection.maxPendingMessages) {
+            ops |= SelectionKey.OP_READ;
+        }
+
+        if (!this.pendingWrites.isEmpty() || !this.pendingReplies.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        return ops;
+    }
+
+    /**
+     * @return  True once the client has closed its side and every message has been answered
+     */
+    public boolean isFinished() {
+        return this.inputClosed && !this.processing.get() && this.pendingMessageCount.get() == 0 && this.pendingWrites.isEmpty() && this.pendingReplies.isEmpty();
+    }
+
+    public void close() {
+        try {
+            if (this.key != null) {
+                this.key.cancel();
+            }
+
+            this.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with a connection that cannot be closed cleanly
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public SelectionKey getKey() {
+        return this.key;
+    }
+
+    private void readLines(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+
+            if (b == '\n') {
+                // Strip the carriage return of \r\n terminated lines
+                int length = (this.lineLength > 0 && this.line[this.lineLength - 1] == '\r') ? this.lineLength - 1 : this.lineLength;
+                this.pendingMessages.add(new String(this.line, 0, length));
+                this.pendingMessageCount.incrementAndGet();
+                this.lineLength = 0;
+            } else {
+                this.append(b);
+            }
+        }
+    }
+
+    /**
+     * Accumulates bytes until the preamble or a complete frame is available. The preamble is echoed back. Once the length of a frame is known, the rest of the frame is copied from the read buffer straight into a pooled task, which is handed to the worker pool when it is complete.
+     */
+    private void readFrames(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.currentFrame == null) {
+                this.append(buffer.get());
+
+                if (this.binaryPreamblePending) {
+                    if (this.lineLength == BinaryProtocol.PREAMBLE.length) {
+                        if (!BinaryProtocol.isPreamble(this.line, 0)) {
+                            throw new IOException("Invalid preamble");
+                        }
+
+                        // Confirm the protocol by echoing the preamble
+                        this.pendingWrites.add(ByteBuffer.wrap(BinaryProtocol.PREAMBLE));
+                        this.binaryPreamblePending = false;
+                        this.lineLength = 0;
+                    }
+
+                    continue;
+                }
+
+                if (this.lineLength < 4) {
+                    continue;
+                }
+
+                int length = ((this.line[0] & 0xFF) << 24) | ((this.line[1] & 0xFF) << 16) | ((this.line[2] & 0xFF) << 8) | (this.line[3] & 0xFF);
+                if (length < 5 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+
+                this.currentFrame = this.takeTask(length);
+                this.lineLength = 0;
+            }
+
+            FrameTask task = this.currentFrame;
+            int available = Math.min(task.frame.remaining(), buffer.remaining());
+            buffer.get(task.request, task.frame.position(), available);
+            task.frame.position(task.frame.position() + available);
+
+            if (!task.frame.hasRemaining()) {
+                this.currentFrame = null;
+                task.frame.flip();
+
+                // Requests that never contact another node are answered right here, so a worker pool full of requests waiting on other nodes cannot hold them up
+                byte opcode = task.frame.get(0);
+                if (BinaryProtocol.isLocal(opcode)) {
+                    task.process();
+                    continue;
+                }
+
+                this.pendingMessageCount.incrementAndGet();
+
+                try {
+                    this.workersFor(opcode).execute(task);
+                } catch (RejectedExecutionException e) {
+                    throw new IOException("Worker pool rejected frame");
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the worker pool for a binary frame. A request may only wait on requests served by a later pool, client requests wait on the owner and the owner waits on its replicas, so the requests a pool waits on can never be queued behind it.
+     *
+     * @param opcode    The opcode of the frame
+     * @return          The pool that serves the frame
+     */
+    private ExecutorService workersFor(byte opcode) {
+        if (opcode == BinaryProtocol.LOCAL_TEXT || opcode == BinaryProtocol.OWNER_TEXT) {
+            return this.ownerWorkers;
+        }
+
+        if (opcode == BinaryProtocol.REPLICA_TEXT) {
+            return this.replicaWorkers;
+        }
+
+        return this.workers;
+    }
+
+    /**
+     * Takes a task from the pool that can hold a frame of the given length, or creates one
+     */
+    private FrameTask takeTask(int length) {
+        FrameTask task = this.freeTasks.poll();
+        if (task == null) {
+            task = new FrameTask();
+        }
+
+        if (task.request.length < length) {
+            task.request = new byte[Math.max(length, task.request.length * 2)];
+            task.frame = ByteBuffer.wrap(task.request);
+        }
+
+        task.frame.clear().limit(length);
+
+        return task;
+    }
+
+    /**
+     * Returns a task to the pool once its response was written. Tasks that grew beyond the pooled size are left to the garbage collector.
+     */
+    private void release(FrameTask task) {
+        if (task.response != task.reply && task.response != null && task.response.capacity() <= NioConnection.maxPooledFrameLength) {
+            // A response that did not fit the reply buffer becomes the reply buffer for the next frame
+            task.reply = task.response;
+        }
+
+        task.response = null;
+        if (task.request.length <= NioConnection.maxPooledFrameLength) {
+            this.freeTasks.offer(task);
+        }
+    }
+
+    private void append(byte b) throws IOException {
+        this.ensureCapacity(this.lineLength + 1);
+        this.line[this.lineLength++] = b;
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity > this.line.length) {
+            if (capacity > NioConnection.maxLineLength + 4) {
+                throw new IOException("Message too long");
+            }
+
+            this.line = Arrays.copyOf(this.line, Math.max(capacity, this.line.length * 2));
+        }
+    }
+
+    /**
+     * A binary frame on its way through a worker and back to the client. Holds the request bytes, a view of them that the handler decodes in place and the buffer the response is written into.
+     */
+    private class FrameTask implements Runnable {
+
+        private byte[] request = new byte[256];
+        private ByteBuffer frame = ByteBuffer.wrap(this.request);
+        private ByteBuffer reply = ByteBuffer.allocate(256);
+        private ByteBuffer response;
+
+        /**
+         * Processes the frame on a worker thread
+         */
+        public void run() {
+            try {
+                this.process();
+            } finally {
+                NioConnection.this.pendingMessageCount.decrementAndGet();
+                NioConnection.this.eventLoop.update(NioConnection.this);
+            }
+        }
+
+        private void process() {
+            try {
+                BinaryProtocol.replyInto(this.reply);
+                this.response = NioConnection.this.handler.process(this.frame);
+            } catch (RuntimeException e) {
+                Log.error("error when processing frame", e);
+                this.response = null;
+            } finally {
+                BinaryProtocol.replyInto(null);
+            }
+
+            if (this.response != null) {
+                NioConnection.this.pendingReplies.add(this);
+            } else {
+                NioConnection.this.release(this);
+            }
+        }
+
+    }
+
+    private void schedule() {
+        if (!this.pendingMessages.isEmpty() && this.processing.compareAndSet(false, true)) {
+            try {
+                this.workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.processing.set(false);
+                this.close();
+            }
+        }
+    }
+
+}
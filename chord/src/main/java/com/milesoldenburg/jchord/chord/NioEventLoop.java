@@ -0,0 +1,144 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A single I/O thread that multiplexes many client connections over one Selector. Reading and writing happens here, the messages themselves are handled on the worker pools.
+ */
+public class NioEventLoop implements Runnable {
+
+    private ChordNode chordNode;
+    private ExecutorService workers;
+    private ExecutorService ownerWorkers;
+    private ExecutorService replicaWorkers;
+    private Selector selector;
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private Queue<NioConnection> updatedConnections = new ConcurrentLinkedQueue<>();
+
+    public NioEventLoop(ChordNode chordNode, ExecutorService workers, ExecutorService ownerWorkers, ExecutorService replicaWorkers) throws IOException {
+        this.chordNode = chordNode;
+        this.workers = workers;
+        this.ownerWorkers = ownerWorkers;
+        this.replicaWorkers = replicaWorkers;
+        this.selector = Selector.open();
+    }
+
+    public void run() {
+        while (this.selector.isOpen()) {
+            try {
+                this.selector.select();
+
+                this.registerNewChannels();
+                this.updateInterestOps();
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read(this.readBuffer);
+                        }
+
+                        this.updateInterestOps(connection);
+                    } catch (IOException e) {
+                        this.close(connection);
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("error when selecting connections", e);
+            }
+        }
+    }
+
+    /**
+     * Hands a newly accepted channel to this event loop
+     *
+     * @param channel   The accepted client channel
+     */
+    public void register(SocketChannel channel) {
+        this.newChannels.add(channel);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Asks the event loop to recompute the interest set of a connection, for example after a worker queued a response
+     *
+     * @param connection    The connection whose state changed
+     */
+    public void update(NioConnection connection) {
+        this.updatedConnections.add(connection);
+        this.selector.wakeup();
+    }
+
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = this.newChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                NioConnection connection = new NioConnection(channel, this, new ChordThread(this.chordNode), this.workers, this.ownerWorkers, this.replicaWorkers);
+                connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+
+                this.chordNode.getMetrics().connectionOpened();
+                int port = channel.socket().getLocalPort();
+                Log.debug(() -> "Client connection established on port " + port);
+            } catch (IOException e) {
+                Log.error("error when registering connection", e);
+
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    // Nothing left to do with a channel that cannot be closed cleanly
+                }
+            }
+        }
+    }
+
+    private void updateInterestOps() {
+        NioConnection connection;
+        while ((connection = this.updatedConnections.poll()) != null) {
+            this.updateInterestOps(connection);
+        }
+    }
+
+    private void updateInterestOps(NioConnection connection) {
+        SelectionKey key = connection.getKey();
+
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        if (connection.isFinished()) {
+            this.close(connection);
+        } else {
+            key.interestOps(connection.getInterestOps());
+        }
+    }
+
+    private void close(NioConnection connection) {
+        int port = connection.getChannel().socket().getLocalPort();
+        connection.close();
+        this.chordNode.getMetrics().connectionClosed();
+
+        Log.debug(() -> "Client connection terminated on port " + port);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Listens for connections with a small fixed set of NIO event loops instead of a thread per client. Accepted channels are spread round robin over the event loops and messages are handled on fixed size worker pools. Storage commands for the owner and for the replicas of a key each get a pool of their own, since a client request waits on the owner and a write on the owner waits on its replicas. A replica never waits on another node, so no pool can fill up with requests that wait on a request stuck behind them in the same pool, on this node or any other.
+ */
+public class NioNodeListener implements Runnable {
+
+    private ChordNode chordNode;
+
+    public NioNodeListener(ChordNode chordNode) {
+        this.chordNode = chordNode;
+    }
+
+    public void run() {
+        try {
+            // Virtual threads are cheap enough to give every message its own, otherwise use a bounded pool of platform threads
+            ExecutorService workers = this.newWorkers();
+            ExecutorService ownerWorkers = this.newWorkers();
+            ExecutorService replicaWorkers = this.newWorkers();
+
+            // Start the event loops that serve the accepted connections
+            NioEventLoop[] eventLoops = new NioEventLoop[Chord.IO_THREADS];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop(this.chordNode, workers, ownerWorkers, replicaWorkers);
+                new Thread(eventLoops[i]).start();
+            }
+
+            // Listen for connections on port
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(this.chordNode.getPort()));
+
+            // Continuously loop for connections and hand them to the event loops in turn
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                eventLoops[next].register(clientChannel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            Log.error("error when listening for connections", e);
+        }
+    }
+
+    private ExecutorService newWorkers() {
+        return this.chordNode.isVirtualThreads() ? this.chordNode.getExecutor() : Executors.newFixedThreadPool(Chord.WORKER_THREADS);
+    }
+
+}
@@ -19,13 +19,12 @@ public class NodeListener implements Runnable {
 
             // Continuously loop for connections
             while (true) {
-                // When connection is established launch a new thread for communicating with client
+                // When connection is established hand the client to the executor of the node
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new ChordThread(this.chordNode, clientSocket)).start();
+                this.chordNode.getExecutor().execute(new ChordThread(this.chordNode, clientSocket));
             }
         } catch (IOException e) {
-            System.err.println("error when listening for connections");
-            e.printStackTrace();
+            Log.error("error when listening for connections", e);
         }
     }
 
@@ -1,182 +1,227 @@
 package com.milesoldenburg.jchord.chord;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.math.BigInteger;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.Arrays;
 
-public class NodeStabilizer extends Thread {
+public class NodeStabilizer implements Runnable {
 
     private ChordNode chordNode;
+    private int virtualNode;
     private int delaySeconds = 10;
 
-    public NodeStabilizer(ChordNode chordNode) {
+    /**
+     * @param chordNode     The process
+     * @param virtualNode   The virtual node of the process that this stabilizer maintains
+     */
+    public NodeStabilizer(ChordNode chordNode, int virtualNode) {
         this.chordNode = chordNode;
+        this.virtualNode = virtualNode;
     }
 
     /**
-     * Method that periodically runs to determine if node needs a new successor by contacting the listed successor and asking for its predecessor. If the current successor has a predecessor that is different than itself it sets its successor to the predecessor.
+     * Method that periodically runs to keep the successor list and the fingers up to date. Every round it sends one EXCHANGE_SUCCESSORS message to the first reachable successor, which announces this node as a predecessor and returns the predecessor and the successor list of the successor in a single round trip. Afterwards all fingers are refreshed through the successor.
      */
     public void run() {
         try {
             // Initially sleep
             Thread.sleep(this.delaySeconds * 1000);
 
-            Socket socket = null;
-            PrintWriter socketWriter = null;
-            BufferedReader socketReader = null;
+            ConnectionPool connectionPool = this.chordNode.getConnectionPool();
 
             while (true) {
-                // Only open a connection to the successor if it is not ourselves
-                if (!this.chordNode.getAddress().equals(this.chordNode.getFirstSuccessor().getAddress()) || (this.chordNode.getPort() != this.chordNode.getFirstSuccessor().getPort())) {
-                    // Open socket to successor
-                    socket = new Socket(this.chordNode.getFirstSuccessor().getAddress(), this.chordNode.getFirstSuccessor().getPort());
-
-                    // Open reader/writer to chord node
-                    socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                    socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                    // Submit a request for the predecessor
-                    socketWriter.println(Chord.REQUEST_PREDECESSOR + ":" + this.chordNode.getId() + " asking " + this.chordNode.getFirstSuccessor().getId());
-                    System.out.println("Sent: " + Chord.REQUEST_PREDECESSOR + ":" + this.chordNode.getId() + " asking " + this.chordNode.getFirstSuccessor().getId());
-
-                    // Read response from chord
-                    String serverResponse = socketReader.readLine();
-                    System.out.println("Received: " + serverResponse);
-
-                    // Parse server response for address and port
-                    String[] predecessorFragments = serverResponse.split(":");
-                    String predecessorAddress = predecessorFragments[0];
-                    int predecessorPort = Integer.valueOf(predecessorFragments[1]);
-
-                    // If the address:port that was returned from the server is not ourselves then we need to adopt it as our new successor
-                    if (!this.chordNode.getAddress().equals(predecessorAddress) || (this.chordNode.getPort() != predecessorPort)) {
-                        this.chordNode.acquire();
-
-                        Finger newSuccessor = new Finger(predecessorAddress, predecessorPort);
-
-                        // Update finger table entries to reflect new successor
-                        this.chordNode.getFingers().put(1, this.chordNode.getFingers().get(0));
-                        this.chordNode.getFingers().put(0, newSuccessor);
-
-                        // Update successor entries to reflect new successor
-                        this.chordNode.setSecondSuccessor(this.chordNode.getFirstSuccessor());
-                        this.chordNode.setFirstSuccessor(newSuccessor);
-
-                        this.chordNode.release();
-
-                        // Close connections
-                        socketWriter.close();
-                        socketReader.close();
-                        socket.close();
-
-                        // Inform new successor that we are now their predecessor
-                        socket = new Socket(newSuccessor.getAddress(), newSuccessor.getPort());
-
-                        // Open writer/reader to new successor node
-                        socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                        socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                        // Tell successor that this node is its new predecessor
-                        socketWriter.println(Chord.NEW_PREDECESSOR + ":" + this.chordNode.getAddress() + ":" + this.chordNode.getPort());
-                        System.out.println("Sent: " + Chord.NEW_PREDECESSOR + ":" + this.chordNode.getAddress() + ":" + this.chordNode.getPort());
+                this.stabilize(connectionPool);
+
+                RoutingTable routingTable = this.chordNode.getRoutingTable(this.virtualNode);
+                Finger self = routingTable.getSelf();
+                Finger successor = routingTable.getFirstSuccessor();
+                Finger predecessor = routingTable.getFirstPredecessor();
+
+                // Finger lookups go to the successor, or to the predecessor if we have no other successor
+                Finger stabilizeNode = !successor.equals(self) ? successor : predecessor;
+                if (!stabilizeNode.equals(self)) {
+                    try {
+                        this.refreshFingers(connectionPool, stabilizeNode);
+                    } catch (IOException e) {
+                        Log.warn("stabilize() could not refresh fingers through " + stabilizeNode);
+                        this.chordNode.removeNode(stabilizeNode);
                     }
+                }
 
-                    BigInteger bigQuery = BigInteger.valueOf(2L);
-                    BigInteger bigSelfId = BigInteger.valueOf(this.chordNode.getId());
-
-                    this.chordNode.acquire();
+                // Stabilize again after delay
+                Thread.sleep(this.delaySeconds * 1000);
+            }
+        } catch (InterruptedException e) {
+            Log.error("stabilize() thread interrupted", e);
+        }
+    }
 
-                    // Refresh all fingers by asking successor for nodes
-                    for (int i = 0; i < 32; i++) {
-                        BigInteger bigResult = bigQuery.pow(i);
-                        bigResult = bigResult.add(bigSelfId);
+    /**
+     * Exchanges successor lists with the first successor that answers. Successors that cannot be reached are dropped on the way. If the successor knows a predecessor that lies between us and it, that node is closer and becomes our first successor instead.
+     *
+     * @param connectionPool    The pool to send the exchange through
+     */
+    private void stabilize(ConnectionPool connectionPool) {
+        RoutingTable routingTable = this.chordNode.getRoutingTable(this.virtualNode);
+        Finger self = routingTable.getSelf();
+
+        // A node that is its own successor learns about the rest of the ring from its predecessor
+        if (routingTable.getFirstSuccessor().equals(self)) {
+            if (routingTable.getFirstPredecessor().equals(self)) {
+                return;
+            }
 
-                        // Send query to chord
-                        socketWriter.println(Chord.FIND_NODE + ":" + bigResult.longValue());
-                        System.out.println("Sent: " + Chord.FIND_NODE + ":" + bigResult.longValue());
+            routingTable = this.chordNode.updateRoutingTable(this.virtualNode, table -> table.getFirstSuccessor().equals(self) ? table.withSuccessors(new Finger[] {table.getFirstPredecessor()}) : table);
+        }
 
-                        // Read response from chord
-                        serverResponse = socketReader.readLine();
+        for (int i = 0; i < routingTable.getSuccessorCount(); i++) {
+            Finger successor = routingTable.getSuccessor(i);
 
-                        // Parse out address and port
-                        String[] serverResponseFragments = serverResponse.split(":", 2);
-                        String[] addressFragments = serverResponseFragments[1].split(":");
+            if (successor.equals(self)) {
+                break;
+            }
 
-                        // Add response finger to table
-                        this.chordNode.getFingers().put(i, new Finger(addressFragments[0], Integer.valueOf(addressFragments[1])));
-                        this.chordNode.setFirstSuccessor(this.chordNode.getFingers().get(0));
-                        this.chordNode.setSecondSuccessor(this.chordNode.getFingers().get(1));
+            Finger[] exchange;
+            try {
+                exchange = this.exchangeSuccessors(connectionPool, self, successor);
+            } catch (IOException e) {
+                // Skip the unreachable successor and try the next one in the list
+                this.chordNode.removeNode(successor);
+                continue;
+            }
 
-                        System.out.println("Received: " + serverResponse);
-                    }
+            // The process of the successor answers as its virtual node closest after us, which may be closer than the one we knew
+            if (exchange[0] != null) {
+                successor = exchange[0];
+            }
 
-                    this.chordNode.release();
+            // The second entry is the predecessor of the successor, the rest is its successor list
+            Finger predecessor = exchange[1];
+            if (predecessor != null && RoutingTable.isBetween(predecessor.getId(), self.getId(), successor.getId())) {
+                try {
+                    // The predecessor joined between us and our successor, so it is our new successor
+                    exchange = this.exchangeSuccessors(connectionPool, self, predecessor);
+                    successor = exchange[0] != null ? exchange[0] : predecessor;
+                } catch (IOException e) {
+                    Log.warn("stabilize() could not reach new successor " + predecessor);
+                }
+            }
 
-                    // Close connections
-                    socketWriter.close();
-                    socketReader.close();
-                    socket.close();
-                } else if (!this.chordNode.getAddress().equals(this.chordNode.getFirstPredecessor().getAddress()) || (this.chordNode.getPort() != this.chordNode.getFirstPredecessor().getPort())) {
-                    // Open socket to successor
-                    socket = new Socket(this.chordNode.getFirstPredecessor().getAddress(), this.chordNode.getFirstPredecessor().getPort());
+            Finger[] successors = NodeStabilizer.buildSuccessorList(self, successor, exchange);
+            this.chordNode.updateRoutingTable(this.virtualNode, table -> table.withSuccessors(successors));
 
-                    // Open reader/writer to chord node
-                    socketWriter = new PrintWriter(socket.getOutputStream(), true);
-                    socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            return;
+        }
+    }
 
-                    BigInteger bigQuery = BigInteger.valueOf(2L);
-                    BigInteger bigSelfId = BigInteger.valueOf(this.chordNode.getId());
+    /**
+     * Announces this node to a successor and fetches the virtual node that answered, its predecessor and its successor list
+     *
+     * @param connectionPool    The pool to send the exchange through
+     * @param self              The virtual node that announces itself
+     * @param successor         The node to exchange with
+     * @return                  The virtual node that answered and its predecessor followed by its successors, entries that could not be parsed are null
+     * @throws IOException      If the node could not be reached
+     */
+    private Finger[] exchangeSuccessors(ConnectionPool connectionPool, Finger self, Finger successor) throws IOException {
+        String message = Chord.EXCHANGE_SUCCESSORS + ":" + self;
+        long start = System.nanoTime();
+        String serverResponse = connectionPool.send(successor, message);
+        this.chordNode.getMetrics().recordStabilizeRoundTrip(start);
+        this.chordNode.getProximityTable().record(successor, start);
+        Log.debug(() -> "Sent: " + message + " to " + successor);
+        Log.debug(() -> "Received: " + serverResponse);
+
+        if (!serverResponse.startsWith(Chord.SUCCESSORS + ":")) {
+            throw new IOException("Unexpected response to " + Chord.EXCHANGE_SUCCESSORS + " from " + successor);
+        }
 
-                    this.chordNode.acquire();
+        // Parse out address and port of every entry
+        String[] entries = serverResponse.substring(Chord.SUCCESSORS.length() + 1).split(",");
+        Finger[] fingers = new Finger[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            fingers[i] = Finger.parse(entries[i]);
+        }
 
-                    // Refresh all fingers by asking successor for nodes
-                    for (int i = 0; i < 32; i++) {
-                        BigInteger bigResult = bigQuery.pow(i);
-                        bigResult = bigResult.add(bigSelfId);
+        return fingers;
+    }
 
-                        // Send query to chord
-                        socketWriter.println(Chord.FIND_NODE + ":" + bigResult.longValue());
-                        System.out.println("Sent: " + Chord.FIND_NODE + ":" + bigResult.longValue());
+    /**
+     * Builds our successor list from our first successor and its own successor list. The list stops early once it wraps around to us, which happens in rings with fewer nodes than the list length.
+     *
+     * @param self      This node
+     * @param successor Our first successor
+     * @param exchange  The answering virtual node, the predecessor and the successor list of our first successor
+     * @return          The new successor list
+     */
+    private static Finger[] buildSuccessorList(Finger self, Finger successor, Finger[] exchange) {
+        Finger[] successors = new Finger[Chord.SUCCESSORS_LENGTH];
+        successors[0] = successor;
+        int count = 1;
+
+        for (int i = 2; i < exchange.length && count < successors.length; i++) {
+            if (exchange[i] == null || exchange[i].equals(self) || exchange[i].equals(successors[count - 1])) {
+                break;
+            }
 
-                        // Read response from chord
-                        String serverResponse = socketReader.readLine();
+            successors[count++] = exchange[i];
+        }
 
-                        // Parse out address and port
-                        String[] serverResponseFragments = serverResponse.split(":", 2);
-                        String[] addressFragments = serverResponseFragments[1].split(":");
+        return Arrays.copyOf(successors, count);
+    }
 
-                        // Add response finger to table
-                        this.chordNode.getFingers().put(i, new Finger(addressFragments[0], Integer.valueOf(addressFragments[1])));
-                        this.chordNode.setFirstSuccessor(this.chordNode.getFingers().get(0));
-                        this.chordNode.setSecondSuccessor(this.chordNode.getFingers().get(1));
+    /**
+     * Looks up every finger through the given node in a single batch and then swaps a new routing table in. Lookups keep using the previous table while we wait on the network.
+     *
+     * @param connectionPool    The pool to send the lookups through
+     * @param stabilizeNode     The node that resolves the lookups
+     * @throws IOException      If the node could not be reached
+     */
+    private void refreshFingers(ConnectionPool connectionPool, Finger stabilizeNode) throws IOException {
+        // Send all finger lookups in one batch, the node forwards only the ids it cannot answer itself
+        long[] fingerStarts = this.chordNode.getFingerStarts(this.virtualNode);
+        Finger[] refreshedFingers = connectionPool.findNodes(stabilizeNode, fingerStarts, Chord.MAX_HOPS);
+        Log.debug(() -> "Sent: " + Chord.FIND_NODES + " with " + fingerStarts.length + " ids");
+
+        if (Chord.PROXIMITY_ROUTING) {
+            this.selectClosestFingers(connectionPool, fingerStarts, refreshedFingers);
+        }
 
-                        System.out.println("Received: " + serverResponse);
-                    }
+        // Keep the old finger if the lookup failed somewhere along the way
+        this.chordNode.updateRoutingTable(this.virtualNode, routingTable -> routingTable.withFingers(refreshedFingers));
+    }
 
-                    this.chordNode.release();
+    /**
+     * Replaces every finger with the node of the shortest round trip whose id lies between the start of the finger and the start of the next one. Fingers that were never measured are pinged first, so they can be compared in this round.
+     *
+     * @param connectionPool    The pool to send the pings through
+     * @param fingerStarts      The ids the fingers point at
+     * @param fingers           The owners of the finger starts, replaced in place
+     */
+    private void selectClosestFingers(ConnectionPool connectionPool, long[] fingerStarts, Finger[] fingers) {
+        ProximityTable proximityTable = this.chordNode.getProximityTable();
+        Finger self = this.chordNode.getRoutingTable(this.virtualNode).getSelf();
+
+        for (int i = 0; i < fingers.length; i++) {
+            Finger finger = fingers[i];
+            if (finger == null || this.chordNode.isLocal(finger) || proximityTable.getRoundTrip(finger) >= 0) {
+                continue;
+            }
 
-                    // Close connections
-                    socketWriter.close();
-                    socketReader.close();
-                    socket.close();
+            try {
+                long start = System.nanoTime();
+                if (connectionPool.send(finger, Chord.PING_QUERY + ":" + self.getId()).equals(Chord.PING_RESPONSE)) {
+                    proximityTable.record(finger, start);
                 }
+            } catch (IOException e) {
+                // Lookups find out about the node soon enough, without a round trip it just stays the finger
+            }
+        }
 
-                // Stabilize again after delay
-                Thread.sleep(this.delaySeconds * 1000);
+        for (int i = 0; i < fingers.length; i++) {
+            if (fingers[i] != null && !fingers[i].equals(self)) {
+                long end = i + 1 < fingerStarts.length ? fingerStarts[i + 1] : self.getId();
+                fingers[i] = proximityTable.findClosestInInterval(fingers[i], fingerStarts[i], end);
             }
-        } catch (InterruptedException e) {
-            System.err.println("stabilize() thread interrupted");
-            e.printStackTrace();
-        } catch (UnknownHostException e) {
-            System.err.println("stabilize() could not find host of first successor");
-            e.printStackTrace();
-        } catch (IOException e) {
-            System.err.println("stabilize() could not connect to first successor");
-            e.printStackTrace();
         }
     }
 
@@ -0,0 +1,448 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A persistent connection to another Chord node. Instances are handed out and taken back by the ConnectionPool. The connection speaks the binary protocol if the remote node accepted it during the handshake and the line based text protocol otherwise.
+ */
+public class PeerConnection {
+
+    private final static int handshakeTimeoutMillis = 2000;
+
+    private String key;
+    private Socket socket;
+    private boolean binary;
+    private PrintWriter socketWriter;
+    private BufferedReader socketReader;
+    private OutputStream frameWriter;
+    private DataInputStream frameReader;
+    private byte[] frameBuffer;
+    private int nextRequestId = 0;
+    private long lastUsed;
+    private int requests = 0;
+    private boolean broken = false;
+
+    public PeerConnection(String key, String address, int port, int connectTimeoutMillis, int readTimeoutMillis, boolean binary) throws IOException {
+        this.key = key;
+        this.binary = binary;
+
+        // Open socket to chord node and keep it alive between requests
+        this.socket = new Socket();
+        this.socket.setKeepAlive(true);
+        this.socket.setTcpNoDelay(true);
+        this.socket.connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+
+        if (binary) {
+            this.frameWriter = new BufferedOutputStream(this.socket.getOutputStream());
+            this.frameReader = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            this.frameBuffer = new byte[256];
+
+            try {
+                this.handshake();
+            } catch (IOException e) {
+                this.close();
+                throw e;
+            }
+        } else {
+            // Open reader/writer to chord node
+            this.socketWriter = new PrintWriter(this.socket.getOutputStream(), true);
+            this.socketReader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        }
+
+        this.socket.setSoTimeout(readTimeoutMillis);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends a text message and waits for the single line response
+     *
+     * @param message   The message to send
+     * @return          The response line
+     * @throws IOException  If the connection failed or was closed by the remote node
+     */
+    public String send(String message) throws IOException {
+        if (this.binary) {
+            ByteBuffer response = this.call(BinaryProtocol.text(BinaryProtocol.TEXT, this.nextRequestId(), message));
+            return BinaryProtocol.readText(response);
+        }
+
+        this.write(message);
+
+        // Read response from chord
+        String response;
+        try {
+            response = this.socketReader.readLine();
+        } catch (IOException e) {
+            this.broken = true;
+            throw e;
+        }
+
+        // A null response means the remote node closed the connection
+        if (response == null) {
+            this.broken = true;
+            throw new IOException("Connection closed by " + this.key);
+        }
+
+        this.lastUsed = System.currentTimeMillis();
+
+        return response;
+    }
+
+    /**
+     * Sends a storage command to the node that owns its key. The remote node runs it against its own store without forwarding it. Connections in text mode fall back to the plain command, which the remote node routes again if it does not own the key.
+     *
+     * @param message   The command to send
+     * @return          The response line
+     * @throws IOException  If the connection failed or was closed by the remote node
+     */
+    public String sendToOwner(String message) throws IOException {
+        if (this.binary) {
+            ByteBuffer response = this.call(BinaryProtocol.text(BinaryProtocol.LOCAL_TEXT, this.nextRequestId(), message));
+            return BinaryProtocol.readText(response);
+        }
+
+        return this.send(message);
+    }
+
+    /**
+     * Sends a storage command to a node that was remembered as the owner of its key. The remote node runs it against its own store if it still owns the key and answers NOT_OWNER otherwise. Connections in text mode fall back to the plain command, which the remote node routes again if it does not own the key.
+     *
+     * @param message   The command to send
+     * @return          The response line
+     * @throws IOException  If the connection failed or was closed by the remote node
+     */
+    public String sendIfOwner(String message) throws IOException {
+        if (this.binary) {
+            ByteBuffer response = this.call(BinaryProtocol.text(BinaryProtocol.OWNER_TEXT, this.nextRequestId(), message));
+            return BinaryProtocol.readText(response);
+        }
+
+        return this.send(message);
+    }
+
+    /**
+     * Sends a storage command to a replica of its key. The remote node runs it against its own copy of the key. Connections in text mode fall back to the REPLICATE command.
+     *
+     * @param message   The command to send
+     * @return          The response line
+     * @throws IOException  If the connection failed or was closed by the remote node
+     */
+    public String sendToReplica(String message) throws IOException {
+        if (this.binary) {
+            ByteBuffer response = this.call(BinaryProtocol.text(BinaryProtocol.REPLICA_TEXT, this.nextRequestId(), message));
+            return BinaryProtocol.readText(response);
+        }
+
+        return this.send(Chord.REPLICATE + ":" + message);
+    }
+
+    /**
+     * Sends a text message that does not expect a response
+     *
+     * @param message   The message to send
+     * @throws IOException  If the connection failed
+     */
+    public void write(String message) throws IOException {
+        if (this.binary) {
+            this.writeFrame(BinaryProtocol.text(BinaryProtocol.TEXT, this.nextRequestId(), message));
+            return;
+        }
+
+        this.socketWriter.println(message);
+
+        // PrintWriter swallows exceptions so check for errors explicitly
+        if (this.socketWriter.checkError()) {
+            this.broken = true;
+            throw new IOException("Could not write to " + this.key);
+        }
+
+        this.lastUsed = System.currentTimeMillis();
+        this.requests++;
+    }
+
+    /**
+     * Asks the remote node for the node that owns an id
+     *
+     * @param id    The id to look up
+     * @return      The owner, or null if the remote node could not find it
+     * @throws IOException  If the connection failed
+     */
+    public Finger findNode(long id) throws IOException {
+        if (!this.binary) {
+            String response = this.send(Chord.FIND_NODE + ":" + Long.toUnsignedString(id));
+
+            if (!response.startsWith(Chord.NODE_FOUND + ":")) {
+                return null;
+            }
+
+            // Parse out address and port
+            return Finger.parse(response.substring(Chord.NODE_FOUND.length() + 1));
+        }
+
+        ByteBuffer response = this.call(BinaryProtocol.findNode(this.nextRequestId(), id));
+        if (response.get(0) != BinaryProtocol.NODE_FOUND) {
+            return null;
+        }
+
+        return BinaryProtocol.readFinger(response);
+    }
+
+    /**
+     * Asks the remote node for the owners of several ids at once
+     *
+     * @param ids       The ids to look up
+     * @param hopsLeft  How many more times the remote node may forward the ids it cannot answer
+     * @return          The owners in the order of the ids, null where the remote node could not find the owner
+     * @throws IOException  If the connection failed
+     */
+    public Finger[] findNodes(long[] ids, int hopsLeft) throws IOException {
+        Finger[] owners = new Finger[ids.length];
+
+        if (!this.binary) {
+            StringBuilder message = new StringBuilder(Chord.FIND_NODES).append(':').append(hopsLeft).append(':');
+            for (int i = 0; i < ids.length; i++) {
+                message.append(i > 0 ? "," : "").append(Long.toUnsignedString(ids[i]));
+            }
+
+            String response = this.send(message.toString());
+            if (!response.startsWith(Chord.NODES_FOUND + ":")) {
+                return owners;
+            }
+
+            // Parse out address and port of every owner, empty entries were not found
+            String[] ownerFragments = response.substring(Chord.NODES_FOUND.length() + 1).split(",", -1);
+            for (int i = 0; i < owners.length && i < ownerFragments.length; i++) {
+                owners[i] = Finger.parse(ownerFragments[i]);
+            }
+
+            return owners;
+        }
+
+        ByteBuffer response = this.call(BinaryProtocol.findNodes(this.nextRequestId(), ids, hopsLeft));
+        if (response.get(0) != BinaryProtocol.NODES_FOUND) {
+            return owners;
+        }
+
+        int count = response.getInt();
+        for (int i = 0; i < count && i < owners.length; i++) {
+            owners[i] = BinaryProtocol.readFinger(response);
+        }
+
+        return owners;
+    }
+
+    /**
+     * Asks the remote node for a single step of an iterative lookup
+     *
+     * @param id    The id to look up
+     * @return      The owner of the id or the next node to ask, or null if the remote node could not answer
+     * @throws IOException  If the connection failed
+     */
+    public NextHop findNextHop(long id) throws IOException {
+        if (!this.binary) {
+            String response = this.send(Chord.FIND_NEXT_HOP + ":" + Long.toUnsignedString(id));
+
+            // Parse out command, address and port
+            String[] responseFragments = response.split(":", 2);
+            Finger finger = responseFragments.length == 2 ? Finger.parse(responseFragments[1]) : null;
+            if (finger == null) {
+                return null;
+            }
+
+            return new NextHop(finger, Chord.NODE_FOUND.equals(responseFragments[0]));
+        }
+
+        ByteBuffer response = this.call(BinaryProtocol.findNextHop(this.nextRequestId(), id));
+        byte opcode = response.get(0);
+        if (opcode != BinaryProtocol.NODE_FOUND && opcode != BinaryProtocol.NEXT_HOP) {
+            return null;
+        }
+
+        return new NextHop(BinaryProtocol.readFinger(response), opcode == BinaryProtocol.NODE_FOUND);
+    }
+
+    /**
+     * Asks the remote node for the next batch of a key range transfer
+     *
+     * @param phase     The phase of the transfer
+     * @param offset    Where the batch starts within the phase
+     * @param owner     The virtual node of the remote node that owns the range
+     * @param receiver  The virtual node that takes the range over
+     * @param keys      The keys whose records are asked for in the RECORDS phase, or null
+     * @return          The batch, or null if the remote node does not own the range or forgot the transfer
+     * @throws IOException  If the connection failed
+     */
+    public KeyBatch fetchKeys(byte phase, int offset, Finger owner, Finger receiver, KeyBatch keys) throws IOException {
+        if (!this.binary) {
+            String response = this.send(Chord.FETCH_KEYS + ":" + phase + ":" + offset + ":" + owner + "," + receiver + (keys != null ? ";" + keys.formatEntries() : ""));
+
+            if (!response.startsWith(Chord.KEYS + ":")) {
+                return null;
+            }
+
+            return KeyBatch.parse(response.substring(Chord.KEYS.length() + 1));
+        }
+
+        ByteBuffer response = this.call(BinaryProtocol.fetchKeys(this.nextRequestId(), phase, offset, owner, receiver, keys));
+        if (response.get(0) != BinaryProtocol.KEYS) {
+            return null;
+        }
+
+        try {
+            return BinaryProtocol.readKeys(response);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Malformed KEYS frame from " + this.key);
+        }
+    }
+
+    /**
+     * Checks that the remote node still answers on this connection
+     *
+     * @param id    The id of the local node, sent along with the ping
+     * @return      True if the remote node replied with the expected ping response
+     */
+    public boolean ping(long id) {
+        try {
+            if (this.binary) {
+                return this.call(BinaryProtocol.ping(this.nextRequestId(), id)).get(0) == BinaryProtocol.PING_RESPONSE;
+            }
+
+            return Chord.PING_RESPONSE.equals(this.send(Chord.PING_QUERY + ":" + id));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public boolean isOpen() {
+        return !this.broken && this.socket.isConnected() && !this.socket.isClosed() && !this.socket.isInputShutdown() && !this.socket.isOutputShutdown();
+    }
+
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    public void close() {
+        this.broken = true;
+
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a connection that cannot be closed cleanly
+        }
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return  True if this connection has already carried a message, in which case the remote node may have closed it since
+     */
+    public boolean isReused() {
+        return this.requests > 0;
+    }
+
+    /**
+     * @return  The number of messages that were written on this connection
+     */
+    public int getRequests() {
+        return this.requests;
+    }
+
+    public long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Sends the preamble and waits for the remote node to echo it. A node that only speaks the text protocol never answers, so the handshake gives up after a short timeout.
+     *
+     * @throws ProtocolException    If the remote node did not accept the binary protocol or did not answer the preamble in time
+     * @throws IOException          If the connection failed
+     */
+    private void handshake() throws IOException {
+        this.socket.setSoTimeout(PeerConnection.handshakeTimeoutMillis);
+
+        this.frameWriter.write(BinaryProtocol.PREAMBLE);
+        this.frameWriter.flush();
+
+        byte[] preamble = new byte[BinaryProtocol.PREAMBLE.length];
+        try {
+            this.frameReader.readFully(preamble);
+        } catch (SocketTimeoutException e) {
+            throw new ProtocolException(this.key + " did not answer the binary preamble");
+        }
+
+        if (!BinaryProtocol.isPreamble(preamble, 0)) {
+            throw new ProtocolException(this.key + " does not speak the binary protocol");
+        }
+    }
+
+    /**
+     * Writes a request frame and reads the response frame into the reusable frame buffer
+     *
+     * @param request   The request frame
+     * @return          A view of the response positioned after the request id, the opcode is at index 0
+     * @throws IOException  If the connection failed or the response did not match the request
+     */
+    private ByteBuffer call(ByteBuffer request) throws IOException {
+        int requestId = request.getInt(5);
+        this.writeFrame(request);
+
+        try {
+            int length = this.frameReader.readInt();
+            if (length < 5 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Invalid frame length " + length + " from " + this.key);
+            }
+
+            if (length > this.frameBuffer.length) {
+                this.frameBuffer = new byte[Math.max(length, this.frameBuffer.length * 2)];
+            }
+
+            this.frameReader.readFully(this.frameBuffer, 0, length);
+
+            ByteBuffer response = ByteBuffer.wrap(this.frameBuffer, 0, length);
+            if (response.getInt(1) != requestId) {
+                throw new ProtocolException("Unexpected response id from " + this.key);
+            }
+
+            response.position(5);
+            this.lastUsed = System.currentTimeMillis();
+
+            return response;
+        } catch (IOException e) {
+            this.broken = true;
+            throw e;
+        }
+    }
+
+    private void writeFrame(ByteBuffer frame) throws IOException {
+        try {
+            this.frameWriter.write(frame.array(), frame.arrayOffset(), frame.limit());
+            this.frameWriter.flush();
+        } catch (IOException e) {
+            this.broken = true;
+            throw e;
+        }
+
+        this.lastUsed = System.currentTimeMillis();
+        this.requests++;
+    }
+
+    private int nextRequestId() {
+        return this.nextRequestId++;
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip times to the nodes this node talks to, measured on messages that the other node answers without contacting anyone else: heartbeats, successor exchanges and single steps of iterative lookups. Every node keeps a smoothed estimate, so a single slow answer does not move it much, and estimates that have not been refreshed for a while are ignored because the node may be gone.
+ *
+ * Routing uses the estimates to prefer close nodes: among the nodes that may serve as a finger the closest one is picked, and the next hop of a lookup weighs the round trip to a candidate against how much further from the key it leaves the lookup.
+ */
+public class ProximityTable {
+
+    private final static int capacity = 1024;
+    private final static long maxAgeNanos = TimeUnit.SECONDS.toNanos(60);
+
+    // Weight of a new sample in the smoothed estimates, the same as the TCP round trip estimator
+    private final static double sampleWeight = 0.125;
+
+    private ConcurrentMap<Finger, Estimate> estimates = new ConcurrentHashMap<>();
+    private volatile double meanMicros = 0;
+
+    /**
+     * Records the round trip of a message that the node answered itself
+     *
+     * @param node          The node that answered
+     * @param startNanos    The System.nanoTime() before the message was sent
+     */
+    public void record(Finger node, long startNanos) {
+        long now = System.nanoTime();
+        double micros = TimeUnit.NANOSECONDS.toMicros(now - startNanos);
+
+        Estimate estimate = this.estimates.get(node);
+        if (estimate == null) {
+            // Nodes beyond the capacity are not measured, routing falls back to ring distance for them
+            if (this.estimates.size() >= ProximityTable.capacity) {
+                return;
+            }
+
+            estimate = this.estimates.computeIfAbsent(node, n -> new Estimate(micros));
+        }
+
+        estimate.record(micros, now);
+
+        double mean = this.meanMicros;
+        this.meanMicros = mean == 0 ? micros : mean + ProximityTable.sampleWeight * (micros - mean);
+    }
+
+    /**
+     * @param node  The node to look up
+     * @return      The smoothed round trip to the node in microseconds, or -1 if it was not measured recently
+     */
+    public double getRoundTrip(Finger node) {
+        Estimate estimate = this.estimates.get(node);
+
+        if (estimate == null || System.nanoTime() - estimate.lastSampleNanos > ProximityTable.maxAgeNanos) {
+            return -1;
+        }
+
+        return estimate.micros;
+    }
+
+    /**
+     * @return  The smoothed round trip over all nodes in microseconds, 0 before the first measurement
+     */
+    public double getMeanRoundTrip() {
+        return this.meanMicros;
+    }
+
+    /**
+     * Finds the closest node that may serve as a finger. Any node whose id lies in the interval of the finger keeps lookups within the usual number of hops, so the node that owns the start of the interval is only replaced by one with a shorter round trip.
+     *
+     * @param owner     The node that owns the start of the interval
+     * @param from      The start of the interval (inclusive)
+     * @param to        The end of the interval (exclusive)
+     * @return          The node with the shortest recent round trip in the interval, or the owner if no measured node beats it
+     */
+    public Finger findClosestInInterval(Finger owner, long from, long to) {
+        double ownerMicros = this.getRoundTrip(owner);
+        if (ownerMicros < 0) {
+            return owner;
+        }
+
+        long now = System.nanoTime();
+        long width = RoutingTable.distance(from, to);
+        Finger closest = owner;
+        double closestMicros = ownerMicros;
+
+        for (Map.Entry<Finger, Estimate> entry : this.estimates.entrySet()) {
+            Estimate estimate = entry.getValue();
+
+            if (estimate.micros < closestMicros && now - estimate.lastSampleNanos <= ProximityTable.maxAgeNanos && Long.compareUnsigned(RoutingTable.distance(from, entry.getKey().getId()), width) < 0) {
+                closest = entry.getKey();
+                closestMicros = estimate.micros;
+            }
+        }
+
+        return closest;
+    }
+
+    /**
+     * Forgets a node that failed
+     *
+     * @param node  The node to forget
+     */
+    public void forget(Finger node) {
+        this.estimates.remove(node);
+    }
+
+    /**
+     * @return  The number of nodes with an estimate
+     */
+    public int size() {
+        return this.estimates.size();
+    }
+
+    /**
+     * The smoothed round trip to one node. Updates race without a lock, a lost sample only delays the estimate by one message.
+     */
+    private static class Estimate {
+
+        private volatile double micros;
+        private volatile long lastSampleNanos;
+
+        private Estimate(double micros) {
+            this.micros = micros;
+            this.lastSampleNanos = System.nanoTime();
+        }
+
+        private void record(double sampleMicros, long nowNanos) {
+            this.micros += ProximityTable.sampleWeight * (sampleMicros - this.micros);
+            this.lastSampleNanos = nowNanos;
+        }
+
+    }
+
+}
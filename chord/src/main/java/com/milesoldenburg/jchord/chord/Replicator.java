@@ -0,0 +1,312 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps copies of every key on its owner and on the first successors of the owner that run in other processes, so the successor that takes over the keys of a failed node already has them.
+ *
+ * The owner applies a write to its own store first and then sends it to all replicas at once. It answers as soon as the write quorum, counting itself, has the write, and the slower replicas catch up in the background. Since every write passes through the owner first, the owner always has the latest value while a replica may briefly lag behind it.
+ *
+ * Reads go to the copy with the shortest measured round trip first. Whenever no usable answer arrived within the hedge delay, the next copy is asked as well and the first value found wins, so a slow owner no longer decides the tail latency of its keys. Replicas answer reads from their own copy and never pass them on. A replica that does not have a key may just lag behind, so only the owner can answer that a key is not found, unless the owner cannot be reached and a replica is all that is left. The node that receives a read learns the copies of an owner from the owner itself and remembers them for a while.
+ */
+public class Replicator {
+
+    private final static int replicaSetCapacity = 1024;
+    private final static long replicaSetMaxAgeNanos = TimeUnit.SECONDS.toNanos(30);
+    private final static long writeTimeoutMillis = 5000;
+
+    private ChordNode chordNode;
+    private ConcurrentMap<Finger, ReplicaSet> replicaSets = new ConcurrentHashMap<>();
+    private Set<Finger> fetching = ConcurrentHashMap.newKeySet();
+
+    public Replicator(ChordNode chordNode) {
+        this.chordNode = chordNode;
+    }
+
+    /**
+     * Sends a write that this node applied as the owner of the key on to the replicas of the key
+     *
+     * @param queryId   The id of the key
+     * @param message   The write, STORE:key:value or DELETE:key
+     * @return          True if the write reached the write quorum, or as many copies as the ring has if that is less
+     */
+    public boolean replicate(long queryId, String message) {
+        Finger[] replicas = this.chordNode.findRoutingTable(queryId).getReplicas(Chord.REPLICATION_FACTOR - 1);
+        int needed = Math.min(Chord.WRITE_QUORUM, replicas.length + 1) - 1;
+
+        BlockingQueue<Answer> answers = new LinkedBlockingQueue<>();
+        for (Finger replica : replicas) {
+            this.ask(replica, connection -> connection.sendToReplica(message), false, answers);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Replicator.writeTimeoutMillis);
+        int acknowledged = 0;
+        int failed = 0;
+
+        try {
+            // Stop waiting as soon as the quorum is reached or can no longer be reached
+            while (acknowledged < needed && replicas.length - failed >= needed) {
+                Answer answer = answers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (answer == null) {
+                    break;
+                }
+
+                if (answer.response != null) {
+                    acknowledged++;
+                } else {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (acknowledged < needed) {
+            Log.warn("Write for " + Long.toUnsignedString(queryId) + " reached " + (acknowledged + 1) + " of " + (needed + 1) + " copies");
+            this.chordNode.getMetrics().recordReplicationFailure();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Makes sure every replica of a virtual node holds its range after its routing table changed. A replica that is new to the list is asked to copy the whole range, and when the range grew because the predecessor failed or left, every replica is, since the keys of the predecessor had other replicas.
+     *
+     * @param oldRoutingTable   The routing table before the change
+     * @param newRoutingTable   The routing table after the change
+     */
+    public void copyToNewReplicas(RoutingTable oldRoutingTable, RoutingTable newRoutingTable) {
+        if (Chord.REPLICATION_FACTOR == 1 || oldRoutingTable == null) {
+            return;
+        }
+
+        Finger self = newRoutingTable.getSelf();
+        Finger oldPredecessor = oldRoutingTable.getFirstPredecessor();
+        Finger newPredecessor = newRoutingTable.getFirstPredecessor();
+        boolean grew = !newPredecessor.equals(oldPredecessor) && !oldPredecessor.equals(self) && !RoutingTable.isBetween(newPredecessor.getId(), oldPredecessor.getId(), self.getId());
+
+        Finger[] oldReplicas = oldRoutingTable.getReplicas(Chord.REPLICATION_FACTOR - 1);
+        for (Finger replica : newRoutingTable.getReplicas(Chord.REPLICATION_FACTOR - 1)) {
+            boolean known = false;
+            for (int i = 0; i < oldReplicas.length && !known; i++) {
+                known = oldReplicas[i].isSameProcess(replica);
+            }
+
+            if (grew || !known) {
+                this.chordNode.getExecutor().execute(() -> {
+                    try {
+                        this.chordNode.getConnectionPool().write(replica, Chord.COPY_RANGE + ":" + self + "," + replica);
+                    } catch (IOException e) {
+                        Log.debug(() -> "Could not ask " + replica + " to copy the keys of " + self + ": " + e.getMessage());
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Reads a key from whichever of its copies answers first with a value
+     *
+     * @param owner         The owner of the key
+     * @param queryId       The id of the key
+     * @param message       The read, GET:key or FIND_VALUE:key
+     * @param ownerChecked  True if the owner is only remembered from an earlier lookup, it then answers NOT_OWNER if it no longer owns the key
+     * @param path          Records the nodes that were asked
+     * @return              The first value found, otherwise the response of the owner, or of a replica if the owner could not be reached
+     * @throws UnreachableNodeException If no copy could be reached
+     */
+    public String read(Finger owner, long queryId, String message, boolean ownerChecked, LookupPath path) throws UnreachableNodeException {
+        Finger[] copies = this.findCopies(owner, queryId);
+        BlockingQueue<Answer> answers = new LinkedBlockingQueue<>();
+        IOException ownerError = null;
+        String replicaResponse = null;
+        int asked = 0;
+        int pending = 0;
+
+        try {
+            do {
+                // Every round starts after the copies asked so far took longer than the hedge delay or one of them failed or had nothing usable, so the next copy is asked right away
+                if (asked < copies.length) {
+                    Finger copy = copies[asked++];
+                    path.addHop(copy);
+                    pending++;
+
+                    // A replica answers from its own copy, sent as an owner command it would pass the read on to whichever node took the key over from it
+                    if (!copy.equals(owner)) {
+                        this.ask(copy, connection -> connection.sendToReplica(message), true, answers);
+                    } else if (ownerChecked) {
+                        this.ask(copy, connection -> connection.sendIfOwner(message), true, answers);
+                    } else {
+                        this.ask(copy, connection -> connection.sendToOwner(message), true, answers);
+                    }
+                }
+
+                Answer answer = asked < copies.length ? answers.poll(Chord.READ_HEDGE_MILLIS, TimeUnit.MILLISECONDS) : answers.take();
+                if (answer == null) {
+                    this.chordNode.getMetrics().recordHedgedRead();
+                    continue;
+                }
+
+                pending--;
+                if (answer.response == null) {
+                    ownerError = answer.node.equals(owner) ? answer.error : ownerError;
+                    continue;
+                }
+
+                path.trace(answer.node, answer.node, answer.startNanos);
+
+                if (answer.node.equals(owner) || answer.response.startsWith(Chord.VALUE_FOUND + ":")) {
+                    return answer.response;
+                }
+
+                replicaResponse = answer.response;
+            } while (pending > 0 || asked < copies.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ownerError = new InterruptedIOException("Interrupted while reading from " + owner);
+        }
+
+        // Without the owner the first replica, which takes over its keys, has the final say
+        if (replicaResponse != null) {
+            return replicaResponse;
+        }
+
+        throw new UnreachableNodeException(owner, ownerError != null ? ownerError : new IOException("No copy answered"));
+    }
+
+    /**
+     * Stops asking a node that failed for copies. The copies of a failed owner are kept, they are the nodes that still have its keys.
+     *
+     * @param node  The node that failed
+     */
+    public void forget(Finger node) {
+        this.replicaSets.replaceAll((owner, replicaSet) -> replicaSet.without(node));
+    }
+
+    /**
+     * @return  The owner followed by its replicas in the order they are asked, or just the owner until its replicas are known
+     */
+    private Finger[] findCopies(Finger owner, long queryId) {
+        ReplicaSet replicaSet = this.replicaSets.get(owner);
+
+        // Fetch the copies in the background, in the meantime the read goes to the copies we know
+        if ((replicaSet == null || System.nanoTime() - replicaSet.fetchedNanos > Replicator.replicaSetMaxAgeNanos) && this.fetching.add(owner)) {
+            this.chordNode.getExecutor().execute(() -> this.fetchCopies(owner, queryId));
+        }
+
+        if (replicaSet == null || replicaSet.copies.length == 0) {
+            return new Finger[] {owner};
+        }
+
+        return replicaSet.copies;
+    }
+
+    private void fetchCopies(Finger owner, long queryId) {
+        try {
+            String response = this.chordNode.getConnectionPool().send(owner, Chord.FIND_REPLICAS + ":" + Long.toUnsignedString(queryId));
+            if (!response.startsWith(Chord.REPLICAS_FOUND + ":")) {
+                return;
+            }
+
+            Finger[] copies = Arrays.stream(response.substring(Chord.REPLICAS_FOUND.length() + 1).split(",")).map(Finger::parse).filter(copy -> copy != null).toArray(Finger[]::new);
+            if (copies.length == 0 || !copies[0].equals(owner)) {
+                return;
+            }
+
+            // Nearest copy first, copies without a measurement count as average so the owner stays first unless a replica is known to be closer
+            if (Chord.PROXIMITY_ROUTING) {
+                ProximityTable proximityTable = this.chordNode.getProximityTable();
+                double meanMicros = proximityTable.getMeanRoundTrip();
+                Arrays.sort(copies, Comparator.comparingDouble(copy -> {
+                    double roundTripMicros = proximityTable.getRoundTrip(copy);
+                    return roundTripMicros < 0 ? meanMicros : roundTripMicros;
+                }));
+            }
+
+            if (this.replicaSets.size() >= Replicator.replicaSetCapacity) {
+                this.replicaSets.clear();
+            }
+
+            this.replicaSets.put(owner, new ReplicaSet(copies));
+        } catch (IOException e) {
+            Log.debug(() -> "Could not fetch the replicas of " + owner + ": " + e.getMessage());
+        } finally {
+            this.fetching.remove(owner);
+        }
+    }
+
+    /**
+     * Sends a request to a copy without waiting, the answer is added to the queue once it arrives. Only reads are sent again when a pooled connection turns out to be stale.
+     */
+    private void ask(Finger node, ConnectionPool.Request<String> request, boolean read, BlockingQueue<Answer> answers) {
+        long start = System.nanoTime();
+        ConnectionPool connectionPool = this.chordNode.getConnectionPool();
+
+        this.chordNode.getExecutor().execute(() -> {
+            try {
+                String response = read ? connectionPool.callIdempotent(node, request) : connectionPool.call(node, request);
+                answers.add(new Answer(node, response, null, start));
+            } catch (IOException e) {
+                answers.add(new Answer(node, null, e, start));
+            }
+        });
+    }
+
+    /**
+     * The response of one copy, or the error that kept it from answering
+     */
+    private static class Answer {
+
+        private final Finger node;
+        private final String response;
+        private final IOException error;
+        private final long startNanos;
+
+        private Answer(Finger node, String response, IOException error, long startNanos) {
+            this.node = node;
+            this.response = response;
+            this.error = error;
+            this.startNanos = startNanos;
+        }
+
+    }
+
+    /**
+     * The copies of the keys of an owner, as the owner named them
+     */
+    private static class ReplicaSet {
+
+        private final Finger[] copies;
+        private final long fetchedNanos;
+
+        private ReplicaSet(Finger[] copies) {
+            this(copies, System.nanoTime());
+        }
+
+        private ReplicaSet(Finger[] copies, long fetchedNanos) {
+            this.copies = copies;
+            this.fetchedNanos = fetchedNanos;
+        }
+
+        private ReplicaSet without(Finger node) {
+            if (!Arrays.asList(this.copies).contains(node)) {
+                return this;
+            }
+
+            return new ReplicaSet(Arrays.stream(this.copies).filter(copy -> !copy.equals(node)).toArray(Finger[]::new), this.fetchedNanos);
+        }
+
+    }
+
+}
@@ -0,0 +1,357 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the routing state of a node: its fingers, its list of successors and its predecessors. ChordNode publishes the current snapshot through an atomic reference, so readers always see a consistent table without taking a lock. Writers build a modified copy with the with* methods and swap it in.
+ */
+public class RoutingTable {
+
+    private final static int nextHopCandidates = 3;
+
+    private final Finger self;
+    private final Finger[] fingers;
+    private final Finger[] successors;
+    private final FingerTable fingerTable;
+    private final Finger firstPredecessor;
+    private final Finger secondPredecessor;
+    private final double nodeSpacing;
+
+    /**
+     * @param self              This node
+     * @param fingers           The fingers by index
+     * @param successors        The successors in ring order, at least one entry
+     * @param firstPredecessor  The immediate predecessor
+     * @param secondPredecessor The predecessor of the immediate predecessor
+     */
+    public RoutingTable(Finger self, Finger[] fingers, Finger[] successors, Finger firstPredecessor, Finger secondPredecessor) {
+        this.self = self;
+        this.fingers = fingers;
+        this.successors = successors;
+        this.firstPredecessor = firstPredecessor;
+        this.secondPredecessor = secondPredecessor;
+
+        // Successors are routing candidates as well, they are usually closer to the key than the finger before them
+        Finger[] routingCandidates = Arrays.copyOf(fingers, fingers.length + successors.length);
+        System.arraycopy(successors, 0, routingCandidates, fingers.length, successors.length);
+        this.fingerTable = new FingerTable(self.getId(), routingCandidates);
+
+        // The successor list tells how far apart nodes are on average, which tells how many hops a lookup still needs
+        Finger lastSuccessor = successors[successors.length - 1];
+        long successorSpan = RoutingTable.distance(self.getId(), lastSuccessor.getId());
+        this.nodeSpacing = successorSpan != 0 ? Math.max(1, RoutingTable.toDouble(successorSpan) / successors.length) : Math.scalb(1.0, Chord.RING_BITS);
+    }
+
+    /**
+     * Checks whether an id lies strictly between two ids going clockwise. If both ends are the same id the interval is the whole ring except that id.
+     *
+     * @param id    The id to check
+     * @param from  The start of the interval (exclusive)
+     * @param to    The end of the interval (exclusive)
+     * @return      True if the id is inside the interval
+     */
+    public static boolean isBetween(long id, long from, long to) {
+        long offset = RoutingTable.distance(from, id);
+        long width = RoutingTable.distance(from, to);
+
+        return offset != 0 && (width == 0 || Long.compareUnsigned(offset, width) < 0);
+    }
+
+    /**
+     * Measures the clockwise distance between two ids. Ids and distances are unsigned numbers below 2^Chord.RING_BITS, so distances have to be compared with Long.compareUnsigned() to also work on a ring of the full 64 bits.
+     *
+     * @param from  The id to start at
+     * @param to    The id to go to
+     * @return      The number of steps from one id to the other going clockwise
+     */
+    public static long distance(long from, long to) {
+        return (to - from) & Chord.RING_MASK;
+    }
+
+    /**
+     * @param id    The id of a node
+     * @param index The index of the finger
+     * @return      The id that the finger points at, id + 2^index wrapped around the ring
+     */
+    public static long fingerStart(long id, int index) {
+        return (id + (1L << index)) & Chord.RING_MASK;
+    }
+
+    /**
+     * Checks whether the id lies between our predecessor (exclusive) and us (inclusive)
+     *
+     * @param queryId   The id that is looked up
+     * @return          True if this node owns the id
+     */
+    public boolean doesQueryIdBelongToCurrentNode(long queryId) {
+        // Measured clockwise, so wrapping around the top of the ring needs no special case, and a node that is its own predecessor owns everything
+        return queryId == this.self.getId() || RoutingTable.isBetween(queryId, this.firstPredecessor.getId(), this.self.getId());
+    }
+
+    /**
+     * Checks whether the id lies between our second predecessor (exclusive) and our first predecessor (inclusive)
+     *
+     * @param queryId   The id that is looked up
+     * @return          True if the first predecessor owns the id
+     */
+    public boolean doesQueryIdBelongToPreviousNode(long queryId) {
+        return queryId == this.firstPredecessor.getId() || RoutingTable.isBetween(queryId, this.secondPredecessor.getId(), this.firstPredecessor.getId());
+    }
+
+    /**
+     * Checks whether the id lies between us (exclusive) and our first successor (inclusive)
+     *
+     * @param queryId   The id that is looked up
+     * @return          True if the first successor owns the id
+     */
+    public boolean doesQueryIdBelongToNextNode(long queryId) {
+        return queryId == this.successors[0].getId() || RoutingTable.isBetween(queryId, this.self.getId(), this.successors[0].getId());
+    }
+
+    /**
+     * Looks for a node identifier in the finger table that is less than the key id and closest in the ID space to the key id
+     *
+     * @param queryId   The id that is looked up
+     * @return          The closest preceding finger
+     */
+    public Finger findClosestPrecedingFinger(long queryId) {
+        return this.fingerTable.findClosestPrecedingFinger(queryId);
+    }
+
+    /**
+     * Picks the next hop of a lookup that this node sends itself. Besides the closest preceding finger, the fingers just before it are considered and the one with the lowest expected latency wins: the round trip to the finger plus the mean round trip for every hop the lookup is expected to need after it, which grows by a hop whenever the distance left to the key doubles. That is the worst case of Chord rather than the average of half a hop, so a finger further from the key only wins if it is clearly closer on the network and lookups do not take more hops because of jitter. Without round trip measurements this is the closest preceding finger.
+     *
+     * @param queryId           The id that is looked up
+     * @param proximityTable    The measured round trips to other nodes
+     * @return                  The finger to send the lookup to
+     */
+    public Finger findNextHop(long queryId, ProximityTable proximityTable) {
+        int index = this.fingerTable.indexOfClosestPrecedingFinger(queryId);
+        long queryOffset = RoutingTable.distance(this.self.getId(), queryId);
+        double meanMicros = proximityTable.getMeanRoundTrip();
+
+        // Also covers the search wrapping around because no finger precedes the key
+        if (meanMicros == 0 || this.fingerTable.getOffset(index) == 0 || Long.compareUnsigned(this.fingerTable.getOffset(index), queryOffset) > 0) {
+            return this.fingerTable.getNode(index);
+        }
+
+        Finger nextHop = null;
+        double lowestCost = Double.MAX_VALUE;
+        for (int i = index; i >= 0 && i > index - RoutingTable.nextHopCandidates && this.fingerTable.getOffset(i) != 0; i--) {
+            Finger candidate = this.fingerTable.getNode(i);
+
+            // Unmeasured nodes are assumed to be as far away as the average node
+            double roundTripMicros = proximityTable.getRoundTrip(candidate);
+            if (roundTripMicros < 0) {
+                roundTripMicros = meanMicros;
+            }
+
+            double remainingHops = Math.log1p(RoutingTable.toDouble(queryOffset - this.fingerTable.getOffset(i)) / this.nodeSpacing) / Math.log(2);
+            double cost = roundTripMicros + meanMicros * remainingHops;
+
+            if (cost < lowestCost) {
+                nextHop = candidate;
+                lowestCost = cost;
+            }
+        }
+
+        return nextHop;
+    }
+
+    /**
+     * @return  The value of an unsigned distance, close enough for estimates
+     */
+    private static double toDouble(long distance) {
+        return distance >= 0 ? distance : (distance >>> 1) * 2.0;
+    }
+
+    /**
+     * Creates a copy with some fingers replaced
+     *
+     * @param refreshedFingers  The new fingers by index, null entries keep the current finger
+     * @return                  The new table
+     */
+    public RoutingTable withFingers(Finger[] refreshedFingers) {
+        Finger[] newFingers = Arrays.copyOf(this.fingers, this.fingers.length);
+
+        for (int i = 0; i < newFingers.length && i < refreshedFingers.length; i++) {
+            if (refreshedFingers[i] != null) {
+                newFingers[i] = refreshedFingers[i];
+            }
+        }
+
+        return new RoutingTable(this.self, newFingers, this.successors, this.firstPredecessor, this.secondPredecessor);
+    }
+
+    /**
+     * Creates a copy with a new list of successors
+     *
+     * @param newSuccessors The successors in ring order, at least one entry
+     * @return              The new table
+     */
+    public RoutingTable withSuccessors(Finger[] newSuccessors) {
+        return new RoutingTable(this.self, this.fingers, newSuccessors, this.firstPredecessor, this.secondPredecessor);
+    }
+
+    /**
+     * Creates a copy where the given node is the new immediate predecessor and the current one moves to second predecessor
+     *
+     * @param newPredecessor    The new first predecessor
+     * @return                  The new table
+     */
+    public RoutingTable withNewPredecessor(Finger newPredecessor) {
+        return new RoutingTable(this.self, this.fingers, this.successors, newPredecessor, this.firstPredecessor);
+    }
+
+    /**
+     * Checks whether a node that claims to be our predecessor is closer than the one we know, or whether we do not know one yet
+     *
+     * @param candidate The node that claims to be our predecessor
+     * @return          True if the candidate should become the first predecessor
+     */
+    public boolean isCloserPredecessor(Finger candidate) {
+        if (candidate.equals(this.self) || candidate.equals(this.firstPredecessor)) {
+            return false;
+        }
+
+        return this.firstPredecessor.equals(this.self) || RoutingTable.isBetween(candidate.getId(), this.firstPredecessor.getId(), this.self.getId());
+    }
+
+    /**
+     * Creates a copy without a node that could not be reached, and without the other virtual nodes of its process since they fail along with it. The node is dropped from the successor list so the next successor takes over right away, fingers that pointed at it move on to the next finger, and a failed first predecessor is replaced by the second.
+     *
+     * @param failedNode    The node that could not be reached
+     * @return              The new table, or this table if the node does not appear in it
+     */
+    public RoutingTable withoutNode(Finger failedNode) {
+        if (failedNode.isSameProcess(this.self)) {
+            return this;
+        }
+
+        boolean changed = false;
+
+        // Drop the node from the successor list, falling back to ourselves if nobody is left
+        Finger[] newSuccessors = new Finger[this.successors.length];
+        int successorCount = 0;
+        for (Finger successor : this.successors) {
+            if (successor.isSameProcess(failedNode)) {
+                changed = true;
+            } else {
+                newSuccessors[successorCount++] = successor;
+            }
+        }
+
+        if (successorCount == 0) {
+            newSuccessors[successorCount++] = this.self;
+        }
+
+        // Point fingers at the next finger clockwise, the last ones at ourselves
+        Finger[] newFingers = Arrays.copyOf(this.fingers, this.fingers.length);
+        for (int i = newFingers.length - 1; i >= 0; i--) {
+            if (newFingers[i].isSameProcess(failedNode)) {
+                newFingers[i] = (i + 1 < newFingers.length) ? newFingers[i + 1] : this.self;
+                changed = true;
+            }
+        }
+
+        Finger newFirstPredecessor = this.firstPredecessor;
+        Finger newSecondPredecessor = this.secondPredecessor;
+        if (newSecondPredecessor.isSameProcess(failedNode)) {
+            newSecondPredecessor = this.self;
+            changed = true;
+        }
+        if (newFirstPredecessor.isSameProcess(failedNode)) {
+            newFirstPredecessor = newSecondPredecessor;
+            changed = true;
+        }
+
+        if (!changed) {
+            return this;
+        }
+
+        return new RoutingTable(this.self, newFingers, Arrays.copyOf(newSuccessors, successorCount), newFirstPredecessor, newSecondPredecessor);
+    }
+
+    /**
+     * Picks the nodes that keep copies of the keys of this node. A process keeps the keys of all of its virtual nodes in one store, so these are the first successors that run in processes other than ours and each other's.
+     *
+     * @param count The highest number of replicas
+     * @return      Up to count successors in ring order
+     */
+    public Finger[] getReplicas(int count) {
+        Finger[] replicas = new Finger[Math.min(count, this.successors.length)];
+        int size = 0;
+
+        for (int i = 0; i < this.successors.length && size < replicas.length; i++) {
+            Finger successor = this.successors[i];
+            boolean known = successor.isSameProcess(this.self);
+
+            for (int j = 0; j < size && !known; j++) {
+                known = replicas[j].isSameProcess(successor);
+            }
+
+            if (!known) {
+                replicas[size++] = successor;
+            }
+        }
+
+        return Arrays.copyOf(replicas, size);
+    }
+
+    /**
+     * @param node  The node to look for
+     * @return      True if the node is one of our fingers, successors or predecessors
+     */
+    public boolean contains(Finger node) {
+        for (Finger finger : this.fingers) {
+            if (finger.equals(node)) {
+                return true;
+            }
+        }
+
+        for (Finger successor : this.successors) {
+            if (successor.equals(node)) {
+                return true;
+            }
+        }
+
+        return this.firstPredecessor.equals(node) || this.secondPredecessor.equals(node);
+    }
+
+    public Finger getSelf() {
+        return this.self;
+    }
+
+    public Finger getFinger(int index) {
+        return this.fingers[index];
+    }
+
+    public int getFingerCount() {
+        return this.fingers.length;
+    }
+
+    public FingerTable getFingerTable() {
+        return this.fingerTable;
+    }
+
+    public Finger getSuccessor(int index) {
+        return this.successors[index];
+    }
+
+    public int getSuccessorCount() {
+        return this.successors.length;
+    }
+
+    public Finger getFirstSuccessor() {
+        return this.successors[0];
+    }
+
+    public Finger getFirstPredecessor() {
+        return this.firstPredecessor;
+    }
+
+    public Finger getSecondPredecessor() {
+        return this.secondPredecessor;
+    }
+
+}
@@ -1,14 +1,23 @@
 package com.milesoldenburg.jchord.chord;
 
-import javax.xml.bind.DatatypeConverter;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HexFormat;
 
+/**
+ * Maps keys and node addresses onto the ring. The 20-byte SHA-1 hash is split into 4-byte segments, or 8-byte segments on rings wider than 32 bits, that are XORed together and cut down to the width of the ring. On the default ring of 32 bits the result is the XOR of all five 4-byte segments.
+ *
+ * The static hash methods are thread safe and allocate nothing once a thread has hashed its first value: every thread keeps its own digest along with a buffer that strings are encoded into as UTF-8, since looking up a digest, String.getBytes() and wrapping the result in a ByteBuffer cost more than the hash itself for short keys.
+ */
 public class SHA1Hasher {
 
+    private final static MessageDigest prototype = SHA1Hasher.createDigest();
+    private final static ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
     private String address;
-    private byte[] hashedBytes = new byte[8];
+    private long id;
 
     public SHA1Hasher() {}
 
@@ -18,31 +27,17 @@ public class SHA1Hasher {
     }
 
     public void hash() {
-        MessageDigest md;
-
-        try {
-            // Create new SHA-1 digest
-            md = MessageDigest.getInstance("SHA-1");
-
-            // Hash address
-            byte[] addressBytes = md.digest(this.address.getBytes());
-
-            // Create 4-byte segments from 20-byte hash then XOR them together to get final 4-byte hash
-            for (int i = 0; i < 4; i++) {
-                this.hashedBytes[i + 4] = (byte) (addressBytes[i] ^ addressBytes[i + 4] ^ addressBytes[i + 8] ^ addressBytes[i + 12] ^ addressBytes[i + 16]);
-            }
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("Error: SHA-1 DNE");
-            e.printStackTrace();
-        }
+        this.id = SHA1Hasher.hash(this.address);
     }
 
     public String getHex() {
-        return DatatypeConverter.printHexBinary(Arrays.copyOfRange(this.hashedBytes, 4, 8));
+        String hex = HexFormat.of().withUpperCase().toHexDigits(this.id);
+
+        return hex.substring(hex.length() - (Chord.RING_BITS + 3) / 4);
     }
 
     public long getLong() {
-        return java.nio.ByteBuffer.wrap(this.hashedBytes).getLong();
+        return this.id;
     }
 
     public void setAddress(String address) {
@@ -50,4 +45,171 @@ public class SHA1Hasher {
         this.hash();
     }
 
+    /**
+     * @param text  The text to hash, encoded as UTF-8
+     * @return      The ring id of the text
+     */
+    public static long hash(CharSequence text) {
+        State state = SHA1Hasher.state.get();
+        int length = state.encode(text, 0);
+
+        return state.digest(length);
+    }
+
+    /**
+     * Hashes address:port the same way as hash(address + ":" + port) without building the string
+     *
+     * @param address   The address of the node
+     * @param port      The port of the node
+     * @return          The ring id of the node
+     */
+    public static long hash(CharSequence address, int port) {
+        State state = SHA1Hasher.state.get();
+        int length = state.encode(address, 0);
+        length = state.put(length, (byte) ':');
+        length = state.encode(port, length);
+
+        return state.digest(length);
+    }
+
+    /**
+     * @param bytes     The bytes to hash
+     * @param offset    Where the bytes start
+     * @param length    The number of bytes
+     * @return          The ring id of the bytes
+     */
+    public static long hash(byte[] bytes, int offset, int length) {
+        return SHA1Hasher.state.get().digest(bytes, offset, length);
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Error: SHA-1 DNE", e);
+        }
+    }
+
+    /**
+     * The digest and buffers owned by a single thread
+     */
+    private static class State {
+
+        private final static int wordLength = Chord.RING_BITS > 32 ? 8 : 4;
+
+        private MessageDigest digest;
+        private byte[] buffer = new byte[256];
+        private byte[] output = new byte[20];
+
+        private State() {
+            // Cloning skips the provider lookup of MessageDigest.getInstance()
+            try {
+                this.digest = (MessageDigest) SHA1Hasher.prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                this.digest = SHA1Hasher.createDigest();
+            }
+        }
+
+        private long digest(int length) {
+            return this.digest(this.buffer, 0, length);
+        }
+
+        private long digest(byte[] bytes, int offset, int length) {
+            this.digest.update(bytes, offset, length);
+
+            try {
+                this.digest.digest(this.output, 0, this.output.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+
+            // Create segments of the word length from 20-byte hash then XOR them together, the last segment of 8-byte words is only half as long
+            long id = 0;
+            for (int i = 0; i < State.wordLength; i++) {
+                int segment = 0;
+                for (int j = i; j < this.output.length; j += State.wordLength) {
+                    segment ^= this.output[j];
+                }
+
+                id = (id << 8) | (segment & 0xFF);
+            }
+
+            return id & Chord.RING_MASK;
+        }
+
+        /**
+         * Encodes text as UTF-8 into the buffer, unpaired surrogates become '?' like they do in String.getBytes()
+         *
+         * @return  The position after the encoded text
+         */
+        private int encode(CharSequence text, int position) {
+            int length = text.length();
+
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+
+                if (c < 0x80) {
+                    position = this.put(position, (byte) c);
+                } else if (c < 0x800) {
+                    position = this.put(position, (byte) (0xC0 | (c >> 6)));
+                    position = this.put(position, (byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    position = this.put(position, (byte) (0xF0 | (codePoint >> 18)));
+                    position = this.put(position, (byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    position = this.put(position, (byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    position = this.put(position, (byte) (0x80 | (codePoint & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    position = this.put(position, (byte) '?');
+                } else {
+                    position = this.put(position, (byte) (0xE0 | (c >> 12)));
+                    position = this.put(position, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                    position = this.put(position, (byte) (0x80 | (c & 0x3F)));
+                }
+            }
+
+            return position;
+        }
+
+        /**
+         * Encodes a number in decimal into the buffer
+         *
+         * @return  The position after the encoded number
+         */
+        private int encode(int number, int position) {
+            if (number < 0) {
+                return this.encode(Integer.toString(number), position);
+            }
+
+            int digits = 1;
+            for (int rest = number / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+
+            int end = position + digits;
+            this.ensureCapacity(end);
+
+            for (int i = end - 1; i >= position; i--) {
+                this.buffer[i] = (byte) ('0' + number % 10);
+                number /= 10;
+            }
+
+            return end;
+        }
+
+        private int put(int position, byte value) {
+            this.ensureCapacity(position + 1);
+            this.buffer[position] = value;
+
+            return position + 1;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(capacity, this.buffer.length * 2));
+            }
+        }
+
+    }
+
 }
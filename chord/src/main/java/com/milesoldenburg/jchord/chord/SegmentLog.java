@@ -0,0 +1,341 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the writes of a store on disk so a restarted node comes back with its keys instead of pulling them from its neighbors. Every write is appended to the active segment, a file of fixed size that is mapped into memory, so an append is a copy into the page cache and survives the process even before it reaches the disk. A full segment is forced to disk and sealed, and a new one is started.
+ *
+ * Every entry is written as
+ *
+ * <pre>
+ * int length | int crc | byte type | long id | record or key bytes
+ * </pre>
+ *
+ * where the length covers the type, the id and the bytes, and a length of 0 marks the end of a segment. Recovery replays the segments in the order they were written and stops at the first entry whose checksum does not match, which is where a crash cut the last write short.
+ *
+ * Overwritten and deleted keys leave dead entries behind. Once the sealed segments hold more than twice the bytes of the live records, the compactor copies the entries of the sealed segments that are still live to the end of the log and deletes the sealed segments, oldest first, so a crash halfway through never brings back an older value.
+ */
+public class SegmentLog implements Runnable {
+
+    private final static String suffix = ".segment";
+    private final static int headerLength = 4 + 4;
+    private final static int entryHeaderLength = 1 + 8;
+    private final static int endMarkerLength = 4;
+    private final static byte PUT = 1;
+    private final static byte DELETE = 2;
+    private final static long compactionDelayMillis = 30000;
+
+    private Path directory;
+    private long segmentBytes;
+    private KeyValueStore store;
+    private List<Segment> sealed = new ArrayList<>();
+    private Segment active;
+    private long nextSequence = 0;
+    private volatile long sealedBytes = 0;
+    private volatile boolean running = true;
+    private CRC32 crc = new CRC32();
+
+    /**
+     * @param directory     The directory that holds the segments of the node, created if it does not exist
+     * @param segmentBytes  The size of a segment
+     * @throws IOException  If the directory cannot be created or read
+     */
+    public SegmentLog(Path directory, long segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SegmentLog.suffix)) {
+            for (Path file : files) {
+                this.sealed.add(new Segment(file, SegmentLog.sequenceOf(file)));
+            }
+        }
+
+        this.sealed.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+        if (!this.sealed.isEmpty()) {
+            this.nextSequence = this.sealed.get(this.sealed.size() - 1).sequence + 1;
+        }
+    }
+
+    /**
+     * Replays all segments into a store, which is the store the compactor keeps the log in line with. Must be called before the first append, the segments found on disk stay sealed and new writes go to a new segment.
+     *
+     * @param store The store to fill
+     * @return      The number of entries replayed
+     * @throws IOException  If a segment cannot be read
+     */
+    public int recover(KeyValueStore store) throws IOException {
+        this.store = store;
+        int[] entries = new int[1];
+
+        for (Segment segment : this.sealed) {
+            try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int end = SegmentLog.forEachEntry(buffer, (type, id, bytes) -> {
+                    if (type == SegmentLog.PUT) {
+                        store.putRecord(id, bytes);
+                    } else {
+                        store.remove(id, bytes);
+                    }
+
+                    entries[0]++;
+                });
+
+                segment.bytes = end;
+                this.sealedBytes += end;
+            }
+        }
+
+        return entries[0];
+    }
+
+    /**
+     * Appends a stored record. Callers hold the write lock of the store, so entries are appended in the order the store applied them.
+     *
+     * @param id        The ring id of the key
+     * @param record    The record as it is stored
+     */
+    public void appendPut(long id, byte[] record) {
+        this.append(SegmentLog.PUT, id, record);
+    }
+
+    /**
+     * Appends the deletion of a key. Callers hold the write lock of the store.
+     *
+     * @param id        The ring id of the key
+     * @param keyBytes  The key in UTF-8
+     */
+    public void appendDelete(long id, byte[] keyBytes) {
+        this.append(SegmentLog.DELETE, id, keyBytes);
+    }
+
+    /**
+     * Periodically compacts the sealed segments once most of their bytes are dead
+     */
+    public void run() {
+        try {
+            while (this.running) {
+                Thread.sleep(SegmentLog.compactionDelayMillis);
+
+                // Every entry takes its record and the headers, count them for the live records as well
+                long liveBytes = this.store.getRecordBytes() + (long) this.store.size() * (SegmentLog.headerLength + SegmentLog.entryHeaderLength);
+                if (this.sealedBytes < this.segmentBytes || this.sealedBytes <= 2 * liveBytes) {
+                    continue;
+                }
+
+                try {
+                    long start = System.nanoTime();
+                    long sealedBytes = this.sealedBytes;
+                    int kept = this.compact();
+
+                    Log.info("Compacted " + sealedBytes / 1024 + " KB of segments into " + kept + " live records in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                } catch (IOException e) {
+                    Log.error("Could not compact the segments in " + this.directory, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.error("SegmentLog thread interrupted", e);
+        }
+    }
+
+    /**
+     * Copies the live entries of all sealed segments to the end of the log and deletes the sealed segments. An entry is live if the store still holds the same record for its key, deletions are dropped since every older entry of their key is deleted along with them.
+     *
+     * @return  The number of entries that were kept
+     * @throws IOException  If a segment cannot be read or deleted
+     */
+    int compact() throws IOException {
+        List<Segment> victims;
+        synchronized (this) {
+            victims = new ArrayList<>(this.sealed);
+        }
+
+        // A key that was stored with the same value several times is only copied once
+        Set<ByteBuffer> copied = new HashSet<>();
+        for (Segment segment : victims) {
+            try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                SegmentLog.forEachEntry(buffer, (type, id, bytes) -> {
+                    if (type != SegmentLog.PUT) {
+                        return;
+                    }
+
+                    ByteBuffer key = ByteBuffer.wrap(KeyValueStore.keyOf(bytes));
+                    if (!copied.contains(key) && this.store.rewriteIfLive(id, bytes)) {
+                        copied.add(key);
+                    }
+                });
+            }
+        }
+
+        // The copies have to be on disk before the segments they were read from are gone
+        synchronized (this) {
+            if (this.active != null) {
+                this.active.buffer.force();
+            }
+        }
+
+        // Oldest first, so a segment that survives a crash never holds an older value than one that was deleted
+        for (Segment segment : victims) {
+            synchronized (this) {
+                this.sealed.remove(segment);
+                this.sealedBytes -= segment.bytes;
+            }
+
+            this.deleteSegment(segment.file);
+        }
+
+        return copied.size();
+    }
+
+    /**
+     * Deletes the file of a compacted segment, tests override it to stop a compaction halfway as a crash would
+     *
+     * @param file  The segment file
+     * @throws IOException  If the file cannot be deleted
+     */
+    void deleteSegment(Path file) throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Forces the active segment to disk and stops the compactor. Writes that are appended afterwards still go to the segment.
+     */
+    public synchronized void close() {
+        this.running = false;
+
+        if (this.active != null) {
+            this.active.buffer.force();
+        }
+    }
+
+    private synchronized void append(byte type, long id, byte[] bytes) {
+        int length = SegmentLog.entryHeaderLength + bytes.length;
+
+        // Keep room for the end marker after the entry
+        if (this.active == null || this.active.buffer.remaining() < SegmentLog.headerLength + length + SegmentLog.endMarkerLength) {
+            this.roll(SegmentLog.headerLength + length + SegmentLog.endMarkerLength);
+        }
+
+        this.crc.reset();
+        this.crc.update(type);
+        this.crc.update(ByteBuffer.allocate(8).putLong(0, id));
+        this.crc.update(bytes);
+
+        MappedByteBuffer buffer = this.active.buffer;
+        buffer.putInt(length);
+        buffer.putInt((int) this.crc.getValue());
+        buffer.put(type);
+        buffer.putLong(id);
+        buffer.put(bytes);
+        this.active.bytes = buffer.position();
+    }
+
+    /**
+     * Seals the active segment and maps a new one that has room for at least the given number of bytes
+     */
+    private void roll(int minimumBytes) {
+        try {
+            if (this.active != null) {
+                this.active.buffer.force();
+                this.active.buffer = null;
+                this.sealed.add(this.active);
+                this.sealedBytes += this.active.bytes;
+            }
+
+            long sequence = this.nextSequence++;
+            Path file = this.directory.resolve(String.format("%016d", sequence) + SegmentLog.suffix);
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Segment segment = new Segment(file, sequence);
+                segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentBytes, minimumBytes));
+                this.active = segment;
+            }
+        } catch (IOException e) {
+            // A node that cannot persist a write must not acknowledge it as if it could
+            throw new UncheckedIOException("Could not start a new segment in " + this.directory, e);
+        }
+    }
+
+    /**
+     * Reads the entries of a segment up to the end marker or the first entry that is cut short or corrupt
+     *
+     * @return  The offset after the last valid entry
+     */
+    private static int forEachEntry(ByteBuffer buffer, EntryVisitor visitor) {
+        CRC32 crc = new CRC32();
+        int position = 0;
+
+        while (position + SegmentLog.headerLength + SegmentLog.entryHeaderLength <= buffer.limit()) {
+            int length = buffer.getInt(position);
+
+            // Compared as a remainder so that a damaged length cannot overflow past the limit
+            if (length < SegmentLog.entryHeaderLength || length > buffer.limit() - position - SegmentLog.headerLength) {
+                break;
+            }
+
+            byte[] entry = new byte[length];
+            buffer.get(position + SegmentLog.headerLength, entry);
+
+            crc.reset();
+            crc.update(entry);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                Log.warn("Stopped reading a segment at a damaged entry at offset " + position);
+                break;
+            }
+
+            ByteBuffer view = ByteBuffer.wrap(entry);
+            byte type = view.get();
+            long id = view.getLong();
+            byte[] bytes = new byte[length - SegmentLog.entryHeaderLength];
+            view.get(bytes);
+
+            visitor.visit(type, id, bytes);
+            position += SegmentLog.headerLength + length;
+        }
+
+        return position;
+    }
+
+    private static long sequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SegmentLog.suffix.length()));
+    }
+
+    private interface EntryVisitor {
+
+        void visit(byte type, long id, byte[] bytes);
+
+    }
+
+    /**
+     * A segment file. Only the active segment keeps its mapping, sealed segments are mapped again while they are read.
+     */
+    private static class Segment {
+
+        private final Path file;
+        private final long sequence;
+        private MappedByteBuffer buffer;
+        private long bytes = 0;
+
+        private Segment(Path file, long sequence) {
+            this.file = file;
+            this.sequence = sequence;
+        }
+
+    }
+
+}
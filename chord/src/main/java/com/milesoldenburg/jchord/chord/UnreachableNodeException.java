@@ -0,0 +1,23 @@
+package com.milesoldenburg.jchord.chord;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a lookup when one of the nodes on its path could not be reached, so the caller knows which node to skip when it tries again
+ */
+public class UnreachableNodeException extends IOException {
+
+    private final static long serialVersionUID = 1L;
+
+    private transient Finger node;
+
+    public UnreachableNodeException(Finger node, IOException cause) {
+        super("Could not reach " + node.getAddress() + ":" + node.getPort(), cause);
+        this.node = node;
+    }
+
+    public Finger getNode() {
+        return this.node;
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.milesoldenburg.jchord.chord;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class BinaryProtocolTest {
+
+    @Test
+    public void textRoundTrip() {
+        ByteBuffer frame = BinaryProtocol.text(BinaryProtocol.TEXT, 7, "STORE:k:v\u00e4lue", 3);
+
+        assertEquals(frame.remaining() - 4, frame.getInt());
+        assertEquals(BinaryProtocol.TEXT, frame.get());
+        assertEquals(7, frame.getInt());
+        assertEquals("STORE:k:v\u00e4lue", BinaryProtocol.readText(frame));
+        assertEquals(3, BinaryProtocol.readHops(frame));
+        assertEquals(-1, BinaryProtocol.readHops(frame));
+    }
+
+    @Test
+    public void fingerRoundTripKeepsVirtualNode() {
+        Finger finger = Finger.of("127.0.0.1", 8001, 3);
+        ByteBuffer frame = BinaryProtocol.finger(BinaryProtocol.NODE_FOUND, 1, finger);
+        frame.position(BinaryProtocol.HEADER_LENGTH);
+
+        assertEquals(finger, BinaryProtocol.readFinger(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    public void keysRoundTrip() {
+        KeyValueStore store = new KeyValueStore();
+        store.put(5, "a", "1");
+        byte[] record = store.getRecord(5, "a".getBytes(StandardCharsets.UTF_8));
+
+        KeyBatch batch = new KeyBatch(Finger.of("127.0.0.1", 8002));
+        batch.setNextOffset(12);
+        batch.add(5, record);
+        batch.addDeleted(6, "b".getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer frame = BinaryProtocol.keys(9, batch);
+        frame.position(BinaryProtocol.HEADER_LENGTH);
+        KeyBatch read = BinaryProtocol.readKeys(frame);
+
+        assertEquals(12, read.getNextOffset());
+        assertEquals(Finger.of("127.0.0.1", 8002), read.getPredecessor());
+        assertEquals(2, read.size());
+        assertEquals(5, read.getId(0));
+        assertArrayEquals(record, read.getRecord(0));
+        assertFalse(read.isDeleted(0));
+        assertEquals(6, read.getId(1));
+        assertArrayEquals("b".getBytes(StandardCharsets.UTF_8), read.getRecord(1));
+        assertTrue(read.isDeleted(1));
+    }
+
+    @Test
+    public void fetchKeysRoundTrip() {
+        Finger owner = Finger.of("127.0.0.1", 8001);
+        Finger receiver = Finger.of("127.0.0.1", 8002, 1);
+        KeyBatch keys = new KeyBatch(null);
+        keys.addDeleted(5, "a".getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer frame = BinaryProtocol.fetchKeys(4, (byte) 2, 100, owner, receiver, keys);
+        frame.position(BinaryProtocol.HEADER_LENGTH);
+
+        assertEquals(2, frame.get());
+        assertEquals(100, frame.getInt());
+        assertEquals(owner, BinaryProtocol.readFinger(frame));
+        assertEquals(receiver, BinaryProtocol.readFinger(frame));
+        KeyBatch read = BinaryProtocol.readRequestedKeys(frame);
+        assertEquals(1, read.size());
+        assertEquals(5, read.getId(0));
+
+        frame = BinaryProtocol.fetchKeys(4, (byte) 0, 0, owner, receiver, null);
+        frame.position(BinaryProtocol.HEADER_LENGTH + 1 + 4);
+        BinaryProtocol.readFinger(frame);
+        BinaryProtocol.readFinger(frame);
+        assertNull(BinaryProtocol.readRequestedKeys(frame));
+    }
+
+    @Test
+    public void negativeTextLengthIsRejected() {
+        ByteBuffer frame = ByteBuffer.allocate(8).putInt(-1).putInt(0).flip();
+
+        assertThrows(BufferUnderflowException.class, () -> BinaryProtocol.readText(frame));
+    }
+
+    @Test
+    public void textLongerThanFrameIsRejected() {
+        ByteBuffer frame = ByteBuffer.allocate(8).putInt(5).putInt(0).flip();
+
+        assertThrows(BufferUnderflowException.class, () -> BinaryProtocol.readText(frame));
+    }
+
+    @Test
+    public void entryCountBeyondFrameIsRejected() {
+        // A count the frame cannot hold must fail before anything is allocated for it
+        ByteBuffer frame = ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(0).flip();
+
+        assertThrows(BufferUnderflowException.class, () -> BinaryProtocol.readRequestedKeys(frame));
+    }
+
+    @Test
+    public void recordLengthBeyondFrameIsRejected() {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 8 + 4 + 2).putInt(1).put((byte) 0).putLong(5).putInt(1000).putShort((short) 0).flip();
+
+        assertThrows(BufferUnderflowException.class, () -> BinaryProtocol.readRequestedKeys(frame));
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.milesoldenburg.jchord.chord;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class FailureDetectorTest {
+
+    @Test
+    public void phiIsHalfAtTheMean() {
+        assertEquals(Math.log10(2), FailureDetector.phi(1000, 1000, 100), 1e-9);
+    }
+
+    @Test
+    public void phiGrowsWithTheSilence() {
+        double previous = FailureDetector.phi(0, 1000, 100);
+        for (int silence = 100; silence <= 5000; silence += 100) {
+            double phi = FailureDetector.phi(silence, 1000, 100);
+
+            assertTrue(phi >= previous, "phi fell at " + silence);
+            previous = phi;
+        }
+    }
+
+    @Test
+    public void phiStaysFiniteFarIntoTheTail() {
+        // Twenty deviations out, where 1 - cdf would already round to 0
+        double phi = FailureDetector.phi(3000, 1000, 100);
+
+        assertTrue(Double.isFinite(phi));
+        assertTrue(phi > 8);
+    }
+
+    @Test
+    public void phiRisesFasterForSteadyIntervals() {
+        // The same late heartbeat is more suspicious from a node whose heartbeats have been regular
+        assertTrue(FailureDetector.phi(1500, 1000, 50) > FailureDetector.phi(1500, 1000, 500));
+    }
+
+    @Test
+    public void unwatchedNodeIsNotSuspected() {
+        FailureDetector detector = new FailureDetector(1000, 1000, 100);
+        Finger node = Finger.of("127.0.0.1", 9001);
+
+        assertEquals(0, detector.phi(node));
+
+        detector.monitor(node);
+        assertTrue(detector.phi(node) < 1);
+
+        detector.forget(node);
+        assertEquals(0, detector.phi(node));
+    }
+
+}
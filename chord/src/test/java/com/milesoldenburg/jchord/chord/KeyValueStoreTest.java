@@ -0,0 +1,124 @@
+package com.milesoldenburg.jchord.chord;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class KeyValueStoreTest {
+
+    @Test
+    public void putGetRemove() {
+        KeyValueStore store = new KeyValueStore();
+
+        assertFalse(store.put(1, "a", "1"));
+        assertTrue(store.put(1, "a", "2"));
+        assertEquals("2", store.get(1, "a"));
+        assertEquals(1, store.size());
+
+        assertTrue(store.remove(1, "a"));
+        assertFalse(store.remove(1, "a"));
+        assertNull(store.get(1, "a"));
+        assertEquals(0, store.size());
+        assertEquals(0, store.getRecordBytes());
+    }
+
+    @Test
+    public void removeShiftsCollidingKeysBack() {
+        KeyValueStore store = new KeyValueStore();
+
+        // Keys with the same ring id share a home slot, so they sit one after the other in a single probe sequence
+        for (int i = 0; i < 8; i++) {
+            store.put(42, "key" + i, "value" + i);
+        }
+
+        // Removing from the front and the middle of the sequence must not cut off the keys behind the hole
+        assertTrue(store.remove(42, "key0"));
+        assertTrue(store.remove(42, "key4"));
+
+        for (int i = 0; i < 8; i++) {
+            if (i == 0 || i == 4) {
+                assertNull(store.get(42, "key" + i));
+            } else {
+                assertEquals("value" + i, store.get(42, "key" + i));
+            }
+        }
+
+        assertEquals(6, store.size());
+        assertTrue(store.put(42, "key7", "again"));
+        assertEquals(6, store.size());
+    }
+
+    @Test
+    public void removeKeepsRandomWorkloadConsistent() {
+        KeyValueStore store = new KeyValueStore();
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(7);
+
+        // Few distinct ids and a table close to its load factor make long probe sequences that wrap around the end of the table
+        for (int round = 0; round < 20000; round++) {
+            int n = random.nextInt(700);
+            long id = n % 61;
+            String key = "key" + n;
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, store.remove(id, key));
+            } else {
+                String value = Integer.toString(round);
+                assertEquals(expected.put(key, value) != null, store.put(id, key, value));
+            }
+        }
+
+        assertEquals(expected.size(), store.size());
+        for (int n = 0; n < 700; n++) {
+            assertEquals(expected.get("key" + n), store.get(n % 61, "key" + n));
+        }
+    }
+
+    @Test
+    public void removeRangeRemovesOnlyTheRange() {
+        KeyValueStore store = new KeyValueStore();
+        for (long id = 1; id <= 100; id++) {
+            store.put(id, "key" + id, "value");
+        }
+
+        assertEquals(50, store.removeRange(25, 75));
+        assertEquals(50, store.size());
+        assertEquals("value", store.get(25, "key25"));
+        assertNull(store.get(26, "key26"));
+        assertNull(store.get(75, "key75"));
+        assertEquals("value", store.get(76, "key76"));
+    }
+
+    @Test
+    public void removeRangeWrapsAroundTheRing() {
+        KeyValueStore store = new KeyValueStore();
+        store.put(Chord.RING_MASK, "last", "value");
+        store.put(0, "zero", "value");
+        store.put(5, "five", "value");
+        store.put(10, "ten", "value");
+
+        assertEquals(3, store.removeRange(Chord.RING_MASK - 1, 5));
+        assertEquals(1, store.size());
+        assertEquals("value", store.get(10, "ten"));
+    }
+
+    @Test
+    public void collectSharesRecords() {
+        KeyValueStore store = new KeyValueStore();
+        store.put(3, "c", "3");
+
+        KeyValueStore.Entries entries = store.collect(0, 3);
+        assertEquals(1, entries.size());
+        assertEquals(3, entries.getId(0));
+        assertEquals("c", new String(KeyValueStore.keyOf(entries.getRecord(0))));
+        assertTrue(store.getRecord(3, "c".getBytes()) == entries.getRecord(0));
+    }
+
+}
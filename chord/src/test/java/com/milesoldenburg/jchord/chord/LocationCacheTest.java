@@ -0,0 +1,83 @@
+package com.milesoldenburg.jchord.chord;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class LocationCacheTest {
+
+    private final Finger a = Finger.of("127.0.0.1", 9001);
+    private final Finger b = Finger.of("127.0.0.1", 9002);
+    private final Finger c = Finger.of("127.0.0.1", 9003);
+
+    @Test
+    public void coversTheRangeUpToTheOwner() {
+        LocationCache cache = new LocationCache(8);
+        cache.put(this.a.getId() - 10, this.a);
+
+        assertEquals(this.a, cache.get(this.a.getId()));
+        assertEquals(this.a, cache.get(this.a.getId() - 9));
+        assertNull(cache.get(this.a.getId() - 10));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void clockEvictsEntryThatWasNotUsed() {
+        LocationCache cache = new LocationCache(2);
+        cache.put(this.a.getId() - 1, this.a);
+        cache.put(this.b.getId() - 1, this.b);
+
+        // The hand passes over a used entry and clears its mark, whatever the ring order of the two
+        cache.get(this.a.getId());
+        cache.put(this.c.getId() - 1, this.c);
+
+        assertEquals(2, cache.size());
+        assertEquals(this.a, cache.get(this.a.getId()));
+        assertNull(cache.get(this.b.getId()));
+        assertEquals(this.c, cache.get(this.c.getId()));
+    }
+
+    @Test
+    public void clockGivesUsedEntriesOnlyOneMoreSweep() {
+        LocationCache cache = new LocationCache(2);
+        cache.put(this.a.getId() - 1, this.a);
+        cache.put(this.b.getId() - 1, this.b);
+        cache.get(this.a.getId());
+        cache.get(this.b.getId());
+
+        // Both are marked, so the hand clears both and comes back to evict the first one it cleared
+        cache.put(this.c.getId() - 1, this.c);
+
+        assertEquals(2, cache.size());
+        Finger first = Long.compareUnsigned(this.a.getId(), this.b.getId()) < 0 ? this.a : this.b;
+        Finger second = first == this.a ? this.b : this.a;
+        assertNull(cache.get(first.getId()));
+        assertEquals(second, cache.get(second.getId()));
+    }
+
+    @Test
+    public void invalidateForgetsTheOwner() {
+        LocationCache cache = new LocationCache(8);
+        cache.put(this.a.getId() - 1, this.a);
+        cache.put(this.b.getId() - 1, this.b);
+
+        cache.invalidate(this.a);
+        cache.invalidate(this.b.getId());
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get(this.a.getId()));
+        assertNull(cache.get(this.b.getId()));
+    }
+
+    @Test
+    public void zeroCapacityDisablesTheCache() {
+        LocationCache cache = new LocationCache(0);
+        cache.put(this.a.getId() - 1, this.a);
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get(this.a.getId()));
+    }
+
+}
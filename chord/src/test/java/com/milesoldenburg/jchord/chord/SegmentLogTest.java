@@ -0,0 +1,189 @@
+package com.milesoldenburg.jchord.chord;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SegmentLogTest {
+
+    private final static long segmentBytes = 4096;
+    private final static int headerLength = 4 + 4 + 1 + 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void recoversAllEntries() throws IOException {
+        KeyValueStore store = this.open();
+        store.put(1, "a", "1");
+        store.put(2, "b", "2");
+        store.put(1, "a", "3");
+        store.remove(2, "b");
+        store.close();
+
+        KeyValueStore recovered = new KeyValueStore();
+        assertEquals(4, recovered.persistTo(new SegmentLog(this.directory, SegmentLogTest.segmentBytes)));
+        assertEquals("3", recovered.get(1, "a"));
+        assertNull(recovered.get(2, "b"));
+        assertEquals(1, recovered.size());
+    }
+
+    @Test
+    public void recoveryStopsAtTornEntry() throws IOException {
+        KeyValueStore store = this.open();
+        store.put(1, "a", "1");
+        store.put(2, "b", "2");
+        store.put(3, "c", "3");
+        store.close();
+
+        // A crash in the middle of the last append leaves its header with only part of its bytes
+        Path segment = this.segments().get(0);
+        int offset = 2 * SegmentLogTest.entryLength("a", "1");
+        this.overwrite(segment, offset + SegmentLogTest.entryLength("c", "3") - 2, new byte[2]);
+
+        KeyValueStore recovered = new KeyValueStore();
+        assertEquals(2, recovered.persistTo(new SegmentLog(this.directory, SegmentLogTest.segmentBytes)));
+        assertEquals("1", recovered.get(1, "a"));
+        assertEquals("2", recovered.get(2, "b"));
+        assertNull(recovered.get(3, "c"));
+    }
+
+    @Test
+    public void recoveryStopsAtBadChecksum() throws IOException {
+        KeyValueStore store = this.open();
+        store.put(1, "a", "1");
+        store.put(2, "b", "2");
+        store.put(3, "c", "3");
+        store.close();
+
+        // Damage the value of the middle entry, the entries after it are not trusted either
+        Path segment = this.segments().get(0);
+        int offset = SegmentLogTest.entryLength("a", "1");
+        this.overwrite(segment, offset + SegmentLogTest.entryLength("b", "2") - 1, "x".getBytes(StandardCharsets.UTF_8));
+
+        KeyValueStore recovered = new KeyValueStore();
+        assertEquals(1, recovered.persistTo(new SegmentLog(this.directory, SegmentLogTest.segmentBytes)));
+        assertEquals("1", recovered.get(1, "a"));
+        assertNull(recovered.get(2, "b"));
+        assertNull(recovered.get(3, "c"));
+    }
+
+    @Test
+    public void recoveryStopsAtLengthBeyondSegment() throws IOException {
+        KeyValueStore store = this.open();
+        store.put(1, "a", "1");
+        store.put(2, "b", "2");
+        store.close();
+
+        Path segment = this.segments().get(0);
+        this.overwrite(segment, SegmentLogTest.entryLength("a", "1"), ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).array());
+
+        KeyValueStore recovered = new KeyValueStore();
+        assertEquals(1, recovered.persistTo(new SegmentLog(this.directory, SegmentLogTest.segmentBytes)));
+        assertEquals("1", recovered.get(1, "a"));
+        assertNull(recovered.get(2, "b"));
+    }
+
+    @Test
+    public void compactionKeepsLiveRecordsOnly() throws IOException {
+        KeyValueStore store = this.open();
+        store.put(1, "a", "1");
+        store.put(2, "b", "2");
+        store.close();
+
+        store = this.open();
+        store.put(1, "a", "3");
+        store.remove(2, "b");
+        store.close();
+
+        store = this.open();
+        List<Path> sealed = this.segments();
+        assertEquals(1, store.getLog().compact());
+        store.close();
+
+        for (Path segment : sealed) {
+            assertEquals(false, Files.exists(segment));
+        }
+
+        KeyValueStore recovered = new KeyValueStore();
+        assertEquals(1, recovered.persistTo(new SegmentLog(this.directory, SegmentLogTest.segmentBytes)));
+        assertEquals("3", recovered.get(1, "a"));
+        assertNull(recovered.get(2, "b"));
+    }
+
+    @Test
+    public void compactionDeletesOldestSegmentFirst() throws IOException {
+        KeyValueStore store = this.open();
+        store.put(1, "a", "1");
+        store.close();
+
+        store = this.open();
+        store.remove(1, "a");
+        store.close();
+
+        // Stop the compaction after its first deletion, the way a crash would
+        List<Path> deleted = new ArrayList<>();
+        SegmentLog log = new SegmentLog(this.directory, SegmentLogTest.segmentBytes) {
+            @Override
+            void deleteSegment(Path file) throws IOException {
+                if (!deleted.isEmpty()) {
+                    throw new IOException("crash");
+                }
+
+                super.deleteSegment(file);
+                deleted.add(file);
+            }
+        };
+        store = new KeyValueStore();
+        store.persistTo(log);
+        List<Path> sealed = this.segments();
+        assertThrows(IOException.class, log::compact);
+        store.close();
+
+        // Had the segment with the deletion gone first, the old value would be back
+        assertEquals(List.of(sealed.get(0)), deleted);
+
+        KeyValueStore recovered = new KeyValueStore();
+        new SegmentLog(this.directory, SegmentLogTest.segmentBytes).recover(recovered);
+        assertNull(recovered.get(1, "a"));
+        assertEquals(0, recovered.size());
+    }
+
+    private KeyValueStore open() throws IOException {
+        KeyValueStore store = new KeyValueStore();
+        store.persistTo(new SegmentLog(this.directory, SegmentLogTest.segmentBytes));
+
+        return store;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private void overwrite(Path file, int offset, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), offset);
+        }
+    }
+
+    private static int entryLength(String key, String value) {
+        return SegmentLogTest.headerLength + 4 + key.length() + value.length();
+    }
+
+}
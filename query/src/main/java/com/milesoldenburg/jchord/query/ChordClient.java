@@ -0,0 +1,176 @@
+package com.milesoldenburg.jchord.query;
+
+import com.milesoldenburg.jchord.chord.BinaryProtocol;
+import com.milesoldenburg.jchord.chord.Chord;
+import com.milesoldenburg.jchord.chord.Finger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client for a Chord ring. Keeps one pipelined binary connection to every entry node and spreads requests over them round robin. Every method returns right away with a future, so a single thread can keep thousands of lookups in flight.
+ *
+ * <pre>
+ * ChordClient client = new ChordClient(List.of(new InetSocketAddress("127.0.0.1", 8001)));
+ * client.store("key", "value").thenCompose(stored -&gt; client.get("key")).thenAccept(System.out::println);
+ * </pre>
+ */
+public class ChordClient implements AutoCloseable {
+
+    private final static long requestTimeoutMillis = 30000;
+
+    private List<ClientConnection> connections = new ArrayList<>();
+    private AtomicInteger nextConnection = new AtomicInteger();
+
+    /**
+     * Connects to every entry node. Entry nodes that cannot be reached are skipped as long as at least one connection succeeds.
+     *
+     * @param entryNodes    The nodes to send requests to
+     * @throws IOException  If none of the entry nodes could be reached
+     */
+    public ChordClient(List<InetSocketAddress> entryNodes) throws IOException {
+        IOException lastException = null;
+
+        for (InetSocketAddress entryNode : entryNodes) {
+            try {
+                this.connections.add(new ClientConnection(entryNode));
+            } catch (IOException e) {
+                System.err.println("Error: Cannot connect to host " + entryNode);
+                lastException = e;
+            }
+        }
+
+        if (this.connections.isEmpty()) {
+            throw lastException != null ? lastException : new IOException("No entry nodes given");
+        }
+    }
+
+    /**
+     * Looks up a key the same way the console does
+     *
+     * @param key   The key to look up
+     * @return      Completes with the response line of the ring
+     */
+    public CompletableFuture<String> findValue(String key) {
+        return this.send(requestId -> BinaryProtocol.text(BinaryProtocol.FIND_VALUE, requestId, key)).thenApply(BinaryProtocol::readText);
+    }
+
+    /**
+     * @param key   The key to look up
+     * @return      Completes with the stored value, or null if the key is not stored
+     */
+    public CompletableFuture<String> get(String key) {
+        return this.sendText(Chord.GET + ":" + key).thenApply(response -> response.startsWith(Chord.VALUE_FOUND + ":") ? response.substring(Chord.VALUE_FOUND.length() + 1) : null);
+    }
+
+    /**
+     * @param key   The key, which cannot contain ":"
+     * @param value The value
+     * @return      Completes with true once the owner of the key stored the value
+     */
+    public CompletableFuture<Boolean> store(String key, String value) {
+        return this.sendText(Chord.STORE + ":" + key + ":" + value).thenApply(Chord.STORED::equals);
+    }
+
+    /**
+     * @param key   The key to delete
+     * @return      Completes with true if the key was stored and has been deleted
+     */
+    public CompletableFuture<Boolean> delete(String key) {
+        return this.sendText(Chord.DELETE + ":" + key).thenApply(Chord.DELETED::equals);
+    }
+
+    /**
+     * @param id    The id to look up
+     * @return      Completes with the node that owns the id, or null if the ring could not find it
+     */
+    public CompletableFuture<Finger> findNode(long id) {
+        return this.send(requestId -> BinaryProtocol.findNode(requestId, id)).thenApply(response -> response.get(0) == BinaryProtocol.NODE_FOUND ? BinaryProtocol.readFinger(response) : null);
+    }
+
+    /**
+     * Sends any text command
+     *
+     * @param message   The command in the form COMMAND:content
+     * @return          Completes with the response line
+     */
+    public CompletableFuture<String> sendText(String message) {
+        return this.query(message).thenApply(QueryResult::getResponse);
+    }
+
+    /**
+     * Sends any text command and keeps the hop count the entry node reports with the response
+     *
+     * @param message   The command in the form COMMAND:content
+     * @return          Completes with the response line and the number of hops
+     */
+    public CompletableFuture<QueryResult> query(String message) {
+        return this.send(requestId -> BinaryProtocol.text(BinaryProtocol.TEXT, requestId, message)).thenApply(response -> new QueryResult(BinaryProtocol.readText(response), BinaryProtocol.readHops(response)));
+    }
+
+    /**
+     * Sends any text command and asks every node on the way to record how it routed the command and how long each step took
+     *
+     * @param message   The command in the form COMMAND:content
+     * @return          Completes with the response line, the number of hops and the steps of the lookup
+     */
+    public CompletableFuture<QueryResult> trace(String message) {
+        String traceId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+        return this.query(Chord.TRACE + ":" + traceId + ":" + message).thenApply(result -> {
+            // The response is TRACE:traceId:steps:response
+            String[] responseFragments = result.getResponse().split(":", 4);
+            if (responseFragments.length != 4 || !responseFragments[0].equals(Chord.TRACE)) {
+                return result;
+            }
+
+            return new QueryResult(responseFragments[3], result.getHops(), responseFragments[2]);
+        });
+    }
+
+    /**
+     * @return  The number of requests that are waiting for a response on all connections
+     */
+    public int getPendingCount() {
+        int pendingCount = 0;
+
+        for (ClientConnection connection : this.connections) {
+            pendingCount += connection.getPendingCount();
+        }
+
+        return pendingCount;
+    }
+
+    public void close() {
+        for (ClientConnection connection : this.connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Sends a request on the next open connection
+     */
+    private CompletableFuture<ByteBuffer> send(ClientConnection.FrameBuilder request) {
+        int size = this.connections.size();
+        int start = Math.floorMod(this.nextConnection.getAndIncrement(), size);
+
+        // Skip entry nodes whose connection has failed
+        for (int i = 0; i < size; i++) {
+            ClientConnection connection = this.connections.get((start + i) % size);
+
+            if (connection.isOpen()) {
+                return connection.send(request).orTimeout(ChordClient.requestTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return CompletableFuture.failedFuture(new IOException("No open connection to any entry node"));
+    }
+
+}
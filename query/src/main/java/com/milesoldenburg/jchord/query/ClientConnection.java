@@ -0,0 +1,181 @@
+package com.milesoldenburg.jchord.query;
+
+import com.milesoldenburg.jchord.chord.BinaryProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A binary protocol connection to one entry node that can carry many requests at the same time. Every request gets its own request id, a reader thread matches the response frames to the waiting futures by that id, so responses may arrive in any order.
+ */
+public class ClientConnection implements Runnable {
+
+    private final static int connectTimeoutMillis = 5000;
+    private final static int handshakeTimeoutMillis = 2000;
+
+    private InetSocketAddress address;
+    private Socket socket;
+    private OutputStream frameWriter;
+    private DataInputStream frameReader;
+    private ConcurrentMap<Integer, CompletableFuture<ByteBuffer>> pendingRequests = new ConcurrentHashMap<>();
+    private AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean open = true;
+
+    public ClientConnection(InetSocketAddress address) throws IOException {
+        this.address = address;
+
+        // Open socket to chord node
+        this.socket = new Socket();
+        this.socket.setTcpNoDelay(true);
+        this.socket.connect(address, ClientConnection.connectTimeoutMillis);
+
+        this.frameWriter = new BufferedOutputStream(this.socket.getOutputStream());
+        this.frameReader = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+
+        try {
+            this.handshake();
+        } catch (IOException e) {
+            this.socket.close();
+            throw e;
+        }
+
+        // Responses are read on a thread of their own so the caller never blocks on the socket
+        Thread reader = new Thread(this, "jchord-client-" + address.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request frame without waiting for the response
+     *
+     * @param payload   Builds the request frame for the request id it is given
+     * @return          Completes with the response frame positioned at the payload, the opcode is at index 0
+     */
+    public CompletableFuture<ByteBuffer> send(FrameBuilder payload) {
+        int requestId = this.nextRequestId.getAndIncrement();
+        ByteBuffer frame = payload.build(requestId);
+
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        this.pendingRequests.put(requestId, response);
+
+        // Forget the request however it ends so that timed out requests do not pile up
+        response.whenComplete((result, error) -> this.pendingRequests.remove(requestId));
+
+        if (!this.open) {
+            response.completeExceptionally(new IOException("Connection to " + this.address + " is closed"));
+            return response;
+        }
+
+        try {
+            synchronized (this.frameWriter) {
+                this.frameWriter.write(frame.array(), frame.arrayOffset(), frame.limit());
+                this.frameWriter.flush();
+            }
+        } catch (IOException e) {
+            this.fail(e);
+        }
+
+        return response;
+    }
+
+    /**
+     * Reads response frames until the connection closes and completes the matching futures
+     */
+    public void run() {
+        try {
+            while (this.open) {
+                int length = this.frameReader.readInt();
+                if (length < 5 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new ProtocolException("Invalid frame length " + length + " from " + this.address);
+                }
+
+                byte[] bytes = new byte[length];
+                this.frameReader.readFully(bytes);
+
+                ByteBuffer response = ByteBuffer.wrap(bytes);
+                CompletableFuture<ByteBuffer> pendingRequest = this.pendingRequests.get(response.getInt(1));
+
+                if (pendingRequest != null) {
+                    response.position(5);
+                    pendingRequest.complete(response);
+                }
+            }
+        } catch (IOException e) {
+            this.fail(e);
+        }
+    }
+
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    public InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return  The number of requests that are waiting for a response
+     */
+    public int getPendingCount() {
+        return this.pendingRequests.size();
+    }
+
+    public void close() {
+        this.fail(new IOException("Connection to " + this.address + " was closed"));
+    }
+
+    /**
+     * Closes the connection and fails every request that is still waiting
+     */
+    private void fail(IOException e) {
+        this.open = false;
+
+        try {
+            this.socket.close();
+        } catch (IOException closeException) {
+            // Nothing left to do with a connection that cannot be closed cleanly
+        }
+
+        for (CompletableFuture<ByteBuffer> pendingRequest : this.pendingRequests.values()) {
+            pendingRequest.completeExceptionally(e);
+        }
+    }
+
+    private void handshake() throws IOException {
+        this.socket.setSoTimeout(ClientConnection.handshakeTimeoutMillis);
+
+        this.frameWriter.write(BinaryProtocol.PREAMBLE);
+        this.frameWriter.flush();
+
+        byte[] preamble = new byte[BinaryProtocol.PREAMBLE.length];
+        this.frameReader.readFully(preamble);
+
+        if (!BinaryProtocol.isPreamble(preamble, 0)) {
+            throw new ProtocolException(this.address + " does not speak the binary protocol");
+        }
+
+        // Requests are timed out per future, the reader waits as long as the connection is open
+        this.socket.setSoTimeout(0);
+    }
+
+    /**
+     * Builds a request frame once the request id is known
+     */
+    public interface FrameBuilder {
+
+        ByteBuffer build(int requestId);
+
+    }
+
+}
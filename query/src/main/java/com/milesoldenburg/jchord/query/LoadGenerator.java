@@ -0,0 +1,164 @@
+package com.milesoldenburg.jchord.query;
+
+import com.milesoldenburg.jchord.chord.Chord;
+import com.milesoldenburg.jchord.chord.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a stream of keys at a ring and measures how it copes. Requests are started on a fixed schedule derived from the target rate, independent of how fast earlier requests complete, and every latency is measured from the time the request was scheduled to start. A request that has to wait because the ring fell behind or the concurrency limit was reached therefore counts that wait as latency, instead of the stall silently lowering the request rate.
+ */
+public class LoadGenerator {
+
+    /**
+     * The command sent for every key
+     */
+    public enum Operation {
+
+        FIND(Chord.FIND_VALUE), GET(Chord.GET), STORE(Chord.STORE);
+
+        private String command;
+
+        Operation(String command) {
+            this.command = command;
+        }
+
+        String message(String key) {
+            // Stores use the key as the value so that later gets can be checked by eye
+            return this == Operation.STORE ? this.command + ":" + key + ":" + key : this.command + ":" + key;
+        }
+
+    }
+
+    private final static int maxHops = 255;
+
+    private ChordClient client;
+    private Operation operation;
+    private int concurrency;
+    private double rate;
+
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private AtomicLongArray hopCounts = new AtomicLongArray(LoadGenerator.maxHops + 1);
+    private AtomicLong notFound = new AtomicLong();
+    private AtomicLong errors = new AtomicLong();
+    private long sent = 0;
+    private long durationNanos = 0;
+
+    /**
+     * @param client        The client to send the requests through
+     * @param operation     The command sent for every key
+     * @param concurrency   The highest number of requests in flight at once
+     * @param rate          The number of requests started per second, or 0 to send as fast as the concurrency limit allows
+     */
+    public LoadGenerator(ChordClient client, Operation operation, int concurrency, double rate) {
+        this.client = client;
+        this.operation = operation;
+        this.concurrency = Math.max(1, concurrency);
+        this.rate = Math.max(0, rate);
+    }
+
+    /**
+     * Sends one request per line until the keys run out and waits for the last response
+     *
+     * @param keys  One key per line, empty lines are skipped
+     * @throws IOException          If the keys could not be read
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void run(BufferedReader keys) throws IOException, InterruptedException {
+        Semaphore inFlight = new Semaphore(this.concurrency);
+        long start = System.nanoTime();
+
+        String key;
+        while ((key = keys.readLine()) != null) {
+            if (key.isEmpty()) {
+                continue;
+            }
+
+            long scheduled;
+            if (this.rate > 0) {
+                // Open loop: the start time of a request only depends on its position in the stream
+                scheduled = start + (long) (this.sent * 1e9 / this.rate);
+
+                long delay = scheduled - System.nanoTime();
+                while (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                    delay = scheduled - System.nanoTime();
+                }
+
+                inFlight.acquire();
+            } else {
+                inFlight.acquire();
+                scheduled = System.nanoTime();
+            }
+
+            this.sent++;
+            this.client.query(this.operation.message(key)).whenComplete((result, error) -> {
+                this.latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+
+                if (error != null) {
+                    this.errors.incrementAndGet();
+                } else {
+                    if (result.getResponse().equals("Not found.")) {
+                        this.notFound.incrementAndGet();
+                    }
+
+                    if (result.getHops() >= 0) {
+                        this.hopCounts.incrementAndGet(Math.min(result.getHops(), LoadGenerator.maxHops));
+                    }
+                }
+
+                inFlight.release();
+            });
+        }
+
+        // Wait for the requests that are still in flight
+        inFlight.acquire(this.concurrency);
+        inFlight.release(this.concurrency);
+
+        this.durationNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Prints throughput, latency percentiles and the hop count distribution of the last run
+     *
+     * @param out   Where to print the report
+     */
+    public void printReport(PrintStream out) {
+        double seconds = this.durationNanos / 1e9;
+
+        out.println("Operation:   " + this.operation.name().toLowerCase() + ", concurrency " + this.concurrency + ", target rate " + (this.rate > 0 ? String.format("%.0f/s", this.rate) : "unlimited"));
+        out.println("Requests:    " + this.sent + " sent, " + this.errors.get() + " failed, " + this.notFound.get() + " not found");
+        out.println(String.format("Duration:    %.3f s", seconds));
+        out.println(String.format("Throughput:  %.1f requests/s", seconds > 0 ? this.latencies.getCount() / seconds : 0));
+        out.println(String.format("Latency us:  mean %.1f, p50 %d, p90 %d, p99 %d, p999 %d, max %d", this.latencies.getMean(), this.latencies.getPercentile(50), this.latencies.getPercentile(90), this.latencies.getPercentile(99), this.latencies.getPercentile(99.9), this.latencies.getMax()));
+
+        long counted = 0;
+        long totalHops = 0;
+        for (int hops = 0; hops < this.hopCounts.length(); hops++) {
+            counted += this.hopCounts.get(hops);
+            totalHops += hops * this.hopCounts.get(hops);
+        }
+
+        if (counted == 0) {
+            out.println("Hops:        not reported by the ring");
+            return;
+        }
+
+        out.println(String.format("Hops:        mean %.2f", (double) totalHops / counted));
+        for (int hops = 0; hops < this.hopCounts.length(); hops++) {
+            long count = this.hopCounts.get(hops);
+
+            if (count > 0) {
+                out.println(String.format("  %3d%s %10d  %5.1f%%", hops, hops == LoadGenerator.maxHops ? "+" : " ", count, 100.0 * count / counted));
+            }
+        }
+    }
+
+}
@@ -1,5 +1,13 @@
 package com.milesoldenburg.jchord.query;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
 public class Query {
 
     public static void main(String[] args) {
@@ -7,10 +15,51 @@ public class Query {
         if (args.length == 2) {
             // Create query node with chord node address and port
             new QueryNode(args[0], args[1]);
+        } else if (args.length >= 7 && args.length % 2 == 1 && args[0].equals("load")) {
+            Query.load(args);
         } else {
             System.err.println("Usage: query [nodeaddress] [nodeport]");
+            System.err.println("       query load [keyfile|-] [concurrency] [rate] [find|get|store] [nodeaddress] [nodeport] ...");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Drives the keys of a file, or of stdin for "-", at the ring and prints a report once all keys were sent
+     */
+    private static void load(String[] args) {
+        LoadGenerator.Operation operation;
+        int concurrency;
+        double rate;
+        try {
+            concurrency = Integer.parseInt(args[2]);
+            rate = Double.parseDouble(args[3]);
+            operation = LoadGenerator.Operation.valueOf(args[4].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: Invalid load arguments, expected [concurrency] [rate] [find|get|store]");
+            System.exit(1);
+            return;
+        }
+
+        // Every remaining pair of arguments is an entry node
+        List<InetSocketAddress> entryNodes = new ArrayList<>();
+        for (int i = 5; i < args.length; i += 2) {
+            entryNodes.add(new InetSocketAddress(args[i], Integer.valueOf(args[i + 1])));
+        }
+
+        try (ChordClient client = new ChordClient(entryNodes);
+             BufferedReader keys = new BufferedReader(args[1].equals("-") ? new InputStreamReader(System.in) : new FileReader(args[1]))) {
+            LoadGenerator loadGenerator = new LoadGenerator(client, operation, concurrency, rate);
+            loadGenerator.run(keys);
+            loadGenerator.printReport(System.out);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
             System.exit(1);
         }
+
+        System.exit(0);
     }
 
 }
@@ -5,9 +5,10 @@ import com.milesoldenburg.jchord.chord.SHA1Hasher;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class QueryNode {
 
@@ -29,13 +30,7 @@ public class QueryNode {
     }
 
     private void connectToChord() {
-        try {
-            // Open socket to chord node
-            Socket socket = new Socket(this.chordNodeAddress, this.chordNodePort);
-
-            // Open reader/writer to chord node
-            PrintWriter socketWriter = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        try (ChordClient client = new ChordClient(List.of(new InetSocketAddress(this.chordNodeAddress, this.chordNodePort)))) {
             BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
 
             // Prompt for entry on console
@@ -43,33 +38,32 @@ public class QueryNode {
 
             // Read from console until quit command
             String query = consoleReader.readLine();
-            while (!query.equals("quit")) {
+            while (query != null && !query.equals("quit")) {
                 // Send query to chord
-                socketWriter.println("FIND_VALUE:" + query);
                 System.out.println("Sent: " + "FIND_VALUE:" + query);
 
-                // Read response from chord
-                String serverResponse = socketReader.readLine();
-                //System.out.println("Response from node " + this.chordNodeAddress + ", port " + this.chordNodePort + ", position " + sha1Hasher.getHex() + " (" + sha1Hasher.getLong() + "):");
+                // Wait for the response from chord
+                String serverResponse = client.findValue(query).get();
                 System.out.println("Received: " + serverResponse);
 
                 // Prompt for new input
                 System.out.println("Please enter your search key (or type \"quit\" to leave):");
                 query = consoleReader.readLine();
             }
-
-            // We have now read quit from the console so the program should exit
-            socket.close();
-            System.exit(0);
         } catch (UnknownHostException e) {
             System.err.println("Error: Unknown host " + this.chordNodeAddress);
             e.printStackTrace();
             System.exit(1);
-        } catch (IOException e) {
+        } catch (IOException | ExecutionException e) {
             System.err.println("Error: Cannot connect to host");
             e.printStackTrace();
             System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
         }
+
+        // We have now read quit from the console so the program should exit
+        System.exit(0);
     }
 
 }
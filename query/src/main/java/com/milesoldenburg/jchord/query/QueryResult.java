@@ -0,0 +1,40 @@
+package com.milesoldenburg.jchord.query;
+
+/**
+ * The response to a text command together with the number of hops the ring needed to answer it, and the steps it took if the command was traced
+ */
+public class QueryResult {
+
+    private String response;
+    private int hops;
+    private String trace;
+
+    public QueryResult(String response, int hops) {
+        this(response, hops, null);
+    }
+
+    public QueryResult(String response, int hops, String trace) {
+        this.response = response;
+        this.hops = hops;
+        this.trace = trace;
+    }
+
+    public String getResponse() {
+        return this.response;
+    }
+
+    /**
+     * @return  The number of messages the entry node sent to other nodes to answer the command, or -1 if the node did not report it
+     */
+    public int getHops() {
+        return this.hops;
+    }
+
+    /**
+     * @return  The steps of a traced command as comma separated nodeId&gt;fingerId/micros entries, or null if the command was not traced
+     */
+    public String getTrace() {
+        return this.trace;
+    }
+
+}